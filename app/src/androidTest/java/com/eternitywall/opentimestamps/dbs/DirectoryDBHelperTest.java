@@ -0,0 +1,98 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.eternitywall.opentimestamps.engines.DirectoryScanner;
+import com.eternitywall.opentimestamps.engines.HashingEngine;
+import com.eternitywall.ots.DetachedTimestampFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The scanner on the SQLite manifest, with the digests of the hashing engine: a committed change
+ * set marks its files as stamped only by path and digest of the files cache.
+ */
+@RunWith(AndroidJUnit4.class)
+public class DirectoryDBHelperTest {
+
+    private Context context;
+    private File root;
+
+    @Before
+    public void setUp() throws Exception {
+        context = new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_");
+        new DBHelper(context).clearAll();
+        root = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "scanned" + System.nanoTime());
+        assertTrue(root.mkdirs());
+    }
+
+    @After
+    public void tearDown() {
+        delete(root);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File write(String name, String content) throws Exception {
+        File file = new File(root, name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    @Test
+    public void commitMarksTheHashedDigests() throws Exception {
+        File file = write("file", "content");
+        DirectoryScanner scanner = new DirectoryScanner(new DirectoryDBHelper(context));
+        DirectoryScanner.ChangeSet changes = scanner.scan(root, 0, false);
+        assertEquals(1, changes.added.size());
+
+        HashingEngine hashingEngine = new HashingEngine(new FileHashDBHelper(context));
+        hashingEngine.hashing(changes.getChangedFiles(), null);
+        changes.stamped.putAll(hashingEngine.getDigests());
+        scanner.commit(changes);
+
+        assertTrue(new FileHashDBHelper(context).getByPath(file.getAbsolutePath()).stamped);
+        assertTrue(scanner.scan(root, System.currentTimeMillis(), false).isEmpty());
+    }
+
+    @Test
+    public void commitSkipsAnotherDigest() throws Exception {
+        File file = write("file", "content");
+        DirectoryScanner scanner = new DirectoryScanner(new DirectoryDBHelper(context));
+        DirectoryScanner.ChangeSet changes = scanner.scan(root, 0, false);
+
+        // The sha256 the timestamp is on is not the digest of the files cache
+        HashingEngine hashingEngine = new HashingEngine(new FileHashDBHelper(context));
+        List<DetachedTimestampFile> fileTimestamps = hashingEngine.hashing(changes.getChangedFiles(), null);
+        changes.stamped.put(file.getAbsolutePath(), fileTimestamps.get(0).fileDigest());
+        scanner.commit(changes);
+
+        assertFalse(new FileHashDBHelper(context).getByPath(file.getAbsolutePath()).stamped);
+        assertEquals(1, scanner.scan(root, System.currentTimeMillis(), false).added.size());
+    }
+}
@@ -0,0 +1,21 @@
+package com.eternitywall.opentimestamps.stores;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.eternitywall.opentimestamps.dbs.TimestampDBHelper;
+
+import org.junit.runner.RunWith;
+
+/**
+ * The SQLite engine against the store conformance suite, on a test copy of the db.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TimestampDBHelperTest extends TimestampStoreConformance {
+
+    @Override
+    protected TimestampStore create() {
+        return new TimestampDBHelper(new RenamingDelegatingContext(InstrumentationRegistry.getTargetContext(), "test_"));
+    }
+}
@@ -0,0 +1,57 @@
+package com.eternitywall.opentimestamps;
+
+/**
+ * Bloom filter of byte arrays, with no allocation on add and lookup.
+ * A negative answer is certain, a positive one has to be confirmed.
+ */
+
+public class BloomFilter {
+
+    private static final int BITS_PER_ITEM = 10;
+    private static final int COUNT_HASHES = 7;
+
+    private final long[] bits;
+    private final long countBits;
+
+    public BloomFilter(int expectedItems) {
+        long size = Math.max(64L, (long) expectedItems * BITS_PER_ITEM);
+        bits = new long[(int) ((size + 63) / 64)];
+        countBits = bits.length * 64L;
+    }
+
+    public synchronized void add(byte[] bytes) {
+        long hash = hash(bytes);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < COUNT_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % countBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    public synchronized boolean mightContain(byte[] bytes) {
+        long hash = hash(bytes);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < COUNT_HASHES; i++) {
+            long bit = ((h1 + i * h2) & 0x7fffffffL) % countBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a 64 with a final mix, messages are not always uniformly distributed digests
+    private static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
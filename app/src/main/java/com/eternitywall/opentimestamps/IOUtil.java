@@ -44,19 +44,28 @@ public class IOUtil {
     }
 
     public static byte[] readFileSHA256(File file) throws IOException, NoSuchAlgorithmException {
+        return readFileSHA256(file, new byte[1024*1024], null);
+    }
+
+    public interface ProgressListener {
+        void onProgress(long countBytes);
+    }
+
+    // SHA256 of a file, read through a caller buffer and reporting the bytes read
+    public static byte[] readFileSHA256(File file, byte[] buffer, ProgressListener listener) throws IOException, NoSuchAlgorithmException {
         // Open file
         RandomAccessFile f = new RandomAccessFile(file, "r");
-        int maxBuffer=1024*1024;
-        byte[] buffer = new byte[maxBuffer];
         try {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
-            // Get and check length
-
-            int count = 0;
-            count = f.read(buffer,0,maxBuffer);
-            while(count >=0 ){
-                md.update(buffer,0,count);
-                count = f.read(buffer,0,maxBuffer);
+            long countBytes = 0;
+            int count = f.read(buffer, 0, buffer.length);
+            while (count >= 0) {
+                md.update(buffer, 0, count);
+                countBytes += count;
+                if (listener != null) {
+                    listener.onProgress(countBytes);
+                }
+                count = f.read(buffer, 0, buffer.length);
             }
             return md.digest();
         } finally {
@@ -64,6 +73,26 @@ public class IOUtil {
         }
     }
 
+    // SHA256 of a stream, read through a caller buffer so that memory doesn't grow with the stream size
+    public static byte[] readInputStreamSHA256(InputStream inputStream, byte[] buffer, ProgressListener listener) throws IOException, NoSuchAlgorithmException {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            long countBytes = 0;
+            int count = inputStream.read(buffer, 0, buffer.length);
+            while (count >= 0) {
+                md.update(buffer, 0, count);
+                countBytes += count;
+                if (listener != null) {
+                    listener.onProgress(countBytes);
+                }
+                count = inputStream.read(buffer, 0, buffer.length);
+            }
+            return md.digest();
+        } finally {
+            inputStream.close();
+        }
+    }
+
     public static String getDate(long milliSeconds, String dateFormat)
     {
         // Create a DateFormatter object for displaying date in specified format.
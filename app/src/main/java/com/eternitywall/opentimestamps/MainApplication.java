@@ -2,9 +2,12 @@ package com.eternitywall.opentimestamps;
 
 import android.content.Context;
 import android.content.res.Configuration;
+import android.os.AsyncTask;
 import android.support.multidex.MultiDex;
 import android.support.multidex.MultiDexApplication;
 
+import com.eternitywall.opentimestamps.dbs.SerializedTimestampDBHelper;
+
 /**
  * Created by luca on 13/05/2017.
  */
@@ -23,6 +26,14 @@ public class MainApplication extends MultiDexApplication {
         super.onCreate();
         MultiDex.install(this);
         mInstance = this;
+
+        // Warm the bloom filter of the stored timestamps
+        AsyncTask.execute(new Runnable() {
+            @Override
+            public void run() {
+                new SerializedTimestampDBHelper(MainApplication.this).warmUp();
+            }
+        });
     }
 
     @Override
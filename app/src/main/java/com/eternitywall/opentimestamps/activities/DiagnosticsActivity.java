@@ -0,0 +1,110 @@
+package com.eternitywall.opentimestamps.activities;
+
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Bundle;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.eternitywall.opentimestamps.BuildConfig;
+import com.eternitywall.opentimestamps.R;
+import com.eternitywall.opentimestamps.engines.HeaderStore;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.stores.TimestampStores;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The values of the metrics registry, with a JSON dump to attach to a bug report.
+ */
+
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private TextView tvMetrics;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+        tvMetrics = (TextView) findViewById(R.id.tvMetrics);
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+        }
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_diagnostics, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                finish();
+                return true;
+            case R.id.action_refresh:
+                refresh();
+                return true;
+            case R.id.action_share:
+                share();
+                return true;
+            case R.id.action_reset_metrics:
+                Metrics.reset();
+                refresh();
+                return true;
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    // Sample the gauges off the main thread, they read the stores
+    private void refresh() {
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                HeaderStore headerStore = HeaderStore.getInstance(DiagnosticsActivity.this);
+                Metrics.gauge("headers.count").set(headerStore.size());
+                Metrics.gauge("headers.verified").set(headerStore.getCountVerified());
+                Metrics.gauge("headers.mismatches").set(headerStore.getCountMismatches());
+                Metrics.gauge("headers.missing").set(headerStore.getCountMissing());
+                Metrics.gauge("store.pending").set(TimestampStores.get(DiagnosticsActivity.this).getPendingNodes().size());
+                Runtime runtime = Runtime.getRuntime();
+                Metrics.gauge("memory.used").set(runtime.totalMemory() - runtime.freeMemory());
+                Metrics.gauge("memory.max").set(runtime.maxMemory());
+                return Metrics.format();
+            }
+
+            @Override
+            protected void onPostExecute(String text) {
+                super.onPostExecute(text);
+                tvMetrics.setText(text.isEmpty() ? getString(R.string.no_metrics) : text);
+            }
+        }.execute();
+    }
+
+    private void share() {
+        Map<String, String> info = new HashMap<>();
+        info.put("version", BuildConfig.VERSION_NAME + " (" + BuildConfig.VERSION_CODE + ")");
+        info.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        info.put("sdk", String.valueOf(Build.VERSION.SDK_INT));
+        info.put("store", BuildConfig.TIMESTAMP_STORE);
+
+        Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.app_name) + " " + getString(R.string.diagnostics));
+        intent.putExtra(Intent.EXTRA_TEXT, Metrics.toJson(info));
+        startActivity(Intent.createChooser(intent, getString(R.string.share_diagnostics)));
+    }
+}
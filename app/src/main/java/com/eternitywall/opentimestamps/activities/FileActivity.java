@@ -9,6 +9,7 @@ import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Environment;
 import android.provider.MediaStore;
+import android.provider.OpenableColumns;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
@@ -27,9 +28,16 @@ import com.eternitywall.opentimestamps.IOUtil;
 import com.eternitywall.opentimestamps.R;
 import com.eternitywall.opentimestamps.adapters.FolderAdapter;
 import com.eternitywall.opentimestamps.adapters.ItemAdapter;
-import com.eternitywall.opentimestamps.dbs.TimestampDBHelper;
+import com.eternitywall.opentimestamps.dbs.FileHashDBHelper;
+import com.eternitywall.opentimestamps.dbs.VerificationDBHelper;
+import com.eternitywall.opentimestamps.engines.HeaderStore;
+import com.eternitywall.opentimestamps.engines.StampingCoordinator;
+import com.eternitywall.opentimestamps.metrics.Metrics;
 import com.eternitywall.opentimestamps.models.Folder;
 import com.eternitywall.opentimestamps.models.Ots;
+import com.eternitywall.opentimestamps.models.Verification;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.opentimestamps.stores.TimestampStores;
 import com.eternitywall.ots.Calendar;
 import com.eternitywall.ots.DetachedTimestampFile;
 import com.eternitywall.ots.Hash;
@@ -51,6 +59,7 @@ import java.security.NoSuchAlgorithmException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.LinkedHashMap;
@@ -66,11 +75,17 @@ public class FileActivity extends AppCompatActivity {
     private LinkedHashMap<String,String> mDataset;
     private RecyclerView.LayoutManager mLayoutManager;
     ProgressBar mProgressBar;
+    // Reusable read buffer for hashing the shared files and streams
+    private final byte[] mBuffer = new byte[1024 * 1024];
 
-    TimestampDBHelper timestampDBHelper;
+    TimestampStore timestampStore;
+    FileHashDBHelper fileHashDBHelper;
+    VerificationDBHelper verificationDBHelper;
     ContentResolver mContentResolver;
     Timestamp timestamp;
-    DetachedTimestampFile ots;
+    // the serialized proof, of the file digest
+    byte[] ots;
+    byte[] digest;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -114,7 +129,9 @@ public class FileActivity extends AppCompatActivity {
         });
 
         // Check DB
-        timestampDBHelper = new TimestampDBHelper(this);
+        timestampStore = TimestampStores.get(this);
+        fileHashDBHelper = new FileHashDBHelper(this);
+        verificationDBHelper = new VerificationDBHelper(this);
 
         // Init content
         mContentResolver = getContentResolver();
@@ -145,44 +162,62 @@ public class FileActivity extends AppCompatActivity {
 
     private void load (final Uri uri) {
 
-        new AsyncTask<Void, Void, Boolean>() {
+        new AsyncTask<Void, Integer, Boolean>() {
             DetachedTimestampFile sha256;
             Long date;
+            long start;
 
             @Override
             protected Boolean doInBackground(Void... params) {
 
                 try {
-                    // Read file
-                    InputStream inputStream = mContentResolver.openInputStream(uri);
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    byte[] buffer = new byte[1024];
-                    int count = inputStream.read(buffer);
-                    while (count >= 0) {
-                        outputStream.write(buffer,0,count);
-                        count = inputStream.read(buffer);
-                    }
-
                     // Calculate Hash
-                    sha256 = DetachedTimestampFile.from(new OpSHA256(), outputStream.toByteArray() );
+                    sha256 = hashing(uri, new ProgressPublisher(uri) {
+                        @Override
+                        void publish(int percent) {
+                            publishProgress(percent);
+                        }
+                    });
                     Log.d("FILE", "HASH: "+IOUtil.bytesToHex(sha256.fileDigest()));
 
+                    // already verified, no need to load the proof
+                    Verification verification = verificationDBHelper.get(sha256.fileDigest());
+                    if (verification != null) {
+                        Metrics.counter("file.verification.cached").inc();
+                        Log.d("FILE", "VERIFIED: block " + verification.height);
+                        ots = verification.proof;
+                        date = verification.time;
+                        return true;
+                    }
+
                     // check hash into DB
-                    timestamp = timestampDBHelper.getTimestamp(sha256.fileDigest());
+                    timestamp = null;
+                    ots = null;
+                    if (timestampStore.contains(sha256.fileDigest())) {
+                        timestamp = timestampStore.getTimestamp(sha256.fileDigest());
+                    }
                     if(timestamp == null){
                         Log.d("FILE", "File not found");
                         return true;
                     }
                     Log.d("FILE", Timestamp.strTreeExtended(timestamp,0));
-                    ots = new DetachedTimestampFile(new OpSHA256(),timestamp);
+                    DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(),timestamp);
 
-                    // verify OTS
-                    date = OpenTimestamps.verify(ots, sha256);
+                    // verify OTS, on the local headers when they have the block
+                    date = verify(detached, sha256);
 
-                    // upgrade
+                    // upgrade, keeping the upgraded proof
                     if (date == null || date == 0){
-                        OpenTimestamps.upgrade(ots);
-                        date = OpenTimestamps.verify(ots, sha256);
+                        if (OpenTimestamps.upgrade(detached)) {
+                            timestampStore.addTimestamp(detached.getTimestamp());
+                        }
+                        date = verify(detached, sha256);
+                    }
+                    ots = detached.serialize();
+
+                    // the next time it's read from the cache
+                    if (date != null && date > 0) {
+                        verificationDBHelper.put(timestamp, date, ots);
                     }
 
                 } catch (FileNotFoundException e) {
@@ -204,13 +239,24 @@ public class FileActivity extends AppCompatActivity {
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
+                start = System.nanoTime();
+                mProgressBar.setIndeterminate(true);
                 mProgressBar.setVisibility(View.VISIBLE);
 
             }
 
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                super.onProgressUpdate(values);
+                mProgressBar.setIndeterminate(false);
+                mProgressBar.setProgress(values[0]);
+            }
+
             @Override
             protected void onPostExecute(Boolean success) {
                 super.onPostExecute(success);
+                // as the user waits, from the tap to the result
+                Metrics.timer("file.load").stop(start);
                 mProgressBar.setVisibility(View.GONE);
 
                 if(success==false){
@@ -219,81 +265,147 @@ public class FileActivity extends AppCompatActivity {
                             .setTitle(getString(R.string.warning))
                             .setMessage(getString(R.string.file_or_timestamp_error)+uri.getPath().toString())
                             .show();
-                } else if(timestamp == null){
-                    // not timestamped -> stamp
-                    stamp(uri);
+                } else if(ots == null){
+                    // not timestamped -> stamp the same hash
+                    stamp(uri, sha256);
                 } else {
-                    refresh(uri,sha256,timestamp,date);
+                    refresh(uri,sha256,date);
                 }
             }
         }.execute();
     }
 
-    private void stamp (final Uri uri) {
+    // Verify against the local block headers, the network only for the blocks not imported
+    private Long verify(DetachedTimestampFile detached, DetachedTimestampFile sha256) throws Exception {
+        long start = System.nanoTime();
+        Long date = HeaderStore.getInstance(this).verify(detached.getTimestamp());
+        if (date != null) {
+            Metrics.timer("file.verify.local").stop(start);
+            Log.d("FILE", "VERIFY: " + HeaderStore.getInstance(this));
+            return date;
+        }
+        date = OpenTimestamps.verify(detached, sha256);
+        Metrics.timer("file.verify.network").stop(start);
+        return date;
+    }
+
+    // Resolve the shared uri to a readable local file, if there is one
+    private File getFile(Uri uri) {
+        String path = null;
+        if ("file".equals(uri.getScheme())) {
+            path = uri.getPath();
+        } else if ("content".equals(uri.getScheme())) {
+            Cursor cursor = null;
+            try {
+                cursor = mContentResolver.query(uri, new String[]{MediaStore.MediaColumns.DATA}, null, null, null);
+                if (cursor != null && cursor.moveToFirst()) {
+                    path = cursor.getString(0);
+                }
+            } catch (Exception e) {
+                // the provider doesn't expose a file path
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        if (path == null) {
+            return null;
+        }
+        File file = new File(path);
+        if (!file.isFile() || !file.canRead()) {
+            return null;
+        }
+        return file;
+    }
+
+    // Hash the shared file chunk by chunk in the shared buffer: local files go through the cache,
+    // other streams are hashed directly
+    private DetachedTimestampFile hashing(Uri uri, IOUtil.ProgressListener listener) throws IOException, NoSuchAlgorithmException {
+        byte[] digest;
+        File file = getFile(uri);
+        synchronized (mBuffer) {
+            if (file != null) {
+                digest = fileHashDBHelper.getDigest(file, mBuffer, listener);
+            } else {
+                digest = IOUtil.readInputStreamSHA256(mContentResolver.openInputStream(uri), mBuffer, listener);
+            }
+        }
+        return new DetachedTimestampFile(new OpSHA256(), new Timestamp(digest));
+    }
+
+    // Size of the shared content, from the provider or the local file, -1 when unknown
+    private long getSize(Uri uri) {
+        Cursor cursor = null;
+        try {
+            cursor = mContentResolver.query(uri, new String[]{OpenableColumns.SIZE}, null, null, null);
+            if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+                return cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            // the provider doesn't expose the size
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        File file = getFile(uri);
+        return file != null ? file.length() : -1;
+    }
+
+    // Turn read bytes into percent updates, published only when the percent changes
+    private abstract class ProgressPublisher implements IOUtil.ProgressListener {
+        private final long size;
+        private int lastPercent = -1;
+
+        ProgressPublisher(Uri uri) {
+            size = getSize(uri);
+        }
 
+        @Override
+        public void onProgress(long countBytes) {
+            if (size <= 0) {
+                return;
+            }
+            int percent = (int) Math.min(100, countBytes * 100 / size);
+            if (percent != lastPercent) {
+                lastPercent = percent;
+                publish(percent);
+            }
+        }
+
+        abstract void publish(int percent);
+    }
+
+    // Stamp an already hashed file, then show its proof without reading the file again
+    private void stamp (final Uri uri, final DetachedTimestampFile sha256) {
+
+        // Waits for the stamping round, off the serial executor
         new AsyncTask<Void, Void, Boolean>() {
-            DetachedTimestampFile sha256;
 
             @Override
             protected Boolean doInBackground(Void... params) {
 
-                // Read file
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                // Stamp and store it in the next round, with the changes of the folders
                 try {
-                    InputStream inputStream = mContentResolver.openInputStream(uri);
-                    byte[] buffer = new byte[1024];
-                    int count = inputStream.read(buffer);
-                    while (count >= 0) {
-                        outputStream.write(buffer, 0, count);
-                        count = inputStream.read(buffer);
-                    }
+                    StampingCoordinator.Round round = StampingCoordinator.getInstance(FileActivity.this)
+                            .stamp(Collections.singletonList(sha256));
+                    Log.d("STAMP", "MERKLE: " + IOUtil.bytesToHex(round.tip) + " of " + round.countLeaves + " leaves");
                 } catch (Exception e) {
                     e.printStackTrace();
                     return false;
                 }
 
-                // Calculate Hash
-                final List<DetachedTimestampFile> fileTimestamps = new ArrayList<>();
-                try {
-                    sha256 = DetachedTimestampFile.from(new OpSHA256(), outputStream.toByteArray());
-                    Log.d("FILE", "HASH: " + IOUtil.bytesToHex(sha256.fileDigest()));
-                    fileTimestamps.add(sha256);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-
-                // Stamp the markled list
-                try {
-                    Timestamp merkleTip = OpenTimestamps.makeMerkleTree(fileTimestamps);
-                    byte[] hash = merkleTip.getDigest();
-                    Log.d("STAMP", "MERKLE: " + IOUtil.bytesToHex(hash));
-                    //private static Timestamp create(Timestamp timestamp, List<String> calendarUrls, Integer m, HashMap<String,String> privateCalendarUrls) {
-                    DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(),merkleTip);
-                    OpenTimestamps.stamp(detached);
-                    Log.d("STAMP", "OTS: " + IOUtil.bytesToHex(detached.serialize()));
-                    // Stamp proof info
-                    String info = OpenTimestamps.info(detached);
-                    Log.d("STAMP", "INFO: " + info);
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
-
-                // Store the timestamp
-                try {
-                    for (DetachedTimestampFile file : fileTimestamps) {
-                        timestampDBHelper.addTimestamp(file.getTimestamp());
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    return false;
-                }
+                // The stamped tree is the proof, it's pending until the calendars get it in a block
+                timestamp = sha256.getTimestamp();
+                ots = new DetachedTimestampFile(new OpSHA256(), timestamp).serialize();
                 return true;
             }
 
             @Override
             protected void onPreExecute() {
                 super.onPreExecute();
+                mProgressBar.setIndeterminate(true);
                 mProgressBar.setVisibility(View.VISIBLE);
             }
 
@@ -301,21 +413,30 @@ public class FileActivity extends AppCompatActivity {
             protected void onPostExecute(Boolean success) {
                 super.onPostExecute(success);
                 mProgressBar.setVisibility(View.GONE);
-                load(uri);
 
+                if(success==false){
+                    // generic error
+                    new AlertDialog.Builder(FileActivity.this)
+                            .setTitle(getString(R.string.warning))
+                            .setMessage(getString(R.string.file_or_timestamp_error)+uri.getPath().toString())
+                            .show();
+                } else {
+                    refresh(uri, sha256, null);
+                }
             }
-        }.execute();
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    public void refresh(Uri uri, DetachedTimestampFile hash, Timestamp timestamp, Long date){
+    public void refresh(Uri uri, DetachedTimestampFile hash, Long date){
+        digest = hash.fileDigest();
         mDataset.put(getString(R.string.name),uri.getLastPathSegment());
         mDataset.put(getString(R.string.uri),uri.toString());
         mDataset.put(getString(R.string.type),getMimeType(uri.toString()));
         mDataset.put(getString(R.string.hash), IOUtil.bytesToHex(hash.fileDigest()));
-        if(timestamp == null){
+        if(ots == null){
             mDataset.put(getString(R.string.ots_proof), getString(R.string.file_not_timestamped));
         } else {
-            mDataset.put(getString(R.string.ots_proof), IOUtil.bytesToHex(ots.serialize()));
+            mDataset.put(getString(R.string.ots_proof), IOUtil.bytesToHex(ots));
 
             if (date == null || date == 0) {
                 mDataset.put(getString(R.string.attestation), getString(R.string.pending_or_bad_attestation));
@@ -355,7 +476,7 @@ public class FileActivity extends AppCompatActivity {
 
     public void onSavingClick() {
 
-        String filename = Utils.bytesToHex(ots.fileDigest())+".ots";
+        String filename = Utils.bytesToHex(digest)+".ots";
         File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         String filepath = dir.getAbsolutePath()+"/"+filename;
         try {
@@ -364,16 +485,13 @@ public class FileActivity extends AppCompatActivity {
         } catch (IOException e) {
             e.printStackTrace();
             Toast.makeText(this, getString(R.string.file_proof_saving_error),Toast.LENGTH_LONG).show();
-        } catch (NoSuchAlgorithmException e) {
-            e.printStackTrace();
-            Toast.makeText(this,getString(R.string.file_proof_saving_error),Toast.LENGTH_LONG).show();
         }
     }
 
     public void onSharingClick() {
         Intent shareIntent = new Intent();
         shareIntent.setAction(Intent.ACTION_SEND);
-        shareIntent.putExtra(Intent.EXTRA_STREAM, ots.serialize());
+        shareIntent.putExtra(Intent.EXTRA_STREAM, ots);
         shareIntent.setType("text/plain");
         startActivity(Intent.createChooser(shareIntent, getString(R.string.share_proof_to)));
     }
@@ -384,7 +502,7 @@ public class FileActivity extends AppCompatActivity {
 
             @Override
             protected Boolean doInBackground(Void... params) {
-                String otsString = IOUtil.bytesToHex(ots.serialize());
+                String otsString = IOUtil.bytesToHex(ots);
                 String url = "https://opentimestamps.org/info.html?ots=";
                 url += otsString;
                 shortUrl = GoogleUrlShortener.shorten(url);
@@ -1,8 +1,11 @@
 package com.eternitywall.opentimestamps.activities;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.graphics.Region;
 import android.graphics.drawable.Drawable;
@@ -12,6 +15,7 @@ import android.os.Build;
 import android.os.Environment;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
+import android.support.v4.content.LocalBroadcastManager;
 import android.support.v7.app.AlertDialog;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
@@ -33,9 +37,16 @@ import com.eternitywall.opentimestamps.adapters.FolderAdapter;
 import com.eternitywall.opentimestamps.adapters.ItemAdapter;
 import com.eternitywall.opentimestamps.dbs.DBHelper;
 import com.eternitywall.opentimestamps.dbs.FolderDBHelper;
-import com.eternitywall.opentimestamps.dbs.TimestampDBHelper;
+import com.eternitywall.opentimestamps.dbs.VerificationDBHelper;
+import com.eternitywall.opentimestamps.engines.HeaderStore;
+import com.eternitywall.opentimestamps.engines.ImportEngine;
 import com.eternitywall.opentimestamps.models.Folder;
+import com.eternitywall.opentimestamps.models.Job;
 import com.eternitywall.opentimestamps.models.Ots;
+import com.eternitywall.opentimestamps.services.JobService;
+import com.eternitywall.opentimestamps.services.WatcherService;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.opentimestamps.stores.TimestampStores;
 import com.eternitywall.ots.DetachedTimestampFile;
 import com.eternitywall.ots.Hash;
 import com.eternitywall.ots.OpenTimestamps;
@@ -78,7 +89,7 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
     final int PERMISSION_EXTERNAL_STORAGE=100;
     Storage storage;
     FolderDBHelper dbHelper;
-    TimestampDBHelper timestampDBHelper;
+    TimestampStore timestampStore;
 
     private RecyclerView mRecyclerView;
     private FolderAdapter mAdapter;
@@ -110,6 +121,8 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
         horizontalDecoration.setDrawable(horizontalDivider);
         mRecyclerView.addItemDecoration(horizontalDecoration);
 
+        LocalBroadcastManager.getInstance(this).registerReceiver(jobReceiver, new IntentFilter(JobService.ACTION_PROGRESS));
+
         // check permission
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             checkPermission();
@@ -120,6 +133,12 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
     }
 
 
+    @Override
+    protected void onDestroy() {
+        LocalBroadcastManager.getInstance(this).unregisterReceiver(jobReceiver);
+        super.onDestroy();
+    }
+
     private void checkPermission() {
         if (ContextCompat.checkSelfPermission(this,
                 Manifest.permission.WRITE_EXTERNAL_STORAGE)
@@ -159,16 +178,19 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
         if (dbHelper == null) {
             dbHelper = new FolderDBHelper(this);
         }
-        if (timestampDBHelper == null){
-            timestampDBHelper = new TimestampDBHelper(this);
+        if (timestampStore == null){
+            timestampStore = TimestampStores.get(this);
         }
+        // the app tables, then the nodes through their store
         dbHelper.clearAll();
-        timestampDBHelper.clearAll();
+        timestampStore.clear();
 
         mFolders.clear();
         initDB();
         mAdapter.notifyDataSetChanged();
 
+        // The folders changed: watch the new ones
+        startService(new Intent(this, WatcherService.class));
 
     }
     private void initDB(){
@@ -232,15 +254,19 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
         if (mFolders.size()==0){
             initDB();
         }
-        timestampDBHelper = new TimestampDBHelper(this);
+        timestampStore = TimestampStores.get(this);
+
+        // Start watching the enabled folders
+        startService(new Intent(this, WatcherService.class));
 
         // Specify and fill adapter from db
         mAdapter = new FolderAdapter(this, mFolders);
         mAdapter.setOnItemClickListener(this);
         mRecyclerView.setAdapter(mAdapter);
 
-        // checking folders
-        checking();
+        // checking folders, the queue resumes the jobs left by a previous run
+        checking(false);
+        upgrading();
     }
 
     public boolean onCreateOptionsMenu(Menu menu) {
@@ -256,7 +282,7 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
 
         switch (item.getItemId()) {
             case R.id.action_check:
-                checking();
+                checking(true);
                 return true;
             case R.id.action_clear:
                 alert.setTitle(R.string.warning)
@@ -265,7 +291,7 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
                                 clearDB();
-                                checking();
+                                checking(false);
                             }
                         })
                         .setNegativeButton(getResources().getString(android.R.string.no), new DialogInterface.OnClickListener() {
@@ -277,13 +303,14 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
                         .show();
                 return true;
             case R.id.action_export:
-
+            case R.id.action_export_bundle:
+                final boolean bundle = (item.getItemId() == R.id.action_export_bundle);
                 alert.setTitle(R.string.warning)
                         .setMessage(R.string.are_you_sure_to_export_all_your_proof_files)
                         .setPositiveButton(getResources().getString(android.R.string.yes), new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                exporting();
+                                exporting(bundle);
                             }
                         })
                         .setNegativeButton(getResources().getString(android.R.string.no), new DialogInterface.OnClickListener() {
@@ -301,7 +328,7 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
                         .setPositiveButton(getResources().getString(android.R.string.yes), new DialogInterface.OnClickListener() {
                             @Override
                             public void onClick(DialogInterface dialog, int which) {
-                                showFileChooser();
+                                showFileChooser(FILE_SELECT_CODE);
                             }
                         })
                         .setNegativeButton(getResources().getString(android.R.string.no), new DialogInterface.OnClickListener() {
@@ -312,6 +339,12 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
                         })
                         .show();
                 return true;
+            case R.id.action_import_headers:
+                showFileChooser(HEADERS_SELECT_CODE);
+                return true;
+            case R.id.action_diagnostics:
+                startActivity(new Intent(this, DiagnosticsActivity.class));
+                return true;
             default:
                 return super.onOptionsItemSelected(item);
         }
@@ -341,6 +374,7 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
         Folder folder = mFolders.get(position);
         folder.enabled = true;
         dbHelper.update(folder);
+        startService(new Intent(this, WatcherService.class));
         //checking(folder);
     }
 
@@ -348,186 +382,69 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
     public void onDisableClick(View view, int position, long id) {
         mFolders.get(position).enabled = false;
         dbHelper.update(mFolders.get(position));
+        startService(new Intent(this, WatcherService.class));
     }
 
-    // checking files in all folders
-    private void checking(){
+    // checking files in all folders, a full check lists also the unchanged directories
+    private void checking(boolean full){
         for (Folder folder : mFolders){
-            checking(folder);
+            checking(folder, full);
         }
     }
 
     // checking files in a single folders
-    private void checking(final Folder folder){
+    private void checking(final Folder folder, final boolean full){
         if (!folder.isReady()){
             return;
         }
-        new AsyncTask<Void,Void,Boolean>() {
-
-            @Override
-            protected Boolean doInBackground(Void... params) {
-                List<File> files = folder.getNestedNotSyncedFiles(storage);
-                return files.size() <= 0;
-            }
-
-            @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-
-                folder.state = Folder.State.CHECKING;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-            }
-
-            @Override
-            protected void onPostExecute(Boolean isAllStamped) {
-                super.onPostExecute(isAllStamped);
-
-                if (folder.lastSync == 0 ){
-                    folder.state = Folder.State.NOTHING;
-                } else if (isAllStamped) {
-                    folder.state = Folder.State.STAMPED;
-                } else {
-                    folder.state = Folder.State.NOTUPDATED;
-                }
-
-                try {
-                    mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-                }catch (Exception e){
-                    e.printStackTrace();
-                }
-
-            }
-
-        }.execute();
+        folder.state = Folder.State.CHECKING;
+        mAdapter.notifyItemChanged(mFolders.indexOf(folder), FolderAdapter.PAYLOAD_PROGRESS);
+        JobService.enqueue(this, folder.id, Job.Type.SCAN, full);
     }
 
 
-    // Generate hashes of all files in a single folder
+    // Generate hashes of all files in a single folder, the stamp job follows
     private void hashing(final Folder folder) {
         if (!folder.isReady()){
             return;
         }
-        final List<DetachedTimestampFile> fileTimestamps = new ArrayList<>();
-
-        new AsyncTask<Void,Integer,Boolean>() {
-
-            @Override
-            protected Boolean doInBackground(Void... params) {
-                List<File> files = folder.getNestedNotSyncedFiles(storage);
-                int countFiles = 0;
-                for (File file : files) {
-                    countFiles++;
-                    publishProgress(countFiles);
-                    Log.d("STAMP", "FILE: "+file.getName());
-
-                    try {
-                        fileTimestamps.add(Ots.hashing(file));
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
-                }
-                return true;
-            }
-
-            @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-                folder.state = Folder.State.CHECKING;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-            }
-
-            @Override
-            protected void onPostExecute(Boolean aBoolean) {
-                super.onPostExecute(aBoolean);
-                if (aBoolean==false)
-                    return;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-                stamping(folder,fileTimestamps);
-            }
-
-            @Override
-            protected void onProgressUpdate(Integer... values) {
-                super.onProgressUpdate(values);
-                folder.countFiles = values[0];
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-            }
-        }.execute();
+        folder.state = Folder.State.CHECKING;
+        mAdapter.notifyItemChanged(mFolders.indexOf(folder), FolderAdapter.PAYLOAD_PROGRESS);
+        JobService.enqueue(this, folder.id, Job.Type.HASH, false);
     }
 
-    // Stamping pre-hashed files of a single folder
-    private void stamping(final Folder folder, final List<DetachedTimestampFile> fileTimestamps){
-
-        new AsyncTask<Void,Integer,Boolean>() {
-
-            @Override
-            protected Boolean doInBackground(Void... params) {
-                if(fileTimestamps == null || fileTimestamps.size() == 0){
-                    publishProgress(0);
-                    return true;
-                }
-
-                try {
-
-                    // Stamp the markled list
-                    Timestamp merkleTip = OpenTimestamps.makeMerkleTree(fileTimestamps);
-                    folder.hash = merkleTip.getDigest();
-                    Log.d("STAMP", "MERKLE: " + IOUtil.bytesToHex(folder.hash));
-                    //private static Timestamp create(Timestamp timestamp, List<String> calendarUrls, Integer m, HashMap<String,String> privateCalendarUrls) {
-                    DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(),merkleTip);
-                    OpenTimestamps.stamp(detached);
-                    folder.ots=detached.serialize();
-                    Log.d("STAMP", "OTS: " + IOUtil.bytesToHex(folder.ots));
-                    // Stamp proof info
-                    String info = OpenTimestamps.info(detached);
-                    Log.d("STAMP", "INFO: " + info);
-                }catch(Exception e){
-                    e.printStackTrace();
-                    return false;
-                }
-                // Save the ots
-                int countFiles = 0;
-                for (DetachedTimestampFile file : fileTimestamps) {
-                    countFiles++;
-                    publishProgress(countFiles);
-                    timestampDBHelper.addTimestamp(file.getTimestamp());
-                }
-                return true;
-            }
-
-            @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-                folder.state = Folder.State.STAMPING;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-            }
+    // Upgrade the pending proofs of all the folders
+    private void upgrading(){
+        JobService.enqueue(this, 0, Job.Type.UPGRADE, false);
+    }
 
-            @Override
-            protected void onPostExecute(Boolean aBoolean) {
-                super.onPostExecute(aBoolean);
-
-                if (aBoolean==false)
-                    return;
-                folder.state = Folder.State.STAMPED;
-                folder.lastSync = System.currentTimeMillis();
-                dbHelper.update(folder);
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
+    // Folder progress of the background jobs, at most a frame per folder from the ProgressBus:
+    // only the progress of the row is bound again
+    private final BroadcastReceiver jobReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (mFolders == null) {
+                return;
             }
-
-            @Override
-            protected void onProgressUpdate(Integer... values) {
-                super.onProgressUpdate(values);
-                folder.countFiles = values[0];
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
+            long folderId = intent.getLongExtra(JobService.EXTRA_FOLDER_ID, 0);
+            for (Folder folder : mFolders) {
+                if (folder.id == folderId) {
+                    folder.state = Folder.State.valueOf(intent.getStringExtra(JobService.EXTRA_STATE));
+                    folder.countFiles = intent.getLongExtra(JobService.EXTRA_COUNT_FILES, folder.countFiles);
+                    folder.lastSync = intent.getLongExtra(JobService.EXTRA_LAST_SYNC, folder.lastSync);
+                    mAdapter.notifyItemChanged(mFolders.indexOf(folder), FolderAdapter.PAYLOAD_PROGRESS);
+                }
             }
-        }.execute();
-    }
+        }
+    };
 
 
 
     // Import : open show file to choose wich import
     private static final int FILE_SELECT_CODE = 0;
+    private static final int HEADERS_SELECT_CODE = 1;
 
-    private void showFileChooser() {
+    private void showFileChooser(int requestCode) {
         Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
         intent.setType("*/*");
         intent.addCategory(Intent.CATEGORY_OPENABLE);
@@ -535,14 +452,14 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
         try {
             startActivityForResult(
                     Intent.createChooser(intent, getString(R.string.select_a_file_to_import)),
-                    FILE_SELECT_CODE);
+                    requestCode);
         } catch (android.content.ActivityNotFoundException ex) {
             try {
                 // Potentially direct the user to the Market with a Dialog
                 intent = new Intent("com.sec.android.app.myfiles.PICK_DATA");
                 intent.putExtra("CONTENT_TYPE", "*/*");
                 intent.addCategory(Intent.CATEGORY_DEFAULT);
-                startActivityForResult(intent, FILE_SELECT_CODE);
+                startActivityForResult(intent, requestCode);
             } catch (Exception ex1) {
                 Toast.makeText(this, R.string.please_install_a_file_manager, Toast.LENGTH_SHORT).show();
             }
@@ -556,160 +473,131 @@ public class MainActivity extends AppCompatActivity implements FolderAdapter.OnI
             case FILE_SELECT_CODE: {
                 if (resultCode == RESULT_OK){
                     Uri uri = data.getData();
-                    importing( uri.getPath() );
+                    importing(uri);
+                }
+                break;
+            }
+            case HEADERS_SELECT_CODE: {
+                if (resultCode == RESULT_OK){
+                    importingHeaders(data.getData());
                 }
+                break;
             }
         }
     }
 
-    private void importingZip(String filePath) throws IOException {
-        ZipFile zipFile = new ZipFile(filePath);
-        FileInputStream fin = new FileInputStream(filePath);
-        ZipInputStream zin = new ZipInputStream(fin);
-        ZipEntry ze = null;
-        while ((ze = zin.getNextEntry()) != null) {
-            Log.v("Decompress", "Unzipping " + ze.getName());
-            if (ze.isDirectory()) {
-            } else {
-                ZipEntry zipEntry = zipFile.getEntry(ze.getName());
-                byte[] bytes = new byte[(int) zipEntry.getSize()];
-                zin.read(bytes, 0, bytes.length);
-                DetachedTimestampFile detachedTimestampFile = null;
+    // Import a dump of block headers, to verify the proofs without the network
+    private void importingHeaders(final Uri uri) {
+        new AsyncTask<Void,Integer,Boolean>() {
+            HeaderStore headerStore = HeaderStore.getInstance(MainActivity.this);
+
+            @Override
+            protected Boolean doInBackground(Void... params) {
                 try {
-                    detachedTimestampFile = Ots.read(bytes);
-                    timestampDBHelper.addTimestamp(detachedTimestampFile.getTimestamp());
+                    InputStream inputStream = getContentResolver().openInputStream(uri);
+                    if (inputStream == null) {
+                        return false;
+                    }
+                    int countReorgs = headerStore.getCountReorgs();
+                    headerStore.importing(new BufferedInputStream(inputStream), new HeaderStore.Listener() {
+                        @Override
+                        public void onProgress(int countHeaders) {
+                            publishProgress(countHeaders);
+                        }
+                    });
+                    if (headerStore.getCountReorgs() > countReorgs) {
+                        // the cached verifications may be of dropped blocks
+                        new VerificationDBHelper(MainActivity.this).invalidateAll();
+                    }
                 } catch (Exception e) {
                     e.printStackTrace();
+                    return false;
                 }
-                zin.closeEntry();
+                Log.d("STAMP", "HEADERS: " + headerStore);
+                return true;
             }
-        }
-        zin.close();
-    }
-
-    private void importingOts(String filePath) throws Exception {
-
-        File file = new File(filePath);
-        DetachedTimestampFile detachedTimestampFile = Ots.read(file);
-        timestampDBHelper.addTimestamp(detachedTimestampFile.getTimestamp());
 
-    }
-    private void importing(String filePath) {
-        try{
-            // Zip file
-            ZipFile zipFile = new ZipFile(filePath);
-            importingZip(filePath);
-            Toast.makeText(MainActivity.this,getString(R.string.import_file_success),Toast.LENGTH_LONG).show();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-            Toast.makeText(MainActivity.this,getString(R.string.invalid_file_not_found),Toast.LENGTH_LONG).show();
-        } catch (ZipException e){
-
-            // Normal file
-            try {
-                // OTS proof file
-                importingOts(filePath);
-                Toast.makeText(MainActivity.this,getString(R.string.import_file_success),Toast.LENGTH_LONG).show();
-
-            } catch (Exception e1){
-                // Not OTS proof file
-                Toast.makeText(MainActivity.this,getString(R.string.invalid_file_not_ots_not_zip),Toast.LENGTH_LONG).show();
+            @Override
+            protected void onProgressUpdate(Integer... values) {
+                super.onProgressUpdate(values);
+                tvStatus.setVisibility(View.VISIBLE);
+                tvStatus.setText(getString(R.string.importing_headers, values[0]));
             }
 
-        } catch (IOException e){
-            e.printStackTrace();
-            Toast.makeText(MainActivity.this, getString(R.string.invalid_file_zip), Toast.LENGTH_LONG).show();
-        }
-    }
-
-    // Exporting all proof-files of all folders in a more zip file
-    private void exporting(){
-        for (Folder folder : mFolders){
-            exporting(folder, folder.zipPath(this));
-        }
+            @Override
+            protected void onPostExecute(Boolean success) {
+                super.onPostExecute(success);
+                tvStatus.setVisibility(View.GONE);
+                Toast.makeText(MainActivity.this, success ?
+                        getString(R.string.import_headers_success, headerStore.getEndHeight() - 1) :
+                        getString(R.string.invalid_headers), Toast.LENGTH_LONG).show();
+            }
+        }.execute();
     }
 
-    // Exporting all proof-files of a single folder in a one zip file
-    private void exporting(final Folder folder, final String zipFilePath){
-        if (!folder.isReady()){
-            return;
-        }
-
-        AsyncTask<Void,Integer,Boolean> asyncTask = new AsyncTask<Void,Integer,Boolean>() {
+    // Import the proofs of a content stream: zip of ots files, bundle or single ots
+    private void importing(final Uri uri) {
+        new AsyncTask<Void,Integer,Integer>() {
+            ImportEngine importEngine = new ImportEngine(timestampStore);
 
             @Override
-            protected Boolean doInBackground(Void... params) {
-
-                // check files
-                List<File> files = folder.getNestedFiles(storage);
-                if (files.size() == 0){
-                    return true;
-                }
-
-                ZipOutputStream out = null;
-                int countFiles = 0;
-
+            protected Integer doInBackground(Void... params) {
                 try {
-                    FileOutputStream dest = new FileOutputStream(zipFilePath);
-                    out = new ZipOutputStream(new BufferedOutputStream(dest));
+                    InputStream inputStream = getContentResolver().openInputStream(uri);
+                    if (inputStream == null) {
+                        return R.string.invalid_file_not_found;
+                    }
+                    importEngine.importing(inputStream, new ImportEngine.Listener() {
+                        @Override
+                        public void onProgress(int countEntries, long countBytes) {
+                            publishProgress(countEntries);
+                        }
+                    });
                 } catch (FileNotFoundException e) {
                     e.printStackTrace();
-                    return false;
-                }
-
-                try {
-                    for (File file : files) {
-
-                        Log.d("STAMP", "FILE: " + file.getName());
-                        DetachedTimestampFile sha256 = DetachedTimestampFile.from(new OpSHA256(), IOUtil.readFileSHA256(file));
-                        Timestamp stamp = timestampDBHelper.getTimestamp(sha256.fileDigest());
-                        String filename = IOUtil.bytesToHex(sha256.fileDigest()) + ".ots";
-                        DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(),stamp);
-                        Ots.write(out, detached,filename);
-
-                        countFiles++;
-                        publishProgress(countFiles);
-                    }
-
-                    out.close();
-
+                    return R.string.invalid_file_not_found;
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return importEngine.getFormat() == ImportEngine.Format.ZIP ? R.string.invalid_file_zip : R.string.invalid_file_not_ots_not_zip;
                 } catch (Exception e) {
+                    // Not OTS proof file
                     e.printStackTrace();
-                    try {
-                        out.close();
-                    } catch (IOException e1) {
-                        e1.printStackTrace();
-                    }
-                    return false;
+                    return R.string.invalid_file_not_ots_not_zip;
                 }
-
-                return true;
-
+                return R.string.import_file_success;
             }
 
             @Override
-            protected void onPreExecute() {
-                super.onPreExecute();
-                folder.state = Folder.State.EXPORTING;
-                folder.countFiles = 0;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
+            protected void onProgressUpdate(Integer... values) {
+                super.onProgressUpdate(values);
+                tvStatus.setVisibility(View.VISIBLE);
+                tvStatus.setText(getString(R.string.importing_proofs, values[0]));
             }
 
             @Override
-            protected void onPostExecute(Boolean result) {
-                super.onPostExecute(result);
-                folder.state = Folder.State.EXPORTED;
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
-
-            }
-            @Override
-            protected void onProgressUpdate(Integer... values) {
-                super.onProgressUpdate(values);
-                folder.countFiles = values[0];
-                mAdapter.notifyItemChanged(mFolders.indexOf(folder));
+            protected void onPostExecute(Integer message) {
+                super.onPostExecute(message);
+                tvStatus.setVisibility(View.GONE);
+                Toast.makeText(MainActivity.this, getString(message), Toast.LENGTH_LONG).show();
             }
-        };
+        }.execute();
+    }
 
-        asyncTask.execute();
+    // Exporting all proof-files of all folders in a more zip file, and in bundles if asked
+    private void exporting(boolean bundle){
+        for (Folder folder : mFolders){
+            exporting(folder, bundle);
+        }
+    }
+
+    // Exporting all proof-files of a single folder in a one zip file, and in a bundle if asked
+    private void exporting(final Folder folder, boolean bundle){
+        if (!folder.isReady()){
+            return;
+        }
+        folder.state = Folder.State.EXPORTING;
+        folder.countFiles = 0;
+        mAdapter.notifyItemChanged(mFolders.indexOf(folder), FolderAdapter.PAYLOAD_PROGRESS);
+        JobService.enqueue(this, folder.id, Job.Type.EXPORT, bundle);
     }
 }
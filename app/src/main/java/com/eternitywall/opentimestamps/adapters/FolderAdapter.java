@@ -17,15 +17,21 @@ import com.eternitywall.opentimestamps.R;
 import com.eternitywall.opentimestamps.models.Folder;
 
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class FolderAdapter extends RecyclerView.Adapter<FolderAdapter.ViewHolder> {
 
+    // Payload of a progress update: the count, the last sync or the state changed
+    public static final Object PAYLOAD_PROGRESS = new Object();
+
     List<Folder> mDataset = new ArrayList<>();
     OnItemClickListener mItemClickListener;
     Context mContext;
+    private final Map<Folder.State, Drawable.ConstantState> mStatusDrawables = new EnumMap<>(Folder.State.class);
 
 // Provide a reference to the views for each data item
 // Complex data items may need more than one view per item, and
@@ -36,6 +42,8 @@ public class FolderAdapter extends RecyclerView.Adapter<FolderAdapter.ViewHolder
         public TextView tvTitle,tvSubtitle;
         public ImageView ivStatus;
         public Switch swEnabled;
+        // state of the icon shown
+        Folder.State state;
         public ViewHolder(View v) {
             super(v);
             tvTitle = v.findViewById(R.id.tvTitle);
@@ -116,45 +124,77 @@ public class FolderAdapter extends RecyclerView.Adapter<FolderAdapter.ViewHolder
 
             holder.tvTitle.setText(folder.name);
             holder.swEnabled.setChecked(folder.enabled);
+            bindProgress(holder, folder);
+        }
 
-            if (folder.state == Folder.State.CHECKING){
-                holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.new_changed_files_found));
-            } else if (folder.state == Folder.State.STAMPING) {
-                holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.storing_proof_files));
-            } else if (folder.state == Folder.State.EXPORTING) {
-                String filepath = folder.zipPath(holder.itemView.getContext());
-                String filename = filepath.substring( filepath.lastIndexOf("/") );
-                holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.exporting_proof_files_at) + filename);
-            } else if (folder.state == Folder.State.NOTHING){
-                holder.tvSubtitle.setText(R.string.never_timestamped);
-            } else if (folder.state == Folder.State.STAMPED){
-                holder.tvSubtitle.setText(mContext.getString(R.string.last_timestamp_at)+" "+IOUtil.getDate(folder.lastSync,"dd/MM/yyyy hh:mm"));
-            } else if (folder.state == Folder.State.NOTUPDATED){
-                holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.new_changed_files_since)+IOUtil.getDate(folder.lastSync,"dd/MM/yyyy hh:mm"));
-            } else if (folder.state == Folder.State.EXPORTED){
-                holder.tvSubtitle.setText(folder.zipPath(holder.itemView.getContext()));
-            }
-
-            Drawable drawable = null;
-            if (folder.state == Folder.State.NOTHING) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_attention).mutate();
-            } else if (folder.state == Folder.State.NOTUPDATED) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_updating).mutate();
-            } else if (folder.state == Folder.State.STAMPED) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_timestamped).mutate();
-            } else if (folder.state == Folder.State.STAMPING) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_timestamping).mutate();
-            } else if (folder.state == Folder.State.CHECKING) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_updating).mutate();
-            } else if (folder.state == Folder.State.EXPORTING) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_exporting).mutate();
-            } else if (folder.state == Folder.State.EXPORTED) {
-                drawable = ContextCompat.getDrawable(mContext, R.drawable.ic_exporting).mutate();
-            }
-            holder.ivStatus.setImageDrawable(drawable);
+    }
+
+    // A progress payload rebinds only the text and the icon of a changed state
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position, List<Object> payloads) {
+        if (payloads.isEmpty() || !payloads.contains(PAYLOAD_PROGRESS)) {
+            onBindViewHolder(holder, position);
+            return;
+        }
+        synchronized (mDataset) {
+            bindProgress(holder, mDataset.get(position));
+        }
+    }
 
+    private void bindProgress(ViewHolder holder, Folder folder) {
+        if (folder.state == Folder.State.CHECKING){
+            holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.new_changed_files_found));
+        } else if (folder.state == Folder.State.STAMPING) {
+            holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.storing_proof_files));
+        } else if (folder.state == Folder.State.EXPORTING) {
+            String filepath = folder.zipPath(holder.itemView.getContext());
+            String filename = filepath.substring( filepath.lastIndexOf("/") );
+            holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.exporting_proof_files_at) + filename);
+        } else if (folder.state == Folder.State.NOTHING){
+            holder.tvSubtitle.setText(R.string.never_timestamped);
+        } else if (folder.state == Folder.State.STAMPED){
+            holder.tvSubtitle.setText(mContext.getString(R.string.last_timestamp_at)+" "+IOUtil.getDate(folder.lastSync,"dd/MM/yyyy hh:mm"));
+        } else if (folder.state == Folder.State.NOTUPDATED){
+            holder.tvSubtitle.setText(String.valueOf(folder.countFiles)+" "+mContext.getString(R.string.new_changed_files_since)+IOUtil.getDate(folder.lastSync,"dd/MM/yyyy hh:mm"));
+        } else if (folder.state == Folder.State.EXPORTED){
+            holder.tvSubtitle.setText(folder.zipPath(holder.itemView.getContext()));
         }
 
+        if (holder.state != folder.state) {
+            holder.ivStatus.setImageDrawable(getStatusDrawable(folder.state));
+            holder.state = folder.state;
+        }
+    }
+
+    // Icons of the states, loaded once and shared by the rows
+    private Drawable getStatusDrawable(Folder.State state) {
+        Drawable.ConstantState constantState = mStatusDrawables.get(state);
+        if (constantState != null) {
+            return constantState.newDrawable(mContext.getResources());
+        }
+        Drawable drawable = ContextCompat.getDrawable(mContext, getStatusIcon(state));
+        if (drawable.getConstantState() != null) {
+            mStatusDrawables.put(state, drawable.getConstantState());
+        }
+        return drawable;
+    }
+
+    private static int getStatusIcon(Folder.State state) {
+        switch (state) {
+            case NOTHING:
+                return R.drawable.ic_attention;
+            case NOTUPDATED:
+            case CHECKING:
+                return R.drawable.ic_updating;
+            case STAMPED:
+                return R.drawable.ic_timestamped;
+            case STAMPING:
+                return R.drawable.ic_timestamping;
+            case EXPORTING:
+            case EXPORTED:
+            default:
+                return R.drawable.ic_exporting;
+        }
     }
 
     public interface OnItemClickListener {
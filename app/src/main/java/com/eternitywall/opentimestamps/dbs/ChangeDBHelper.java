@@ -0,0 +1,118 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Change;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The journal of the changes of the folders, consumed by the stamps.
+ */
+
+public class ChangeDBHelper extends DBHelper {
+
+    // Over this size the journal of a folder is replaced by a rescan
+    public static final int MAX_CHANGES = 10000;
+
+    public ChangeDBHelper(Context context) {
+        super(context);
+    }
+
+    public long create(Change change) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_FOLDERID, change.folderId);
+            values.put(KEY_PATH, change.path);
+            values.put(KEY_EVENT, Change.eventToInt(change.event));
+            values.put(KEY_TIME, change.time);
+
+            long id = db.insert(TABLE_CHANGES, null, values);
+            change.id = id;
+            return id;
+        } finally {
+            Metrics.timer("db.Change.create").stop(start);
+        }
+    }
+
+    // Journal the need of a full scan, dropping the events it makes useless
+    public void rescan(long folderId) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                db.delete(TABLE_CHANGES, KEY_FOLDERID + " = ?", new String[] { String.valueOf(folderId) });
+                Change change = new Change();
+                change.folderId = folderId;
+                change.event = Change.Event.RESCAN;
+                change.time = System.currentTimeMillis();
+                create(change);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            Metrics.timer("db.Change.rescan").stop(start);
+        }
+    }
+
+    public long count(long folderId) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.queryNumEntries(db, TABLE_CHANGES, KEY_FOLDERID + " = ?",
+                    new String[] { String.valueOf(folderId) });
+        } finally {
+            Metrics.timer("db.Change.count").stop(start);
+        }
+    }
+
+    public List<Change> getByFolder(long folderId) {
+        long start = System.nanoTime();
+        try {
+            List<Change> changes = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor c = db.query(TABLE_CHANGES, null, KEY_FOLDERID + " = ?",
+                    new String[] { String.valueOf(folderId) }, null, null, KEY_ID);
+            try {
+                while (c.moveToNext()) {
+                    Change change = new Change();
+                    change.id = c.getLong(c.getColumnIndex(KEY_ID));
+                    change.folderId = c.getLong(c.getColumnIndex(KEY_FOLDERID));
+                    change.path = c.getString(c.getColumnIndex(KEY_PATH));
+                    change.event = Change.intToEvent(c.getInt(c.getColumnIndex(KEY_EVENT)));
+                    change.time = c.getLong(c.getColumnIndex(KEY_TIME));
+                    changes.add(change);
+                }
+            } finally {
+                c.close();
+            }
+            return changes;
+        } finally {
+            Metrics.timer("db.Change.getByFolder").stop(start);
+        }
+    }
+
+    // Remove the changes consumed by a stamp, newer ones are kept
+    public int deleteUntil(long folderId, long id) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            return db.delete(TABLE_CHANGES, KEY_FOLDERID + " = ? AND " + KEY_ID + " <= ?",
+                    new String[] { String.valueOf(folderId), String.valueOf(id) });
+        } finally {
+            Metrics.timer("db.Change.deleteUntil").stop(start);
+        }
+    }
+}
@@ -6,22 +6,35 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
+import com.eternitywall.opentimestamps.metrics.Metrics;
 import com.eternitywall.opentimestamps.models.Folder;
+import com.eternitywall.ots.StreamDeserializationContext;
 import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 
 public class DBHelper extends SQLiteOpenHelper {
 
     // Database
     protected static final String DATABASE_NAME = "opentimestamps.db";
-    protected static final int DATABASE_VERSION = 2;
+    protected static final int DATABASE_VERSION = 10;
 
     // Table Names
     protected static final String TABLE_FOLDERS = "folders";
     protected static final String TABLE_TIMESTAMPS = "timestamps";
+    protected static final String TABLE_FILES = "files";
+    protected static final String TABLE_DIRS = "dirs";
+    protected static final String TABLE_CHANGES = "changes";
+    protected static final String TABLE_JOBS = "jobs";
+    protected static final String TABLE_PENDINGS = "pendings";
+    protected static final String TABLE_VERIFICATIONS = "verifications";
 
     // Column names
     protected static final String KEY_ID = "id";
@@ -36,7 +49,33 @@ public class DBHelper extends SQLiteOpenHelper {
 
     protected static final String KEY_MSG = "msg";
     protected static final String KEY_SERIALIZE = "serialize";
-    protected static final String KEY_HASHCODE = "hashcode";
+    protected static final String KEY_ROWID = "rowid";
+
+    protected static final String KEY_PATH = "path";
+    protected static final String KEY_SIZE = "size";
+    protected static final String KEY_MTIME = "mtime";
+    protected static final String KEY_INODE = "inode";
+    protected static final String KEY_DIGEST = "digest";
+    protected static final String KEY_DIR = "dir";
+    protected static final String KEY_STAMPED = "stamped";
+    protected static final String KEY_PARENT = "parent";
+    protected static final String KEY_COUNTCHILDREN = "countChildren";
+    protected static final String KEY_FOLDERID = "folderId";
+    protected static final String KEY_EVENT = "event";
+    protected static final String KEY_TIME = "time";
+    protected static final String KEY_TYPE = "type";
+    protected static final String KEY_FULL = "full";
+    protected static final String KEY_PROGRESS = "progress";
+    protected static final String KEY_RETRIES = "retries";
+    protected static final String KEY_NOTBEFORE = "notBefore";
+    protected static final String KEY_ERROR = "error";
+    protected static final String KEY_URL = "url";
+    protected static final String KEY_NODEID = "nodeId";
+    protected static final String KEY_COMPLETED = "completed";
+    protected static final String KEY_HEIGHT = "height";
+    protected static final String KEY_ATTESTATION = "attestation";
+    protected static final String KEY_PROOF = "proof";
+    protected static final String KEY_VERIFIED = "verified";
 
 
     // table create statement
@@ -51,44 +90,292 @@ public class DBHelper extends SQLiteOpenHelper {
             " " + KEY_OTS + " ots BLOB, " +
             " " + KEY_HASH + " hash BLOB )";
 
+    // timestamps are keyed by the full message digest
     protected static final String SQL_CREATE_TIMESTAMPS = "CREATE TABLE " + TABLE_TIMESTAMPS + " (" +
+            " " + KEY_MSG + " BLOB PRIMARY KEY NOT NULL, " +
+            " " + KEY_SERIALIZE + " BLOB )";
+
+    protected static final String SQL_CREATE_FILES = "CREATE TABLE " + TABLE_FILES + " (" +
+            " " + KEY_ID + " INTEGER PRIMARY KEY," +
+            " " + KEY_PATH + " TEXT UNIQUE, " +
+            " " + KEY_SIZE + " LONG, " +
+            " " + KEY_MTIME + " LONG, " +
+            " " + KEY_INODE + " LONG, " +
+            " " + KEY_DIGEST + " BLOB, " +
+            " " + KEY_DIR + " TEXT, " +
+            " " + KEY_STAMPED + " INTEGER DEFAULT 0 )";
+
+    protected static final String SQL_CREATE_FILES_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_FILES + "_" + KEY_DIR +
+            " ON " + TABLE_FILES + " (" + KEY_DIR + ")";
+
+    // directory manifest of the last committed scan
+    protected static final String SQL_CREATE_DIRS = "CREATE TABLE " + TABLE_DIRS + " (" +
+            " " + KEY_ID + " INTEGER PRIMARY KEY," +
+            " " + KEY_PATH + " TEXT UNIQUE, " +
+            " " + KEY_PARENT + " TEXT, " +
+            " " + KEY_MTIME + " LONG, " +
+            " " + KEY_COUNTCHILDREN + " LONG )";
+
+    protected static final String SQL_CREATE_DIRS_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_DIRS + "_" + KEY_PARENT +
+            " ON " + TABLE_DIRS + " (" + KEY_PARENT + ")";
+
+    // journal of the file events seen by the watcher
+    protected static final String SQL_CREATE_CHANGES = "CREATE TABLE " + TABLE_CHANGES + " (" +
+            " " + KEY_ID + " INTEGER PRIMARY KEY," +
+            " " + KEY_FOLDERID + " LONG, " +
+            " " + KEY_PATH + " TEXT, " +
+            " " + KEY_EVENT + " INTEGER, " +
+            " " + KEY_TIME + " LONG )";
+
+    protected static final String SQL_CREATE_CHANGES_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_CHANGES + "_" + KEY_FOLDERID +
+            " ON " + TABLE_CHANGES + " (" + KEY_FOLDERID + ")";
+
+    // queue of the background work, with its checkpoint
+    protected static final String SQL_CREATE_JOBS = "CREATE TABLE " + TABLE_JOBS + " (" +
+            " " + KEY_ID + " INTEGER PRIMARY KEY," +
+            " " + KEY_FOLDERID + " LONG, " +
+            " " + KEY_TYPE + " INTEGER, " +
+            " " + KEY_FULL + " INTEGER, " +
+            " " + KEY_STATE + " INTEGER, " +
+            " " + KEY_PROGRESS + " LONG, " +
+            " " + KEY_RETRIES + " INTEGER, " +
+            " " + KEY_NOTBEFORE + " LONG, " +
+            " " + KEY_TIME + " LONG, " +
+            " " + KEY_ERROR + " TEXT )";
+
+    protected static final String SQL_CREATE_JOBS_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_JOBS + "_" + KEY_STATE +
+            " ON " + TABLE_JOBS + " (" + KEY_STATE + ")";
+
+    // index of the pending calendar commitments in the timestamps, looked up by msg
+    protected static final String SQL_CREATE_PENDINGS = "CREATE TABLE " + TABLE_PENDINGS + " (" +
             " " + KEY_ID + " INTEGER PRIMARY KEY," +
+            " " + KEY_URL + " TEXT, " +
             " " + KEY_MSG + " BLOB, " +
-            " " + KEY_HASHCODE + " INTEGER UNIQUE, " +
-            " " + KEY_SERIALIZE + " BLOB )";
+            " " + KEY_NODEID + " LONG, " +
+            " " + KEY_TIME + " LONG, " +
+            " " + KEY_COMPLETED + " INTEGER, " +
+            " UNIQUE (" + KEY_MSG + ", " + KEY_URL + ") )";
+
+    protected static final String SQL_CREATE_PENDINGS_INDEX = "CREATE INDEX IF NOT EXISTS " + TABLE_PENDINGS + "_" + KEY_COMPLETED +
+            " ON " + TABLE_PENDINGS + " (" + KEY_COMPLETED + ")";
+
+    protected static final String SQL_INSERT_PENDING = "INSERT OR IGNORE INTO " + TABLE_PENDINGS +
+            " (" + KEY_URL + ", " + KEY_MSG + ", " + KEY_NODEID + ", " + KEY_TIME + ", " + KEY_COMPLETED + ") VALUES (?, ?, ?, ?, 0)";
+
+    // verified proofs by leaf digest, dropped when the stored proof changes
+    protected static final String SQL_CREATE_VERIFICATIONS = "CREATE TABLE " + TABLE_VERIFICATIONS + " (" +
+            " " + KEY_DIGEST + " BLOB PRIMARY KEY," +
+            " " + KEY_TIME + " LONG, " +
+            " " + KEY_HEIGHT + " INTEGER, " +
+            " " + KEY_ATTESTATION + " BLOB, " +
+            " " + KEY_PROOF + " BLOB, " +
+            " " + KEY_COMPLETED + " INTEGER, " +
+            " " + KEY_VERIFIED + " LONG )";
+
+    protected static final String SQL_INVALIDATE_VERIFICATION = "DELETE FROM " + TABLE_VERIFICATIONS + " WHERE " + KEY_DIGEST + " = ?";
+    protected static final String SQL_INVALIDATE_PARTIAL_VERIFICATIONS = "DELETE FROM " + TABLE_VERIFICATIONS + " WHERE " + KEY_COMPLETED + " = 0";
+    protected static final String SQL_INVALIDATE_VERIFICATIONS = "DELETE FROM " + TABLE_VERIFICATIONS;
 
     // table delete statement
     protected static final String SQL_DELETE_FOLDERS = "DROP TABLE IF EXISTS " + TABLE_FOLDERS + " ";
     protected static final String SQL_DELETE_TIMESTAMPS = "DROP TABLE IF EXISTS " + TABLE_TIMESTAMPS + " ";
+    protected static final String SQL_DELETE_FILES = "DROP TABLE IF EXISTS " + TABLE_FILES + " ";
+    protected static final String SQL_DELETE_DIRS = "DROP TABLE IF EXISTS " + TABLE_DIRS + " ";
+    protected static final String SQL_DELETE_CHANGES = "DROP TABLE IF EXISTS " + TABLE_CHANGES + " ";
+    protected static final String SQL_DELETE_JOBS = "DROP TABLE IF EXISTS " + TABLE_JOBS + " ";
+    protected static final String SQL_DELETE_PENDINGS = "DROP TABLE IF EXISTS " + TABLE_PENDINGS + " ";
+    protected static final String SQL_DELETE_VERIFICATIONS = "DROP TABLE IF EXISTS " + TABLE_VERIFICATIONS + " ";
+
 
+    // The helpers of the process share one connection: the jobs thread, the stamping coordinator
+    // and the activities write through it in turn instead of failing on each other with SQLITE_BUSY
+    private static final Map<String, DBHelper> sShared = new HashMap<>();
+
+    private final Context context;
+    private final String databasePath;
 
     public DBHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+        this.databasePath = context.getDatabasePath(DATABASE_NAME).getPath();
+    }
+
+    // One helper by database file: opened with the application context, unless the context renames
+    // the database as the tests do
+    private static synchronized DBHelper getShared(Context context, String databasePath) {
+        DBHelper shared = sShared.get(databasePath);
+        if (shared == null) {
+            Context application = context.getApplicationContext();
+            boolean renamed = (application == null) ||
+                    !databasePath.equals(application.getDatabasePath(DATABASE_NAME).getPath());
+            shared = new DBHelper(renamed ? context : application);
+            sShared.put(databasePath, shared);
+        }
+        return shared;
+    }
+
+    @Override
+    public SQLiteDatabase getWritableDatabase() {
+        DBHelper shared = getShared(context, databasePath);
+        return (shared == this) ? super.getWritableDatabase() : shared.getWritableDatabase();
+    }
+
+    @Override
+    public SQLiteDatabase getReadableDatabase() {
+        DBHelper shared = getShared(context, databasePath);
+        return (shared == this) ? super.getReadableDatabase() : shared.getReadableDatabase();
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_FOLDERS);
         db.execSQL(SQL_CREATE_TIMESTAMPS);
+        db.execSQL(SQL_CREATE_FILES);
+        db.execSQL(SQL_CREATE_FILES_INDEX);
+        db.execSQL(SQL_CREATE_DIRS);
+        db.execSQL(SQL_CREATE_DIRS_INDEX);
+        db.execSQL(SQL_CREATE_CHANGES);
+        db.execSQL(SQL_CREATE_CHANGES_INDEX);
+        db.execSQL(SQL_CREATE_JOBS);
+        db.execSQL(SQL_CREATE_JOBS_INDEX);
+        db.execSQL(SQL_CREATE_PENDINGS);
+        db.execSQL(SQL_CREATE_PENDINGS_INDEX);
+        db.execSQL(SQL_CREATE_VERIFICATIONS);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // This database is only a cache for online data, so its upgrade policy is
-        // to simply to discard the data and start over
-        db.execSQL(SQL_DELETE_FOLDERS);
-        db.execSQL(SQL_DELETE_TIMESTAMPS);
-        onCreate(db);
+        if (oldVersion < 2) {
+            // Versions before 2 were only a cache for online data, so their upgrade policy is
+            // to simply to discard the data and start over
+            discard(db);
+            return;
+        }
+        // From version 2 on the stored proofs are kept, every step adds only the new tables
+        if (oldVersion < 3) {
+            db.execSQL(SQL_CREATE_FILES);
+        }
+        if (oldVersion < 4) {
+            // Rekey timestamps from the int hashcode to the full message digest
+            db.execSQL("ALTER TABLE " + TABLE_TIMESTAMPS + " RENAME TO " + TABLE_TIMESTAMPS + "_v3");
+            db.execSQL(SQL_CREATE_TIMESTAMPS);
+            db.execSQL("INSERT OR REPLACE INTO " + TABLE_TIMESTAMPS + " (" + KEY_MSG + ", " + KEY_SERIALIZE + ")" +
+                    " SELECT " + KEY_MSG + ", " + KEY_SERIALIZE + " FROM " + TABLE_TIMESTAMPS + "_v3" +
+                    " WHERE " + KEY_MSG + " IS NOT NULL ORDER BY " + KEY_ID);
+            db.execSQL("DROP TABLE " + TABLE_TIMESTAMPS + "_v3");
+        }
+        if (oldVersion < 5) {
+            if (oldVersion >= 3) {
+                // Parent directory of the cached files, the path up to the last '/'
+                db.execSQL("ALTER TABLE " + TABLE_FILES + " ADD COLUMN " + KEY_DIR + " TEXT");
+                db.execSQL("UPDATE " + TABLE_FILES + " SET " + KEY_DIR + " = rtrim(" + KEY_PATH + ", replace(" + KEY_PATH + ", '/', ''))");
+                db.execSQL("UPDATE " + TABLE_FILES + " SET " + KEY_DIR + " = substr(" + KEY_DIR + ", 1, length(" + KEY_DIR + ") - 1)");
+            }
+            db.execSQL(SQL_CREATE_FILES_INDEX);
+            db.execSQL(SQL_CREATE_DIRS);
+            db.execSQL(SQL_CREATE_DIRS_INDEX);
+        }
+        if (oldVersion < 6) {
+            db.execSQL(SQL_CREATE_CHANGES);
+            db.execSQL(SQL_CREATE_CHANGES_INDEX);
+        }
+        if (oldVersion < 7) {
+            db.execSQL(SQL_CREATE_JOBS);
+            db.execSQL(SQL_CREATE_JOBS_INDEX);
+        }
+        if (oldVersion < 8) {
+            db.execSQL(SQL_CREATE_PENDINGS);
+            db.execSQL(SQL_CREATE_PENDINGS_INDEX);
+            indexPendings(db);
+        }
+        if (oldVersion < 9) {
+            db.execSQL(SQL_CREATE_VERIFICATIONS);
+        }
+        if (oldVersion < 10 && oldVersion >= 3) {
+            // The cached digests are not known to be stamped, the next scan stamps them again
+            db.execSQL("ALTER TABLE " + TABLE_FILES + " ADD COLUMN " + KEY_STAMPED + " INTEGER DEFAULT 0");
+        }
+    }
+
+    // Fill the pendings index from the stored nodes, all left to check: the upgrade of a
+    // commitment already completed finds no news and marks it as completed
+    private void indexPendings(SQLiteDatabase db) {
+        long now = System.currentTimeMillis();
+        // a node starts with its count of attestations, skip the ones without
+        Cursor c = db.rawQuery("SELECT " + KEY_ROWID + ", " + KEY_MSG + ", " + KEY_SERIALIZE + " FROM " + TABLE_TIMESTAMPS +
+                " WHERE substr(" + KEY_SERIALIZE + ", 1, 1) != X'00'", null);
+        try {
+            while (c.moveToNext()) {
+                StreamDeserializationContext ctx = new StreamDeserializationContext(c.getBlob(2));
+                int count = ctx.readVaruint();
+                for (int i = 0; i < count; i++) {
+                    TimeAttestation attestation = TimeAttestation.deserialize(ctx);
+                    if (attestation instanceof PendingAttestation) {
+                        db.execSQL(SQL_INSERT_PENDING, new Object[] {
+                                new String(((PendingAttestation) attestation).getUri(), Charset.forName("UTF-8")),
+                                c.getBlob(1), c.getLong(0), now });
+                    }
+                }
+            }
+        } finally {
+            c.close();
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        onUpgrade(db, oldVersion, newVersion);
+        discard(db);
     }
 
-    public void clearAll() {
-        SQLiteDatabase db = this.getWritableDatabase();
+    private void discard(SQLiteDatabase db) {
         db.execSQL(SQL_DELETE_FOLDERS);
         db.execSQL(SQL_DELETE_TIMESTAMPS);
-        db.execSQL(SQL_CREATE_FOLDERS);
-        db.execSQL(SQL_CREATE_TIMESTAMPS);
+        db.execSQL(SQL_DELETE_FILES);
+        db.execSQL(SQL_DELETE_DIRS);
+        db.execSQL(SQL_DELETE_CHANGES);
+        db.execSQL(SQL_DELETE_JOBS);
+        db.execSQL(SQL_DELETE_PENDINGS);
+        db.execSQL(SQL_DELETE_VERIFICATIONS);
+        onCreate(db);
+    }
+
+    // The app tables, the node tables are cleared by the timestamp store of the engine in use
+    public void clearAll() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.execSQL(SQL_DELETE_FOLDERS);
+            db.execSQL(SQL_CREATE_FOLDERS);
+            db.execSQL(SQL_DELETE_VERIFICATIONS);
+            db.execSQL(SQL_CREATE_VERIFICATIONS);
+            // the files cache keeps the digests, its stamped marks are for the proofs dropped with the nodes
+            db.execSQL("UPDATE " + TABLE_FILES + " SET " + KEY_STAMPED + " = 0");
+            // the directory manifest is valid only for the stamps just dropped
+            db.execSQL(SQL_DELETE_DIRS);
+            db.execSQL(SQL_CREATE_DIRS);
+            db.execSQL(SQL_CREATE_DIRS_INDEX);
+            db.execSQL(SQL_DELETE_CHANGES);
+            db.execSQL(SQL_CREATE_CHANGES);
+            db.execSQL(SQL_CREATE_CHANGES_INDEX);
+            // the queued jobs refer to the dropped folders
+            db.execSQL(SQL_DELETE_JOBS);
+            db.execSQL(SQL_CREATE_JOBS);
+            db.execSQL(SQL_CREATE_JOBS_INDEX);
+        } finally {
+            Metrics.timer("db.clearAll").stop(start);
+        }
+    }
+
+    // The nodes and their pendings index
+    protected void clearTimestamps() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.execSQL(SQL_DELETE_TIMESTAMPS);
+            db.execSQL(SQL_CREATE_TIMESTAMPS);
+            db.execSQL(SQL_DELETE_PENDINGS);
+            db.execSQL(SQL_CREATE_PENDINGS);
+            db.execSQL(SQL_CREATE_PENDINGS_INDEX);
+        } finally {
+            Metrics.timer("db.clearTimestamps").stop(start);
+        }
     }
 
 }
\ No newline at end of file
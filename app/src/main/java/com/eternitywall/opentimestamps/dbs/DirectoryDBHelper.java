@@ -0,0 +1,159 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.engines.DirectoryScanner;
+import com.eternitywall.opentimestamps.models.Directory;
+import com.eternitywall.opentimestamps.models.FileHash;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The directory manifest: the scanned directories and the cached files below them.
+ */
+
+public class DirectoryDBHelper extends DBHelper implements DirectoryScanner.Manifest {
+
+
+    private static final String SQL_MARK_STAMPED = "UPDATE " + TABLE_FILES + " SET " + KEY_STAMPED + " = 1" +
+            " WHERE " + KEY_PATH + " = ? AND " + KEY_DIGEST + " = ?";
+
+    public DirectoryDBHelper(Context context) {
+        super(context);
+    }
+
+    public long createUpdate(Directory directory) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            return createUpdate(db, directory);
+        } finally {
+            Metrics.timer("db.Directory.createUpdate").stop(start);
+        }
+    }
+
+    private long createUpdate(SQLiteDatabase db, Directory directory) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_PATH, directory.path);
+        values.put(KEY_PARENT, directory.parent);
+        values.put(KEY_MTIME, directory.mtime);
+        values.put(KEY_COUNTCHILDREN, directory.countChildren);
+
+        long id = db.insertWithOnConflict(TABLE_DIRS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        directory.id = id;
+        return id;
+    }
+
+    @Override
+    public Directory getDirectory(String path) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor c = db.query(TABLE_DIRS, null, KEY_PATH + " = ?",
+                    new String[] { path }, null, null, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                return read(c);
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.Directory.getDirectory").stop(start);
+        }
+    }
+
+    @Override
+    public List<Directory> getSubdirectories(String path) {
+        long start = System.nanoTime();
+        try {
+            List<Directory> directories = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor c = db.query(TABLE_DIRS, null, KEY_PARENT + " = ?",
+                    new String[] { path }, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    directories.add(read(c));
+                }
+            } finally {
+                c.close();
+            }
+            return directories;
+        } finally {
+            Metrics.timer("db.Directory.getSubdirectories").stop(start);
+        }
+    }
+
+    @Override
+    public Map<String, FileHash> getFiles(String dir) {
+        long start = System.nanoTime();
+        try {
+            Map<String, FileHash> fileHashes = new HashMap<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor c = db.query(TABLE_FILES, null, KEY_DIR + " = ?",
+                    new String[] { dir }, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    FileHash fileHash = FileHashDBHelper.read(c);
+                    fileHashes.put(fileHash.path, fileHash);
+                }
+            } finally {
+                c.close();
+            }
+            return fileHashes;
+        } finally {
+            Metrics.timer("db.Directory.getFiles").stop(start);
+        }
+    }
+
+    // Store the scanned directories, forget the deleted entries and mark the stamped files, in one transaction
+    @Override
+    public void commit(DirectoryScanner.ChangeSet changes) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (Directory directory : changes.directories) {
+                    createUpdate(db, directory);
+                }
+                for (String path : changes.deletedDirectories) {
+                    db.delete(TABLE_DIRS, KEY_PATH + " = ?", new String[] { path });
+                }
+                for (String path : changes.deleted) {
+                    db.delete(TABLE_FILES, KEY_PATH + " = ?", new String[] { path });
+                }
+                // only the digest that was stamped, not one hashed again since
+                for (Map.Entry<String, byte[]> entry : changes.stamped.entrySet()) {
+                    db.execSQL(SQL_MARK_STAMPED, new Object[] { entry.getKey(), entry.getValue() });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            Metrics.timer("db.Directory.commit").stop(start);
+        }
+    }
+
+    private static Directory read(Cursor c) {
+        Directory directory = new Directory();
+        directory.id = c.getLong(c.getColumnIndex(KEY_ID));
+        directory.path = c.getString(c.getColumnIndex(KEY_PATH));
+        directory.parent = c.getString(c.getColumnIndex(KEY_PARENT));
+        directory.mtime = c.getLong(c.getColumnIndex(KEY_MTIME));
+        directory.countChildren = c.getLong(c.getColumnIndex(KEY_COUNTCHILDREN));
+        return directory;
+    }
+}
@@ -0,0 +1,155 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.IOUtil;
+import com.eternitywall.opentimestamps.models.FileHash;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files cache: the digest of each file by path, size, mtime and inode.
+ */
+
+public class FileHashDBHelper extends DBHelper {
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    public FileHashDBHelper(Context context) {
+        super(context);
+    }
+
+    public long createUpdate(FileHash fileHash) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_PATH, fileHash.path);
+            values.put(KEY_SIZE, fileHash.size);
+            values.put(KEY_MTIME, fileHash.mtime);
+            values.put(KEY_INODE, fileHash.inode);
+            values.put(KEY_DIGEST, fileHash.digest);
+            values.put(KEY_DIR, fileHash.dir);
+            values.put(KEY_STAMPED, fileHash.stamped ? 1 : 0);
+
+            long id = db.insertWithOnConflict(TABLE_FILES, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            fileHash.id = id;
+            return id;
+        } finally {
+            Metrics.timer("db.FileHash.createUpdate").stop(start);
+        }
+    }
+
+    public FileHash getByPath(String path) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Cursor c = db.query(TABLE_FILES, null, KEY_PATH + " = ?",
+                    new String[] { path }, null, null, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                return read(c);
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.FileHash.getByPath").stop(start);
+        }
+    }
+
+    // Cached rows of many files at once, by path
+    public Map<String, FileHash> getByPaths(List<String> paths) {
+        long start = System.nanoTime();
+        try {
+            Map<String, FileHash> fileHashes = new HashMap<>();
+            if (paths.isEmpty()) {
+                return fileHashes;
+            }
+            StringBuilder placeholders = new StringBuilder();
+            for (int i = 0; i < paths.size(); i++) {
+                placeholders.append(i == 0 ? "?" : ", ?");
+            }
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.query(TABLE_FILES, null, KEY_PATH + " IN (" + placeholders + ")",
+                    paths.toArray(new String[paths.size()]), null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    FileHash fileHash = read(c);
+                    fileHashes.put(fileHash.path, fileHash);
+                }
+            } finally {
+                c.close();
+            }
+            return fileHashes;
+        } finally {
+            Metrics.timer("db.FileHash.getByPaths").stop(start);
+        }
+    }
+
+    static FileHash read(Cursor c) {
+        FileHash fileHash = new FileHash();
+        fileHash.id = c.getLong(c.getColumnIndex(KEY_ID));
+        fileHash.path = c.getString(c.getColumnIndex(KEY_PATH));
+        fileHash.size = c.getLong(c.getColumnIndex(KEY_SIZE));
+        fileHash.mtime = c.getLong(c.getColumnIndex(KEY_MTIME));
+        fileHash.inode = c.getLong(c.getColumnIndex(KEY_INODE));
+        fileHash.digest = c.getBlob(c.getColumnIndex(KEY_DIGEST));
+        fileHash.dir = c.getString(c.getColumnIndex(KEY_DIR));
+        fileHash.stamped = (c.getInt(c.getColumnIndex(KEY_STAMPED)) == 1);
+        return fileHash;
+    }
+
+    public int delete(String path) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            return db.delete(TABLE_FILES, KEY_PATH + " = ?", new String[] { path });
+        } finally {
+            Metrics.timer("db.FileHash.delete").stop(start);
+        }
+    }
+
+    // Get the SHA256 of the file content: read it from the cache when path, size, mtime and inode
+    // are unchanged, otherwise hash the file and refresh the cache
+    public byte[] getDigest(File file) throws IOException, NoSuchAlgorithmException {
+        return getDigest(file, null, null);
+    }
+
+    // The same, hashing through a caller buffer and reporting the bytes read: without a buffer one
+    // is allocated only when the file has to be read, a cache hit allocates nothing
+    public byte[] getDigest(File file, byte[] buffer, IOUtil.ProgressListener listener) throws IOException, NoSuchAlgorithmException {
+        long start = System.nanoTime();
+        try {
+            FileHash current = FileHash.from(file);
+            FileHash cached = getByPath(current.path);
+            if (cached != null && cached.digest != null && cached.isSame(current)) {
+                return cached.digest;
+            }
+
+            if (buffer == null) {
+                buffer = new byte[BUFFER_SIZE];
+            }
+            current.digest = IOUtil.readFileSHA256(file, buffer, listener);
+            // Don't cache a digest of a file that was written while hashing it
+            if (current.isSame(FileHash.from(file))) {
+                createUpdate(current);
+            }
+            return current.digest;
+        } finally {
+            Metrics.timer("db.FileHash.getDigest").stop(start);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The persistent job queue, drained by JobService.
+ */
+
+public class JobDBHelper extends DBHelper {
+
+    // A failing job is retried after 30s, 1m, 2m, 4m, 8m and then given up
+    public static final int MAX_RETRIES = 5;
+    public static final long RETRY_DELAY = 30 * 1000;
+
+    public JobDBHelper(Context context) {
+        super(context);
+    }
+
+    // Queue a job, unless the same work is already waiting or running
+    public synchronized Job enqueue(long folderId, Job.Type type, boolean full) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                Job job = getActive(folderId, type);
+                if (job == null) {
+                    job = new Job();
+                    job.folderId = folderId;
+                    job.type = type;
+                    job.full = full;
+                    job.time = System.currentTimeMillis();
+                    job.id = db.insert(TABLE_JOBS, null, toValues(job));
+                } else if (full && !job.full && job.state == Job.State.PENDING) {
+                    job.full = true;
+                    update(job);
+                }
+                db.setTransactionSuccessful();
+                return job;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            Metrics.timer("db.Job.enqueue").stop(start);
+        }
+    }
+
+    // Take the oldest pending job that can run now, marking it as running
+    public synchronized Job next() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                Cursor c = db.query(TABLE_JOBS, null,
+                        KEY_STATE + " = ? AND " + KEY_NOTBEFORE + " <= ?",
+                        new String[] { String.valueOf(Job.stateToInt(Job.State.PENDING)), String.valueOf(System.currentTimeMillis()) },
+                        null, null, KEY_ID, "1");
+                Job job = null;
+                try {
+                    if (c.moveToFirst()) {
+                        job = read(c);
+                    }
+                } finally {
+                    c.close();
+                }
+                if (job != null) {
+                    job.state = Job.State.RUNNING;
+                    update(job);
+                }
+                db.setTransactionSuccessful();
+                return job;
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            Metrics.timer("db.Job.next").stop(start);
+        }
+    }
+
+    // The time of the next delayed job, 0 when nothing is waiting
+    public long nextRetry() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.rawQuery("SELECT MIN(" + KEY_NOTBEFORE + ") FROM " + TABLE_JOBS + " WHERE " + KEY_STATE + " = ?",
+                    new String[] { String.valueOf(Job.stateToInt(Job.State.PENDING)) });
+            try {
+                return c.moveToFirst() ? c.getLong(0) : 0;
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.Job.nextRetry").stop(start);
+        }
+    }
+
+    public Job getActive(long folderId, Job.Type type) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.query(TABLE_JOBS, null,
+                    KEY_FOLDERID + " = ? AND " + KEY_TYPE + " = ? AND " + KEY_STATE + " IN (?, ?)",
+                    new String[] { String.valueOf(folderId), String.valueOf(Job.typeToInt(type)),
+                            String.valueOf(Job.stateToInt(Job.State.PENDING)), String.valueOf(Job.stateToInt(Job.State.RUNNING)) },
+                    null, null, KEY_ID, "1");
+            try {
+                return c.moveToFirst() ? read(c) : null;
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.Job.getActive").stop(start);
+        }
+    }
+
+    public List<Job> getActive() {
+        long start = System.nanoTime();
+        try {
+            List<Job> jobs = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.query(TABLE_JOBS, null, KEY_STATE + " IN (?, ?)",
+                    new String[] { String.valueOf(Job.stateToInt(Job.State.PENDING)), String.valueOf(Job.stateToInt(Job.State.RUNNING)) },
+                    null, null, KEY_ID);
+            try {
+                while (c.moveToNext()) {
+                    jobs.add(read(c));
+                }
+            } finally {
+                c.close();
+            }
+            return jobs;
+        } finally {
+            Metrics.timer("db.Job.getActive").stop(start);
+        }
+    }
+
+    // Save the progress of a running job, to resume from it after a kill
+    public void checkpoint(Job job, long progress) {
+        long start = System.nanoTime();
+        try {
+            job.progress = progress;
+            update(job);
+        } finally {
+            Metrics.timer("db.Job.checkpoint").stop(start);
+        }
+    }
+
+    public void done(Job job) {
+        long start = System.nanoTime();
+        try {
+            job.state = Job.State.DONE;
+            job.error = null;
+            update(job);
+        } finally {
+            Metrics.timer("db.Job.done").stop(start);
+        }
+    }
+
+    // Put back a failed job with an exponential delay, up to MAX_RETRIES
+    public void fail(Job job, String error) {
+        long start = System.nanoTime();
+        try {
+            job.error = error;
+            if (job.retries >= MAX_RETRIES) {
+                job.state = Job.State.FAILED;
+            } else {
+                job.state = Job.State.PENDING;
+                job.notBefore = System.currentTimeMillis() + (RETRY_DELAY << job.retries);
+                job.retries++;
+            }
+            update(job);
+        } finally {
+            Metrics.timer("db.Job.fail").stop(start);
+        }
+    }
+
+    // The jobs running when the process was killed start again, from their checkpoint
+    public int resume() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            ContentValues values = new ContentValues();
+            values.put(KEY_STATE, Job.stateToInt(Job.State.PENDING));
+            return db.update(TABLE_JOBS, values, KEY_STATE + " = ?",
+                    new String[] { String.valueOf(Job.stateToInt(Job.State.RUNNING)) });
+        } finally {
+            Metrics.timer("db.Job.resume").stop(start);
+        }
+    }
+
+    // Forget the finished jobs
+    public int purge() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            return db.delete(TABLE_JOBS, KEY_STATE + " IN (?, ?)",
+                    new String[] { String.valueOf(Job.stateToInt(Job.State.DONE)), String.valueOf(Job.stateToInt(Job.State.FAILED)) });
+        } finally {
+            Metrics.timer("db.Job.purge").stop(start);
+        }
+    }
+
+    private int update(Job job) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        return db.update(TABLE_JOBS, toValues(job), KEY_ID + " = ?",
+                new String[] { String.valueOf(job.id) });
+    }
+
+    private static ContentValues toValues(Job job) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_FOLDERID, job.folderId);
+        values.put(KEY_TYPE, Job.typeToInt(job.type));
+        values.put(KEY_FULL, (job.full) ? 1 : 0);
+        values.put(KEY_STATE, Job.stateToInt(job.state));
+        values.put(KEY_PROGRESS, job.progress);
+        values.put(KEY_RETRIES, job.retries);
+        values.put(KEY_NOTBEFORE, job.notBefore);
+        values.put(KEY_TIME, job.time);
+        values.put(KEY_ERROR, job.error);
+        return values;
+    }
+
+    private static Job read(Cursor c) {
+        Job job = new Job();
+        job.id = c.getLong(c.getColumnIndex(KEY_ID));
+        job.folderId = c.getLong(c.getColumnIndex(KEY_FOLDERID));
+        job.type = Job.intToType(c.getInt(c.getColumnIndex(KEY_TYPE)));
+        job.full = (c.getInt(c.getColumnIndex(KEY_FULL)) == 1);
+        job.state = Job.intToState(c.getInt(c.getColumnIndex(KEY_STATE)));
+        job.progress = c.getLong(c.getColumnIndex(KEY_PROGRESS));
+        job.retries = c.getInt(c.getColumnIndex(KEY_RETRIES));
+        job.notBefore = c.getLong(c.getColumnIndex(KEY_NOTBEFORE));
+        job.time = c.getLong(c.getColumnIndex(KEY_TIME));
+        job.error = c.getString(c.getColumnIndex(KEY_ERROR));
+        return job;
+    }
+}
@@ -0,0 +1,85 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Pending;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The pendings index is written by TimestampDBHelper with the nodes, here it is only read.
+ */
+
+public class PendingDBHelper extends DBHelper {
+
+    public PendingDBHelper(Context context) {
+        super(context);
+    }
+
+    // Commitments still waiting for a bitcoin attestation, oldest first
+    public List<Pending> getPending() {
+        return get(KEY_COMPLETED + " = 0");
+    }
+
+    public List<Pending> getAll() {
+        return get(null);
+    }
+
+    public long countPending() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.queryNumEntries(db, TABLE_PENDINGS, KEY_COMPLETED + " = 0");
+        } finally {
+            Metrics.timer("db.Pending.countPending").stop(start);
+        }
+    }
+
+    public long countCompleted() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.queryNumEntries(db, TABLE_PENDINGS, KEY_COMPLETED + " = 1");
+        } finally {
+            Metrics.timer("db.Pending.countCompleted").stop(start);
+        }
+    }
+
+    // Whether a message is a commitment still pending on some calendar
+    public boolean isPending(byte[] msg) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            return DatabaseUtils.queryNumEntries(db, TABLE_PENDINGS,
+                    KEY_MSG + " = " + SerializedTimestampDBHelper.toBlobLiteral(msg) + " AND " + KEY_COMPLETED + " = 0") > 0;
+        } finally {
+            Metrics.timer("db.Pending.isPending").stop(start);
+        }
+    }
+
+    private List<Pending> get(String selection) {
+        List<Pending> pendings = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        Cursor c = db.query(TABLE_PENDINGS, null, selection, null, null, null, KEY_TIME + ", " + KEY_ID);
+        try {
+            while (c.moveToNext()) {
+                Pending pending = new Pending();
+                pending.id = c.getLong(c.getColumnIndex(KEY_ID));
+                pending.url = c.getString(c.getColumnIndex(KEY_URL));
+                pending.msg = c.getBlob(c.getColumnIndex(KEY_MSG));
+                pending.nodeId = c.getLong(c.getColumnIndex(KEY_NODEID));
+                pending.time = c.getLong(c.getColumnIndex(KEY_TIME));
+                pending.completed = (c.getInt(c.getColumnIndex(KEY_COMPLETED)) == 1);
+                pendings.add(pending);
+            }
+        } finally {
+            c.close();
+        }
+        return pendings;
+    }
+}
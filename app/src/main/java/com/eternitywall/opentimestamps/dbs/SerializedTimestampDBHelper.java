@@ -4,12 +4,17 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.BloomFilter;
 import com.eternitywall.opentimestamps.models.SerializedTimestamp;
 import com.eternitywall.ots.StreamDeserializationContext;
 import com.eternitywall.ots.StreamSerializationContext;
 import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
 import com.eternitywall.ots.attestation.TimeAttestation;
 import com.eternitywall.ots.op.Op;
 
@@ -24,132 +29,240 @@ import java.util.Map;
 
 public class SerializedTimestampDBHelper extends DBHelper {
 
+    protected static final String SQL_REPLACE_TIMESTAMP = "INSERT OR REPLACE INTO " + TABLE_TIMESTAMPS +
+            " (" + KEY_MSG + ", " + KEY_SERIALIZE + ") VALUES (?, ?)";
+
+    protected static final String SQL_SELECT_TIMESTAMPS = "SELECT " + KEY_ROWID + " AS " + KEY_ID + ", " +
+            KEY_MSG + ", " + KEY_SERIALIZE + " FROM " + TABLE_TIMESTAMPS;
+
+
+    protected static final String SQL_CONTAINS_TIMESTAMP = "SELECT COUNT(*) FROM " + TABLE_TIMESTAMPS +
+            " WHERE " + KEY_MSG + " = ?";
+
+    // Min size of the bloom filter, to leave room for new stamps
+    private static final int MIN_BLOOM_ITEMS = 100000;
+
+    // Filter on all the stored messages, shared by every helper.
+    // Writes are added as soon as it exists, lookups use it once warmed.
+    private static volatile BloomFilter sBloomFilter;
+    private static volatile boolean sBloomFilterWarmed = false;
+
+    private SQLiteStatement mContainsStatement;
+
 
     public SerializedTimestampDBHelper(Context context) {
         super(context);
     }
 
+    // Load all the stored messages in the bloom filter
+    public void warmUp() {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            long count = DatabaseUtils.queryNumEntries(db, TABLE_TIMESTAMPS);
+            BloomFilter bloomFilter = new BloomFilter((int) Math.max(count * 2, MIN_BLOOM_ITEMS));
+            sBloomFilterWarmed = false;
+            sBloomFilter = bloomFilter;
+
+            Cursor c = db.rawQuery("SELECT " + KEY_MSG + " FROM " + TABLE_TIMESTAMPS, null);
+            try {
+                while (c.moveToNext()) {
+                    bloomFilter.add(c.getBlob(0));
+                }
+            } finally {
+                c.close();
+            }
+            sBloomFilterWarmed = true;
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.warmUp").stop(start);
+        }
+    }
+
+    // Check if a message is stored: the bloom filter rejects most of the missing ones,
+    // the others are checked on the primary key index
+    public boolean contains(byte[] msg) {
+        long start = System.nanoTime();
+        try {
+            BloomFilter bloomFilter = sBloomFilter;
+            if (sBloomFilterWarmed && bloomFilter != null && !bloomFilter.mightContain(msg)) {
+                return false;
+            }
+            synchronized (this) {
+                if (mContainsStatement == null) {
+                    mContainsStatement = this.getReadableDatabase().compileStatement(SQL_CONTAINS_TIMESTAMP);
+                }
+                mContainsStatement.bindBlob(1, msg);
+                return mContainsStatement.simpleQueryForLong() > 0;
+            }
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.contains").stop(start);
+        }
+    }
+
+    private static void addToBloomFilter(byte[] msg) {
+        BloomFilter bloomFilter = sBloomFilter;
+        if (bloomFilter != null && msg != null) {
+            bloomFilter.add(msg);
+        }
+    }
+
+    @Override
+    protected void clearTimestamps() {
+        long start = System.nanoTime();
+        try {
+            super.clearTimestamps();
+            sBloomFilter = new BloomFilter(MIN_BLOOM_ITEMS);
+            sBloomFilterWarmed = true;
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.clearTimestamps").stop(start);
+        }
+    }
+
 
     public long createUpdate(SerializedTimestamp stamp) {
-        SQLiteDatabase db = this.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(KEY_MSG, stamp.msg);
-        values.put(KEY_SERIALIZE, stamp.serialized);
-        values.put(KEY_HASHCODE, stamp.getHashcode());
-
-        int id = (int) db.insertWithOnConflict(TABLE_TIMESTAMPS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-        if (id == -1) {
-            return db.update(TABLE_TIMESTAMPS, values, KEY_ID + " = ?",
-                    new String[] { String.valueOf(stamp.id) });
-        } else {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_MSG, stamp.msg);
+            values.put(KEY_SERIALIZE, stamp.serialized);
+
+            long id = db.insertWithOnConflict(TABLE_TIMESTAMPS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            addToBloomFilter(stamp.msg);
             stamp.id = id;
+            return id;
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.createUpdate").stop(start);
         }
+    }
+
+    // Insert or replace through a compiled statement, to be reused inside a transaction
+    protected long replace(SQLiteStatement statement, SerializedTimestamp stamp) {
+        statement.clearBindings();
+        statement.bindBlob(1, stamp.msg);
+        statement.bindBlob(2, stamp.serialized);
+        long id = statement.executeInsert();
+        addToBloomFilter(stamp.msg);
+        stamp.id = id;
         return id;
     }
 
     public long create(SerializedTimestamp stamp) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_MSG, stamp.msg);
-        values.put(KEY_SERIALIZE, stamp.serialized);
-        values.put(KEY_HASHCODE, stamp.getHashcode());
+            ContentValues values = new ContentValues();
+            values.put(KEY_MSG, stamp.msg);
+            values.put(KEY_SERIALIZE, stamp.serialized);
 
-        // insert row
-        long id = db.insert(TABLE_TIMESTAMPS, null, values);
-        stamp.id = id;
-        return id;
+            // insert row
+            long id = db.insert(TABLE_TIMESTAMPS, null, values);
+            addToBloomFilter(stamp.msg);
+            stamp.id = id;
+            return id;
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.create").stop(start);
+        }
     }
 
     public SerializedTimestamp get(long id) {
-        SQLiteDatabase db = this.getReadableDatabase();
-
-        String selectQuery = "SELECT  * FROM " + TABLE_TIMESTAMPS + " WHERE "
-                + KEY_ID + " = " + id;
-
-        Cursor c = db.rawQuery(selectQuery, null);
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
 
-        if (c != null)
-            c.moveToFirst();
+            String selectQuery = SQL_SELECT_TIMESTAMPS + " WHERE "
+                    + KEY_ROWID + " = " + id;
 
-        SerializedTimestamp stamp = new SerializedTimestamp();
-        stamp.id = c.getInt(c.getColumnIndex(KEY_ID));
-        stamp.msg = c.getBlob(c.getColumnIndex(KEY_MSG));
-        stamp.serialized = c.getBlob(c.getColumnIndex(KEY_SERIALIZE));
-        c.close();
-        return stamp;
+            Cursor c = db.rawQuery(selectQuery, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                return read(c);
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.get").stop(start);
+        }
     }
 
-    public SerializedTimestamp getByHashcode(int hashcode) throws Exception{
-        SQLiteDatabase db = this.getReadableDatabase();
+    // Lookup by the full message digest, through the primary key index
+    public SerializedTimestamp getByMsg(byte[] msg) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
 
-        String selectQuery = "SELECT  * FROM " + TABLE_TIMESTAMPS + " WHERE "
-                + KEY_HASHCODE + " = " + hashcode;
+            String selectQuery = SQL_SELECT_TIMESTAMPS + " WHERE "
+                    + KEY_MSG + " = " + toBlobLiteral(msg);
 
-        try {
             Cursor c = db.rawQuery(selectQuery, null);
-            if (c == null || c.getCount() == 0){
-                throw new Exception("Not found");
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                return read(c);
+            } finally {
+                c.close();
             }
-
-            c.moveToFirst();
-            SerializedTimestamp stamp = new SerializedTimestamp();
-            stamp.id = c.getInt(c.getColumnIndex(KEY_ID));
-            stamp.msg = c.getBlob(c.getColumnIndex(KEY_MSG));
-            stamp.serialized = c.getBlob(c.getColumnIndex(KEY_SERIALIZE));
-            c.close();
-            return stamp;
-
-        } catch (Exception e){
-            e.printStackTrace();
-            throw new Exception("Not found");
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.getByMsg").stop(start);
         }
     }
 
     public boolean getFromMsg(byte[] msg){
-        boolean found=false;
-        List<SerializedTimestamp> stamps = getAll();
-        for (SerializedTimestamp stamp : stamps){
-            if (Arrays.equals(msg,stamp.msg)){
-                found =true;
-            }
-        }
-        return found;
+        return contains(msg);
     }
 
     public List<SerializedTimestamp> getAll() {
-        List<SerializedTimestamp> stamps = new ArrayList<>();
-        String selectQuery = "SELECT  * FROM " + TABLE_TIMESTAMPS;
-
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor c = db.rawQuery(selectQuery, null);
-
-        // looping through all rows and adding to list
-        if (c.moveToFirst()) {
-            do {
-                SerializedTimestamp stamp = new SerializedTimestamp();
-                stamp.id = c.getInt(c.getColumnIndex(KEY_ID));
-                stamp.msg = c.getBlob(c.getColumnIndex(KEY_MSG));
-                stamp.serialized = c.getBlob(c.getColumnIndex(KEY_SERIALIZE));
-                stamps.add(stamp);
-            } while (c.moveToNext());
+        long start = System.nanoTime();
+        try {
+            List<SerializedTimestamp> stamps = new ArrayList<>();
+
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.rawQuery(SQL_SELECT_TIMESTAMPS, null);
+
+            // looping through all rows and adding to list
+            if (c.moveToFirst()) {
+                do {
+                    stamps.add(read(c));
+                } while (c.moveToNext());
+            }
+            c.close();
+            return stamps;
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.getAll").stop(start);
         }
-        c.close();
-        return stamps;
     }
 
     public int update(SerializedTimestamp stamp) {
-        SQLiteDatabase db = this.getWritableDatabase();
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_SERIALIZE, stamp.serialized);
 
-        ContentValues values = new ContentValues();
-        values.put(KEY_MSG, stamp.msg);
-        values.put(KEY_SERIALIZE, stamp.serialized);
-        values.put(KEY_HASHCODE, stamp.getHashcode());
+            // updating row
+            return db.update(TABLE_TIMESTAMPS, values, KEY_MSG + " = " + toBlobLiteral(stamp.msg), null);
+        } finally {
+            Metrics.timer("db.SerializedTimestamp.update").stop(start);
+        }
+    }
+
+    protected static SerializedTimestamp read(Cursor c) {
+        SerializedTimestamp stamp = new SerializedTimestamp();
+        stamp.id = c.getLong(c.getColumnIndex(KEY_ID));
+        stamp.msg = c.getBlob(c.getColumnIndex(KEY_MSG));
+        stamp.serialized = c.getBlob(c.getColumnIndex(KEY_SERIALIZE));
+        return stamp;
+    }
 
-        // updating row
-        return db.update(TABLE_TIMESTAMPS, values, KEY_ID + " = ?",
-                new String[] { String.valueOf(stamp.id) });
+    // rawQuery binds only strings, blobs are matched as X'..' literals
+    protected static String toBlobLiteral(byte[] bytes) {
+        return "X'" + Utils.bytesToHex(bytes) + "'";
     }
 
 }
@@ -7,142 +7,275 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import com.eternitywall.opentimestamps.metrics.Metrics;
 import com.eternitywall.opentimestamps.models.Folder;
 import com.eternitywall.opentimestamps.models.SerializedTimestamp;
+import com.eternitywall.opentimestamps.stores.NodeCodec;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
 import com.eternitywall.ots.StreamDeserializationContext;
 import com.eternitywall.ots.StreamSerializationContext;
 import com.eternitywall.ots.Timestamp;
 import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.PendingAttestation;
 import com.eternitywall.ots.attestation.TimeAttestation;
 import com.eternitywall.ots.op.Op;
 import com.eternitywall.ots.op.OpPrepend;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-public class TimestampDBHelper extends SerializedTimestampDBHelper {
+/**
+ * The SQLite engine of the TimestampStore: a row per node keyed by msg, with the pendings index.
+ */
 
+public class TimestampDBHelper extends SerializedTimestampDBHelper implements TimestampStore {
+
+    // Compiled write statement of the running batch
+    private SQLiteStatement mReplaceStatement;
+    private Listener mListener;
 
     public TimestampDBHelper(Context context) {
         super(context);
     }
 
+    // Max blob literals in a single IN (...) query
+    private static final int MAX_BATCH = 500;
+
+    // A rewritten node gets a new rowid
+    private static final String SQL_UPDATE_PENDING_NODE = "UPDATE " + TABLE_PENDINGS + " SET " + KEY_NODEID + " = ?" +
+            " WHERE " + KEY_MSG + " = ?";
+
+    private static final String SQL_COMPLETE_PENDING = "UPDATE " + TABLE_PENDINGS + " SET " + KEY_COMPLETED + " = 1" +
+            " WHERE " + KEY_MSG + " = ? AND " + KEY_COMPLETED + " = 0";
+
     private Timestamp popTimestamp(byte[] msg){
         // Get a timestamp, non-recursively
-        SerializedTimestamp serializedTimestamp = null;
-        try {
-            serializedTimestamp = getByHashcode( Arrays.hashCode(msg) );
-        } catch (Exception e) {
-            e.printStackTrace();
+        SerializedTimestamp serializedTimestamp = getByMsg(msg);
+        if (serializedTimestamp == null) {
             return null;
         }
 
-        StreamDeserializationContext ctx = new StreamDeserializationContext(serializedTimestamp.serialized);
-
         Timestamp timestamp = new Timestamp(msg);
-        int count = ctx.readVaruint();
-        for (int i = 0; i < count; i++){
-            TimeAttestation attestation = TimeAttestation.deserialize(ctx);
-            if (timestamp.attestations.contains(attestation)){
-                timestamp.attestations.set(timestamp.attestations.indexOf(attestation) , attestation);
-            } else {
-                timestamp.attestations.add(attestation);
-            }
-        }
-        count = ctx.readVaruint();
-        for (int i = 0; i < count; i++){
-            Op op = Op.deserialize(ctx);
-            timestamp.add(op);
-        }
+        NodeCodec.read(timestamp, serializedTimestamp.serialized);
         return timestamp;
     }
 
     public Timestamp getTimestamp(byte[] msg){
-        // Get the timestamp for a given message
-        Timestamp timestamp = popTimestamp(msg);
-        if (timestamp == null){
-            return null;
-        }
+        return getTimestamps(Collections.singletonList(msg)).get(Utils.bytesToHex(msg));
+    }
 
-        Set<Op> keys = timestamp.ops.keySet();
-        for (Op op : keys) {
-            if(timestamp.ops.containsKey(op)) {
-                Timestamp stamp = getTimestamp(timestamp.ops.get(op).msg);
-                timestamp.ops.put(op, stamp);
-            } else {
-                Timestamp stamp = getTimestamp(timestamp.ops.get(op).msg);
-                timestamp.ops.put(op, stamp);
+    // Get the timestamps for many messages by hex message, loading their subtrees breadth-first
+    // with one query per level: the nodes shared by the messages are loaded and built once
+    public Map<String, Timestamp> getTimestamps(Collection<byte[]> msgs){
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+
+            Map<String, Timestamp> roots = new HashMap<>();
+            Map<String, Timestamp> nodes = new HashMap<>();
+            List<String> level = new ArrayList<>();
+            for (byte[] msg : msgs) {
+                String key = Utils.bytesToHex(msg);
+                if (!nodes.containsKey(key)) {
+                    nodes.put(key, new Timestamp(msg));
+                    level.add(key);
+                }
             }
-        }
-        /*
-        Set<Map.Entry<Op, Timestamp>> entries = timestamp.ops.entrySet();
-        for (int i = 0 ; i < entries.size() ; i++){
-            Map.Entry<Op, Timestamp> entry = entries
-        }
-        for (Map.Entry<Op, Timestamp> entry : entries) {
-            Timestamp stamp = entry.getValue();
-            Op op = entry.getKey();
-            timestamp.put(op, getTimestamp(stamp.msg));
-        }*/
-        return timestamp;
-    }
+            Set<String> keys = new HashSet<>(level);
 
+            int countQueries = 0;
+            while (!level.isEmpty()) {
+                List<String> nextLevel = new ArrayList<>();
+                for (int i = 0; i < level.size(); i += MAX_BATCH) {
+                    List<String> batch = level.subList(i, Math.min(i + MAX_BATCH, level.size()));
+                    Cursor c = db.rawQuery(SQL_SELECT_TIMESTAMPS + " WHERE " + KEY_MSG + " IN (" + toBlobLiterals(batch) + ")", null);
+                    countQueries++;
+                    try {
+                        int msgIndex = c.getColumnIndex(KEY_MSG);
+                        int serializeIndex = c.getColumnIndex(KEY_SERIALIZE);
+                        while (c.moveToNext()) {
+                            String key = Utils.bytesToHex(c.getBlob(msgIndex));
+                            Timestamp timestamp = nodes.get(key);
+                            NodeCodec.read(timestamp, c.getBlob(serializeIndex));
+                            if (keys.contains(key)) {
+                                roots.put(key, timestamp);
+                            }
 
-    private void pushTimestamp(Timestamp new_timestamp){
-        // Write a single timestamp, non-recursively
-        StreamSerializationContext ctx = new StreamSerializationContext();
-        ctx.writeVaruint(new_timestamp.attestations.size());
-        for (TimeAttestation attestation : new_timestamp.attestations){
-            attestation.serialize(ctx);
+                            // Share already known children, queue the new ones for the next level
+                            for (Map.Entry<Op, Timestamp> entry : timestamp.ops.entrySet()) {
+                                String childKey = Utils.bytesToHex(entry.getValue().msg);
+                                Timestamp child = nodes.get(childKey);
+                                if (child == null) {
+                                    nodes.put(childKey, entry.getValue());
+                                    nextLevel.add(childKey);
+                                } else {
+                                    entry.setValue(child);
+                                }
+                            }
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+                level = nextLevel;
+            }
+
+            Log.d("STAMP", "LOAD: " + roots.size() + " of " + keys.size() + " timestamps, " + nodes.size() + " nodes with " + countQueries + " queries in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return roots;
+        } finally {
+            Metrics.timer("db.Timestamp.getTimestamps").stop(start);
         }
+    }
 
-        ctx.writeVaruint(new_timestamp.ops.size());
-        for (Map.Entry<Op, Timestamp> entry : new_timestamp.ops.entrySet()) {
-            Timestamp stamp = entry.getValue();
-            Op op = entry.getKey();
-            op.serialize(ctx);
+    private static String toBlobLiterals(List<String> hexs) {
+        StringBuilder sb = new StringBuilder();
+        for (String hex : hexs) {
+            if (sb.length() > 0) {
+                sb.append(',');
+            }
+            sb.append("X'").append(hex).append('\'');
         }
+        return sb.toString();
+    }
 
+    private void pushTimestamp(Timestamp new_timestamp){
+        // Write a single timestamp, non-recursively
         try {
             SerializedTimestamp serializedTimestamp = new SerializedTimestamp();
             serializedTimestamp.msg = new_timestamp.msg;
-            serializedTimestamp.serialized = ctx.getOutput();
-            createUpdate(serializedTimestamp);
+            serializedTimestamp.serialized = NodeCodec.serialize(new_timestamp);
+            long id;
+            if (mReplaceStatement != null) {
+                id = replace(mReplaceStatement, serializedTimestamp);
+            } else {
+                id = createUpdate(serializedTimestamp);
+            }
+            indexPendings(new_timestamp, id);
         }catch (Exception e){
             e.printStackTrace();
 
         }
     }
 
-    public void addTimestamp(Timestamp new_timestamp){
-        Timestamp existingTimestamp = getTimestamp(new_timestamp.msg);
-        if (existingTimestamp == null){
-            existingTimestamp = new Timestamp(new_timestamp.msg);
+    // Keep the pendings index of a written node
+    private void indexPendings(Timestamp node, long id){
+        SQLiteDatabase db = this.getWritableDatabase();
+        boolean pending = false;
+        for (TimeAttestation attestation : node.attestations){
+            if (attestation instanceof PendingAttestation){
+                String url = new String(((PendingAttestation) attestation).getUri(), Charset.forName("UTF-8"));
+                db.execSQL(SQL_INSERT_PENDING, new Object[] { url, node.msg, id, System.currentTimeMillis() });
+                pending = true;
+            }
+        }
+        if (pending){
+            db.execSQL(SQL_UPDATE_PENDING_NODE, new Object[] { id, node.msg });
+        }
+    }
+
+    // Mark as completed the pending commitments that reach a bitcoin attestation in the new timestamps
+    private int completePendings(Collection<Timestamp> timestamps){
+        SQLiteDatabase db = this.getWritableDatabase();
+        List<Timestamp> completed = TimestampMerger.getCompleted(timestamps);
+        for (Timestamp node : completed){
+            db.execSQL(SQL_COMPLETE_PENDING, new Object[] { node.msg });
         }
+        return completed.size();
+    }
 
-        // Update the existing timestamps attestations with those from the new
-        // timestamp
-        for (TimeAttestation attestation : new_timestamp.attestations){
-            if (existingTimestamp.attestations.contains(attestation)){
-                existingTimestamp.attestations.set(existingTimestamp.attestations.indexOf(attestation) , attestation);
-            } else {
-                existingTimestamp.attestations.add(attestation);
+    public void addTimestamp(Timestamp new_timestamp){
+        addTimestamps(Collections.singletonList(new_timestamp));
+    }
+
+    // Add all the timestamps in a single transaction
+    public synchronized void addTimestamps(Collection<Timestamp> timestamps){
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            mReplaceStatement = db.compileStatement(SQL_REPLACE_TIMESTAMP);
+            List<byte[]> changed = new ArrayList<>();
+            boolean shared;
+            int completed;
+            try {
+                TimestampMerger merger = new TimestampMerger(this);
+                for (Timestamp timestamp : timestamps) {
+                    long writes = merger.getWrites();
+                    merger.merge(timestamp);
+                    if (merger.getWrites() > writes) {
+                        changed.add(timestamp.msg);
+                    }
+                }
+                completed = completePendings(timestamps);
+                shared = merger.getInnerUpdates() > 0;
+                // the cached verifications are in the same db, dropped in the same transaction
+                VerificationDBHelper.invalidate(db, changed, shared, completed > 0);
+                db.setTransactionSuccessful();
+                Log.d("STAMP", "MERGE: " + merger + ", " + completed + " completed, " + changed.size() + " changed");
+            } finally {
+                mReplaceStatement.close();
+                mReplaceStatement = null;
+                db.endTransaction();
+            }
+            if (mListener != null && (!changed.isEmpty() || shared || completed > 0)) {
+                mListener.onChanged(changed, shared, completed > 0);
             }
+        } finally {
+            Metrics.timer("db.Timestamp.addTimestamps").stop(start);
         }
+    }
 
-        for (Map.Entry<Op, Timestamp> entry : new_timestamp.ops.entrySet()) {
-            Timestamp stamp = entry.getValue();
-            Op op = entry.getKey();
-            // Make sure the existing timestamp has this operation
-            existingTimestamp.add(op);
-            // Add the results timestamp to the calendar
-            addTimestamp(stamp);
+    // Nodes of the pending commitments, from the pendings index
+    @Override
+    public List<Timestamp> getPendingNodes() {
+        long start = System.nanoTime();
+        try {
+            List<Timestamp> nodes = new ArrayList<>();
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.rawQuery("SELECT " + KEY_MSG + ", " + KEY_SERIALIZE + " FROM " + TABLE_TIMESTAMPS +
+                    " WHERE " + KEY_MSG + " IN (SELECT " + KEY_MSG + " FROM " + TABLE_PENDINGS + " WHERE " + KEY_COMPLETED + " = 0)", null);
+            try {
+                while (c.moveToNext()) {
+                    Timestamp timestamp = new Timestamp(c.getBlob(0));
+                    NodeCodec.read(timestamp, c.getBlob(1));
+                    nodes.add(timestamp);
+                }
+            } finally {
+                c.close();
+            }
+            Log.d("STAMP", "PENDING: " + nodes.size() + " nodes in " + (System.nanoTime() - start) / 1000000 + " ms");
+            return nodes;
+        } finally {
+            Metrics.timer("db.Timestamp.getPendingNodes").stop(start);
         }
-        pushTimestamp(existingTimestamp);
     }
-}
 
+    // The cached verifications are dropped with the nodes, a listener is for the other caches
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void clear() {
+        clearTimestamps();
+    }
+
+    @Override
+    public Timestamp getNode(byte[] msg) {
+        return popTimestamp(msg);
+    }
+
+    @Override
+    public void putNode(Timestamp node) {
+        pushTimestamp(node);
+    }
+}
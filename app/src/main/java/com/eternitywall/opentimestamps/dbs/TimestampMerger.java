@@ -0,0 +1,145 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Merge incoming timestamps into the stored nodes in a single pass.
+ * Every incoming node reads its stored node once, without loading the subtree below it,
+ * and the stored node is written back only when it gained attestations or ops.
+ * Nodes already merged by the same merger are skipped, so the merkle tip and calendar path
+ * shared by the files of a folder are merged once.
+ */
+
+public class TimestampMerger {
+
+    public interface NodeStore {
+        // Get a single node with its attestations and ops, children are not loaded
+        Timestamp getNode(byte[] msg);
+        void putNode(Timestamp node);
+    }
+
+    private final NodeStore store;
+    private final Set<Timestamp> merged = Collections.newSetFromMap(new IdentityHashMap<Timestamp, Boolean>());
+    private long reads = 0;
+    private long writes = 0;
+    // writes of stored nodes below the merged roots, they change the proofs of other leaves too
+    private long innerUpdates = 0;
+
+    public TimestampMerger(NodeStore store) {
+        this.store = store;
+    }
+
+    public void merge(Timestamp newTimestamp) {
+        merge(newTimestamp, true);
+    }
+
+    private void merge(Timestamp newTimestamp, boolean root) {
+        if (!merged.add(newTimestamp)) {
+            return;
+        }
+
+        Timestamp node = store.getNode(newTimestamp.msg);
+        reads++;
+        boolean changed = false;
+        boolean stored = node != null;
+        if (node == null) {
+            node = new Timestamp(newTimestamp.msg);
+            changed = true;
+        }
+
+        // Update the stored attestations with those from the new timestamp
+        for (TimeAttestation attestation : newTimestamp.attestations) {
+            if (!node.attestations.contains(attestation)) {
+                node.attestations.add(attestation);
+                changed = true;
+            }
+        }
+
+        for (Map.Entry<Op, Timestamp> entry : newTimestamp.ops.entrySet()) {
+            // Make sure the stored node has this operation
+            if (!node.ops.containsKey(entry.getKey())) {
+                node.add(entry.getKey());
+                changed = true;
+            }
+            merge(entry.getValue(), false);
+        }
+
+        if (changed) {
+            if (stored && !root) {
+                innerUpdates++;
+            }
+            store.putNode(node);
+            writes++;
+        }
+    }
+
+    public long getReads() {
+        return reads;
+    }
+
+    public long getWrites() {
+        return writes;
+    }
+
+    public long getInnerUpdates() {
+        return innerUpdates;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d node reads, %d node writes", reads, writes);
+    }
+
+    // The pending commitments that reach a bitcoin attestation in the new timestamps:
+    // the pending nodes within them and their roots, as the calendar answers of an upgrade
+    public static List<Timestamp> getCompleted(Collection<Timestamp> timestamps) {
+        Map<Timestamp, Boolean> completes = new IdentityHashMap<>();
+        Set<Timestamp> candidates = Collections.newSetFromMap(new IdentityHashMap<Timestamp, Boolean>());
+        for (Timestamp timestamp : timestamps) {
+            isComplete(timestamp, completes, candidates);
+            candidates.add(timestamp);
+        }
+        List<Timestamp> completed = new ArrayList<>();
+        for (Timestamp candidate : candidates) {
+            if (completes.get(candidate)) {
+                completed.add(candidate);
+            }
+        }
+        return completed;
+    }
+
+    // Whether a bitcoin attestation is below a node, each shared node is visited once
+    private static boolean isComplete(Timestamp timestamp, Map<Timestamp, Boolean> completes, Set<Timestamp> candidates) {
+        Boolean complete = completes.get(timestamp);
+        if (complete != null) {
+            return complete;
+        }
+        complete = false;
+        for (TimeAttestation attestation : timestamp.attestations) {
+            if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                complete = true;
+            } else if (attestation instanceof PendingAttestation) {
+                candidates.add(timestamp);
+            }
+        }
+        for (Timestamp child : timestamp.ops.values()) {
+            if (isComplete(child, completes, candidates)) {
+                complete = true;
+            }
+        }
+        completes.put(timestamp, complete);
+        return complete;
+    }
+}
@@ -0,0 +1,142 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Verification;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.ots.StreamSerializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+
+import java.util.List;
+
+/**
+ * Cache of the verified proofs, read by leaf digest. The rows are dropped when the proof of the
+ * digest changes: by TimestampDBHelper in its transaction, as the listener of the other stores.
+ */
+
+public class VerificationDBHelper extends DBHelper implements TimestampStore.Listener {
+
+    public VerificationDBHelper(Context context) {
+        super(context);
+    }
+
+    // The verification of a leaf digest, null if it has to be verified
+    public Verification get(byte[] digest) {
+        long start = System.nanoTime();
+        try {
+            SQLiteDatabase db = this.getReadableDatabase();
+            Cursor c = db.query(TABLE_VERIFICATIONS, null,
+                    KEY_DIGEST + " = " + SerializedTimestampDBHelper.toBlobLiteral(digest), null, null, null, null);
+            try {
+                if (!c.moveToFirst()) {
+                    return null;
+                }
+                Verification verification = new Verification();
+                verification.digest = c.getBlob(c.getColumnIndex(KEY_DIGEST));
+                verification.time = c.getLong(c.getColumnIndex(KEY_TIME));
+                verification.height = c.getInt(c.getColumnIndex(KEY_HEIGHT));
+                verification.attestation = c.getBlob(c.getColumnIndex(KEY_ATTESTATION));
+                verification.proof = c.getBlob(c.getColumnIndex(KEY_PROOF));
+                verification.completed = (c.getInt(c.getColumnIndex(KEY_COMPLETED)) == 1);
+                verification.verified = c.getLong(c.getColumnIndex(KEY_VERIFIED));
+                return verification;
+            } finally {
+                c.close();
+            }
+        } finally {
+            Metrics.timer("db.Verification.get").stop(start);
+        }
+    }
+
+    // Keep the verified time of a proof, with the earliest bitcoin attestation in it
+    public Verification put(Timestamp timestamp, long time, byte[] proof) {
+        long start = System.nanoTime();
+        try {
+            Verification verification = new Verification();
+            verification.digest = timestamp.msg;
+            verification.time = time;
+            verification.proof = proof;
+            verification.completed = true;
+            verification.verified = System.currentTimeMillis();
+
+            BitcoinBlockHeaderAttestation earliest = walk(timestamp, verification, null);
+            if (earliest == null) {
+                return null;
+            }
+            StreamSerializationContext ctx = new StreamSerializationContext();
+            earliest.serialize(ctx);
+            verification.attestation = ctx.getOutput();
+            verification.height = earliest.getHeight();
+
+            ContentValues values = new ContentValues();
+            values.put(KEY_DIGEST, verification.digest);
+            values.put(KEY_TIME, verification.time);
+            values.put(KEY_HEIGHT, verification.height);
+            values.put(KEY_ATTESTATION, verification.attestation);
+            values.put(KEY_PROOF, verification.proof);
+            values.put(KEY_COMPLETED, verification.completed ? 1 : 0);
+            values.put(KEY_VERIFIED, verification.verified);
+            SQLiteDatabase db = this.getWritableDatabase();
+            db.insertWithOnConflict(TABLE_VERIFICATIONS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            return verification;
+        } finally {
+            Metrics.timer("db.Verification.put").stop(start);
+        }
+    }
+
+    // Earliest bitcoin attestation below a node, a pending one left marks the proof as not completed
+    private static BitcoinBlockHeaderAttestation walk(Timestamp timestamp, Verification verification, BitcoinBlockHeaderAttestation earliest) {
+        for (TimeAttestation attestation : timestamp.attestations) {
+            if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                BitcoinBlockHeaderAttestation bitcoin = (BitcoinBlockHeaderAttestation) attestation;
+                if (earliest == null || bitcoin.getHeight() < earliest.getHeight()) {
+                    earliest = bitcoin;
+                }
+            } else if (attestation instanceof PendingAttestation) {
+                verification.completed = false;
+            }
+        }
+        for (Timestamp child : timestamp.ops.values()) {
+            earliest = walk(child, verification, earliest);
+        }
+        return earliest;
+    }
+
+    @Override
+    public void onChanged(List<byte[]> changed, boolean shared, boolean completed) {
+        invalidate(this.getWritableDatabase(), changed, shared, completed);
+    }
+
+    // Drop all the verifications, as the headers they were checked against changed
+    public void invalidateAll() {
+        long start = System.nanoTime();
+        try {
+            this.getWritableDatabase().execSQL(SQL_INVALIDATE_VERIFICATIONS);
+        } finally {
+            Metrics.timer("db.Verification.invalidateAll").stop(start);
+        }
+    }
+
+    // Drop the verifications of the changed proofs
+    static void invalidate(SQLiteDatabase db, List<byte[]> changed, boolean shared, boolean completed) {
+        if (shared) {
+            // a shared node changed, the leaves of its proofs are not known
+            db.execSQL(SQL_INVALIDATE_VERIFICATIONS);
+            return;
+        }
+        for (byte[] digest : changed) {
+            db.execSQL(SQL_INVALIDATE_VERIFICATION, new Object[] { digest });
+        }
+        if (!changed.isEmpty() || completed) {
+            // upgrades land on the pending commitments, only the proofs with a pending attestation can get them
+            db.execSQL(SQL_INVALIDATE_PARTIAL_VERIFICATIONS);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.opentimestamps.metrics.LatencyHistogram;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.ots.StreamDeserializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client of the calendars, replacing the sequential submissions of OpenTimestamps.stamp.
+ * A digest is sent to all the calendars at once and the merged answer is returned as soon as
+ * m of them replied; a calendar still silent after the hedge delay gets a second request.
+ * Requests go through HttpURLConnection, that keeps the connections alive between requests
+ * when every response is read to the end. Latencies are recorded per calendar.
+ */
+
+public class CalendarPool implements UpgradeEngine.CalendarClient {
+
+    public static final List<String> DEFAULT_CALENDARS = Collections.unmodifiableList(Arrays.asList(
+            "https://alice.btc.calendar.opentimestamps.org",
+            "https://bob.btc.calendar.opentimestamps.org",
+            "https://finney.calendar.eternitywall.com"));
+    public static final int DEFAULT_M = 2;
+    public static final long DEFAULT_HEDGE_DELAY = 2000;
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    // A proof answer is a few hundred bytes
+    private static final int MAX_RESPONSE = 10000;
+
+    private static CalendarPool sDefault;
+
+    public static synchronized CalendarPool getDefault() {
+        if (sDefault == null) {
+            sDefault = new CalendarPool(DEFAULT_CALENDARS, DEFAULT_M, DEFAULT_HEDGE_DELAY, DEFAULT_TIMEOUT);
+        }
+        return sDefault;
+    }
+
+    private final List<String> urls;
+    private final int m;
+    private final long hedgeDelay;
+    private final long timeout;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private final Map<String, Integer> failures = new HashMap<>();
+    private int countHedges = 0;
+
+    private static class Response {
+        String url;
+        Timestamp timestamp;
+    }
+
+    public CalendarPool(List<String> urls, int m, long hedgeDelay, long timeout) {
+        if (m < 1 || m > urls.size()) {
+            throw new IllegalArgumentException("m must be between 1 and " + urls.size());
+        }
+        this.urls = new ArrayList<>(urls);
+        this.m = m;
+        this.hedgeDelay = hedgeDelay;
+        this.timeout = timeout;
+        for (String url : urls) {
+            getHistogram(url);
+        }
+    }
+
+    // Submit a digest to all the calendars, the answers of the first m merged in one timestamp
+    public Timestamp submit(byte[] digest) throws Exception {
+        long started = Metrics.timer("calendar.submit").start();
+        try {
+            return submitting(digest);
+        } finally {
+            Metrics.timer("calendar.submit").stop(started);
+        }
+    }
+
+    private Timestamp submitting(byte[] digest) throws Exception {
+        ExecutorCompletionService<Response> completion = new ExecutorCompletionService<>(executor);
+        List<Future<Response>> futures = new ArrayList<>();
+        Map<String, Integer> outstanding = new HashMap<>();
+        for (String url : urls) {
+            futures.add(completion.submit(post(url, digest)));
+            outstanding.put(url, 1);
+        }
+
+        long start = System.currentTimeMillis();
+        long deadline = start + timeout;
+        boolean hedged = false;
+        Set<String> answered = new HashSet<>();
+        Timestamp merged = new Timestamp(digest);
+        int countOutstanding = urls.size();
+        try {
+            while (answered.size() < m && countOutstanding > 0) {
+                long now = System.currentTimeMillis();
+                if (now >= deadline) {
+                    break;
+                }
+                long until = hedged ? deadline : Math.min(deadline, start + hedgeDelay);
+                Future<Response> future = completion.poll(Math.max(1, until - now), TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    if (!hedged && System.currentTimeMillis() >= start + hedgeDelay) {
+                        // Second request to the calendars still silent, the first answer wins
+                        hedged = true;
+                        for (String url : urls) {
+                            if (!answered.contains(url) && outstanding.get(url) > 0) {
+                                futures.add(completion.submit(post(url, digest)));
+                                outstanding.put(url, outstanding.get(url) + 1);
+                                countOutstanding++;
+                                synchronized (this) {
+                                    countHedges++;
+                                }
+                                Metrics.counter("calendar.hedges").inc();
+                            }
+                        }
+                    }
+                    continue;
+                }
+
+                countOutstanding--;
+                Response response;
+                try {
+                    response = future.get();
+                } catch (ExecutionException e) {
+                    continue;
+                }
+                outstanding.put(response.url, outstanding.get(response.url) - 1);
+                if (answered.add(response.url)) {
+                    merge(merged, response.timestamp);
+                }
+            }
+        } finally {
+            for (Future<Response> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (answered.size() < m) {
+            throw new IOException("Only " + answered.size() + " of " + m + " calendars answered");
+        }
+        return merged;
+    }
+
+    // Upgrade of a commitment, null while the calendar has not completed it
+    @Override
+    public Timestamp getTimestamp(String url, byte[] commitment) throws Exception {
+        long start = System.currentTimeMillis();
+        try {
+            HttpURLConnection connection = open(url + "/timestamp/" + Utils.bytesToHex(commitment));
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                read(connection.getErrorStream());
+                return null;
+            }
+            if (code != HttpURLConnection.HTTP_OK) {
+                read(connection.getErrorStream());
+                throw new IOException(url + " answered " + code);
+            }
+            byte[] body = read(connection.getInputStream());
+            getHistogram(url).record(System.currentTimeMillis() - start);
+            return Timestamp.deserialize(new StreamDeserializationContext(body), commitment);
+        } catch (IOException e) {
+            failed(url);
+            throw e;
+        }
+    }
+
+    private Callable<Response> post(final String url, final byte[] digest) {
+        return new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                long start = System.currentTimeMillis();
+                try {
+                    HttpURLConnection connection = open(url + "/digest");
+                    connection.setRequestMethod("POST");
+                    connection.setDoOutput(true);
+                    connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+                    connection.setFixedLengthStreamingMode(digest.length);
+                    OutputStream out = connection.getOutputStream();
+                    out.write(digest);
+                    out.close();
+
+                    int code = connection.getResponseCode();
+                    if (code != HttpURLConnection.HTTP_OK) {
+                        read(connection.getErrorStream());
+                        throw new IOException(url + " answered " + code);
+                    }
+                    byte[] body = read(connection.getInputStream());
+
+                    Response response = new Response();
+                    response.url = url;
+                    response.timestamp = Timestamp.deserialize(new StreamDeserializationContext(body), digest);
+                    getHistogram(url).record(System.currentTimeMillis() - start);
+                    return response;
+                } catch (IOException e) {
+                    failed(url);
+                    throw e;
+                }
+            }
+        };
+    }
+
+    private HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout((int) timeout);
+        connection.setReadTimeout((int) timeout);
+        connection.setRequestProperty("Accept", "application/vnd.opentimestamps.v1");
+        connection.setRequestProperty("User-Agent", "java-opentimestamps");
+        return connection;
+    }
+
+    // Read a response to its end, so that the connection goes back to the pool
+    private static byte[] read(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                if (out.size() > MAX_RESPONSE) {
+                    throw new IOException("Calendar response over " + MAX_RESPONSE + " bytes");
+                }
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    // Add the attestations and ops of a timestamp of the same message
+    static void merge(Timestamp timestamp, Timestamp other) {
+        for (TimeAttestation attestation : other.attestations) {
+            if (!timestamp.attestations.contains(attestation)) {
+                timestamp.attestations.add(attestation);
+            }
+        }
+        for (Map.Entry<Op, Timestamp> entry : other.ops.entrySet()) {
+            Timestamp child = timestamp.ops.get(entry.getKey());
+            if (child == null) {
+                timestamp.ops.put(entry.getKey(), entry.getValue());
+            } else {
+                merge(child, entry.getValue());
+            }
+        }
+    }
+
+    public synchronized LatencyHistogram getHistogram(String url) {
+        LatencyHistogram histogram = histograms.get(url);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(url, histogram);
+            // the pool in use shows its calendars on the diagnostics screen
+            Metrics.register("calendar." + url, histogram);
+        }
+        return histogram;
+    }
+
+    public synchronized Map<String, LatencyHistogram> getHistograms() {
+        return new LinkedHashMap<>(histograms);
+    }
+
+    private synchronized void failed(String url) {
+        Integer count = failures.get(url);
+        failures.put(url, count == null ? 1 : count + 1);
+        Metrics.counter("calendar.failures").inc();
+    }
+
+    public synchronized int getFailures(String url) {
+        Integer count = failures.get(url);
+        return count == null ? 0 : count;
+    }
+
+    public synchronized int getCountHedges() {
+        return countHedges;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(m).append(" of ").append(urls.size()).append(" calendars, ").append(countHedges).append(" hedges");
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            sb.append("\n").append(entry.getKey()).append(": ").append(entry.getValue())
+                    .append(", ").append(getFailures(entry.getKey())).append(" failures");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,78 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.opentimestamps.dbs.ChangeDBHelper;
+import com.eternitywall.opentimestamps.models.Change;
+import com.eternitywall.opentimestamps.models.Folder;
+import com.eternitywall.opentimestamps.services.WatcherService;
+
+import java.io.File;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Changes of a folder from the journal of the watcher service.
+ * When the folder is not watched, or the journal asks for it, the changes come
+ * from an incremental scan of the folder instead.
+ */
+
+public class ChangeTracker {
+
+    private final DirectoryScanner directoryScanner;
+    private final ChangeDBHelper changeDBHelper;
+
+    public ChangeTracker(DirectoryScanner directoryScanner, ChangeDBHelper changeDBHelper) {
+        this.directoryScanner = directoryScanner;
+        this.changeDBHelper = changeDBHelper;
+    }
+
+    public DirectoryScanner.ChangeSet getChanges(Folder folder, File root, boolean full) {
+        List<Change> journal = changeDBHelper.getByFolder(folder.id);
+
+        boolean rescan = full || !WatcherService.isWatching(folder.id);
+        for (Change change : journal) {
+            if (change.event == Change.Event.RESCAN) {
+                rescan = true;
+                break;
+            }
+        }
+
+        DirectoryScanner.ChangeSet changes;
+        if (rescan) {
+            changes = directoryScanner.scan(root, folder.lastSync, full);
+        } else {
+            changes = fromJournal(journal);
+        }
+        if (!journal.isEmpty()) {
+            changes.lastChangeId = journal.get(journal.size() - 1).id;
+        }
+        return changes;
+    }
+
+    // Once the changes are stamped: store the scanned directories and drop the consumed journal
+    public void commit(Folder folder, DirectoryScanner.ChangeSet changes) {
+        directoryScanner.commit(changes);
+        if (changes.lastChangeId > 0) {
+            changeDBHelper.deleteUntil(folder.id, changes.lastChangeId);
+        }
+    }
+
+    // Only the journaled paths are checked: the existing files are hashed again, the others are deleted
+    private static DirectoryScanner.ChangeSet fromJournal(List<Change> journal) {
+        Set<String> paths = new LinkedHashSet<>();
+        for (Change change : journal) {
+            paths.add(change.path);
+        }
+
+        DirectoryScanner.ChangeSet changes = new DirectoryScanner.ChangeSet();
+        for (String path : paths) {
+            File file = new File(path);
+            if (file.isFile()) {
+                changes.modified.add(file);
+            } else if (!file.exists()) {
+                changes.deleted.add(path);
+            }
+        }
+        return changes;
+    }
+}
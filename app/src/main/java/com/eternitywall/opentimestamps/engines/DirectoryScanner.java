@@ -0,0 +1,192 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.opentimestamps.models.Directory;
+import com.eternitywall.opentimestamps.models.FileHash;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Find the files changed in a folder since the last committed scan.
+ * The mtime and the count of entries of every directory are kept in a manifest. Every directory
+ * is still read, for its count of entries: the count catches the filesystems that don't update
+ * the mtime of a directory on every change of its entries. A directory whose mtime and count
+ * didn't change has the same entries, so they are not looked up one by one: only the files of
+ * the cache are stat'ed, for the edits in place, and the known subdirectories are visited.
+ * Files are compared with the hash cache: the ones without a stamped digest are added, even
+ * if something else hashed them since, the ones with a different size or mtime, or modified
+ * after the last sync, are modified.
+ */
+
+public class DirectoryScanner {
+
+    // Directories touched this close to the scan may still change within the same mtime
+    private static final long MTIME_GRANULARITY = 2000;
+
+    public interface Manifest {
+        Directory getDirectory(String path);
+        List<Directory> getSubdirectories(String path);
+        Map<String, FileHash> getFiles(String dir);
+        void commit(ChangeSet changes);
+    }
+
+    public static class ChangeSet {
+        public final List<File> added = new ArrayList<>();
+        public final List<File> modified = new ArrayList<>();
+        public final List<String> deleted = new ArrayList<>();
+        public final List<Directory> directories = new ArrayList<>();
+        public final List<String> deletedDirectories = new ArrayList<>();
+        // Digests of the changed files by path, marked as stamped in the cache on commit
+        public final Map<String, byte[]> stamped = new HashMap<>();
+        public int countListedDirectories = 0;
+        public int countSkippedDirectories = 0;
+        // Last journal change covered by this change set
+        public long lastChangeId = 0;
+
+        public List<File> getChangedFiles() {
+            List<File> files = new ArrayList<>(added.size() + modified.size());
+            files.addAll(added);
+            files.addAll(modified);
+            return files;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && modified.isEmpty() && deleted.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d added, %d modified, %d deleted, %d directories listed, %d skipped",
+                    added.size(), modified.size(), deleted.size(), countListedDirectories, countSkippedDirectories);
+        }
+    }
+
+    private final Manifest manifest;
+
+    public DirectoryScanner(Manifest manifest) {
+        this.manifest = manifest;
+    }
+
+    // Scan a root directory, a full scan lists every directory even if its mtime is unchanged
+    public ChangeSet scan(File root, long lastSync, boolean full) {
+        ChangeSet changes = new ChangeSet();
+        if (root != null && root.isDirectory()) {
+            scan(root.getAbsoluteFile(), lastSync, full, System.currentTimeMillis(), changes);
+        }
+        return changes;
+    }
+
+    // Store the directory manifest of a change set, once its files have been stamped: a directory
+    // with a changed file left out of the stamp, as one that failed to hash, is stored with mtime 0
+    // to be listed again by the next scan
+    public void commit(ChangeSet changes) {
+        Map<String, Directory> directories = new HashMap<>();
+        for (Directory directory : changes.directories) {
+            directories.put(directory.path, directory);
+        }
+        for (File file : changes.getChangedFiles()) {
+            File absolute = file.getAbsoluteFile();
+            if (changes.stamped.containsKey(absolute.getPath())) {
+                continue;
+            }
+            Directory directory = directories.get(absolute.getParent());
+            if (directory == null) {
+                // a change of the journal, its directory was not listed
+                directory = manifest.getDirectory(absolute.getParent());
+                if (directory == null) {
+                    continue;
+                }
+                directories.put(directory.path, directory);
+                changes.directories.add(directory);
+            }
+            directory.mtime = 0;
+        }
+        manifest.commit(changes);
+    }
+
+    private void scan(File dir, long lastSync, boolean full, long now, ChangeSet changes) {
+        String path = dir.getPath();
+        long mtime = dir.lastModified();
+        Directory known = manifest.getDirectory(path);
+        String[] names = dir.list();
+        if (names == null) {
+            return;
+        }
+
+        if (!full && known != null && known.mtime == mtime && known.countChildren == names.length) {
+            // Same entries as the last scan: check only the cached files and the known subdirectories
+            changes.countSkippedDirectories++;
+            for (FileHash fileHash : manifest.getFiles(path).values()) {
+                File child = new File(fileHash.path);
+                long lastModified = child.lastModified();
+                if (lastModified == 0) {
+                    changes.deleted.add(fileHash.path);
+                } else {
+                    check(child, lastModified, fileHash, lastSync, changes);
+                }
+            }
+            for (Directory subdirectory : manifest.getSubdirectories(path)) {
+                File subdir = new File(subdirectory.path);
+                if (subdir.isDirectory()) {
+                    scan(subdir, lastSync, full, now, changes);
+                } else {
+                    deleted(subdirectory.path, changes);
+                }
+            }
+            return;
+        }
+
+        changes.countListedDirectories++;
+
+        Map<String, FileHash> knownFiles = new HashMap<>(manifest.getFiles(path));
+        Map<String, Directory> knownSubdirectories = new HashMap<>();
+        for (Directory subdirectory : manifest.getSubdirectories(path)) {
+            knownSubdirectories.put(subdirectory.path, subdirectory);
+        }
+
+        for (String name : names) {
+            File child = new File(dir, name);
+            if (child.isDirectory()) {
+                knownSubdirectories.remove(child.getPath());
+                scan(child, lastSync, full, now, changes);
+                continue;
+            }
+            check(child, child.lastModified(), knownFiles.remove(child.getPath()), lastSync, changes);
+        }
+
+        // What is left was removed since the last scan
+        changes.deleted.addAll(knownFiles.keySet());
+        for (String subdirectory : knownSubdirectories.keySet()) {
+            deleted(subdirectory, changes);
+        }
+
+        Directory directory = new Directory();
+        directory.path = path;
+        directory.parent = dir.getParent();
+        // A recent mtime can hide a change done in the same tick, check it again next time
+        directory.mtime = (now - mtime < MTIME_GRANULARITY) ? 0 : mtime;
+        directory.countChildren = names.length;
+        changes.directories.add(directory);
+    }
+
+    // A file against its row of the hash cache, if any: the size is read only if the mtime is the same
+    private static void check(File file, long lastModified, FileHash fileHash, long lastSync, ChangeSet changes) {
+        if (fileHash == null || !fileHash.stamped) {
+            changes.added.add(file);
+        } else if (fileHash.mtime != lastModified || lastModified > lastSync || fileHash.size != file.length()) {
+            changes.modified.add(file);
+        }
+    }
+
+    // A directory and all its known subtree were removed
+    private void deleted(String path, ChangeSet changes) {
+        changes.deletedDirectories.add(path);
+        changes.deleted.addAll(manifest.getFiles(path).keySet());
+        for (Directory subdirectory : manifest.getSubdirectories(path)) {
+            deleted(subdirectory.path, changes);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.eternitywall.opentimestamps.engines;
+
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.IOUtil;
+import com.eternitywall.opentimestamps.dbs.FileHashDBHelper;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.FileHash;
+import com.eternitywall.opentimestamps.models.OtsBundle;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.StreamSerializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.op.Op;
+import com.eternitywall.ots.op.OpSHA256;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Export the proofs of many files in one zip, as a pipeline:
+ * a loader reads the digests of a batch from the files cache and its proofs with one query per
+ * tree level, workers serialize the proofs and a single writer adds them to the zip in order.
+ * Entries are STORED, the proofs are hashes and do not compress.
+ */
+
+public class ExportEngine {
+
+    public interface Listener {
+        void onProgress(int countEntries, long countBytes);
+    }
+
+    // Files per batch, and batches loaded ahead of the writer
+    private static final int BATCH = 256;
+    private static final int PREFETCH = 2;
+
+    private final FileHashDBHelper fileHashDBHelper;
+    private final TimestampStore timestampStore;
+    private final int workers;
+
+    private int countEntries = 0;
+    private long countBytes = 0;
+    private int countMissing = 0;
+    private long elapsed = 0;
+
+    private static class Entry {
+        String name;
+        byte[] bytes;
+        long crc;
+    }
+
+    public ExportEngine(FileHashDBHelper fileHashDBHelper, TimestampStore timestampStore) {
+        this(fileHashDBHelper, timestampStore, Runtime.getRuntime().availableProcessors());
+    }
+
+    public ExportEngine(FileHashDBHelper fileHashDBHelper, TimestampStore timestampStore, int workers) {
+        this.fileHashDBHelper = fileHashDBHelper;
+        this.timestampStore = timestampStore;
+        this.workers = Math.max(1, workers);
+    }
+
+    // Write the proofs of the files to the zip stream, files without a proof are skipped
+    public int exporting(List<File> files, OutputStream output, Listener listener) throws Exception {
+        countEntries = 0;
+        countBytes = 0;
+        countMissing = 0;
+        long start = System.currentTimeMillis();
+
+        final ExecutorService loader = Executors.newSingleThreadExecutor();
+        final ExecutorService serializers = Executors.newFixedThreadPool(workers);
+        ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        try {
+            LinkedList<Future<List<Future<Entry>>>> batches = new LinkedList<>();
+            int next = 0;
+            while (next < files.size() || !batches.isEmpty()) {
+                // Keep the loader ahead of the writer
+                while (next < files.size() && batches.size() < PREFETCH) {
+                    final List<File> batch = files.subList(next, Math.min(next + BATCH, files.size()));
+                    batches.add(loader.submit(new Callable<List<Future<Entry>>>() {
+                        @Override
+                        public List<Future<Entry>> call() throws Exception {
+                            return load(batch, serializers);
+                        }
+                    }));
+                    next += batch.size();
+                }
+
+                // Write the entries of the oldest batch in order
+                for (Future<Entry> future : batches.removeFirst().get()) {
+                    Entry entry = future.get();
+                    if (entry == null) {
+                        countMissing++;
+                        continue;
+                    }
+                    ZipEntry zipEntry = new ZipEntry(entry.name);
+                    zipEntry.setMethod(ZipEntry.STORED);
+                    zipEntry.setSize(entry.bytes.length);
+                    zipEntry.setCompressedSize(entry.bytes.length);
+                    zipEntry.setCrc(entry.crc);
+                    out.putNextEntry(zipEntry);
+                    out.write(entry.bytes);
+                    out.closeEntry();
+
+                    countEntries++;
+                    countBytes += entry.bytes.length;
+                    if (listener != null) {
+                        listener.onProgress(countEntries, countBytes);
+                    }
+                }
+            }
+            out.finish();
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+        } finally {
+            loader.shutdownNow();
+            serializers.shutdownNow();
+            out.close();
+            elapsed = System.currentTimeMillis() - start;
+            Metrics.counter("export.entries").add(countEntries);
+            Metrics.counter("export.bytes").add(countBytes);
+            Metrics.counter("export.missing").add(countMissing);
+            Log.d("STAMP", "EXPORT: " + toString());
+        }
+        return countEntries;
+    }
+
+    // Write the proofs of the files as one bundle, the nodes shared by the proofs once: a batch of
+    // proofs is loaded and written at a time, the caller closes the stream
+    public int exportingBundle(List<File> files, OutputStream output, Listener listener) throws Exception {
+        countEntries = 0;
+        countBytes = 0;
+        countMissing = 0;
+        long start = System.currentTimeMillis();
+
+        CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(output, 64 * 1024));
+        try {
+            OtsBundle.Writer writer = new OtsBundle.Writer(out);
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            for (int i = 0; i < files.size(); i += BATCH) {
+                List<byte[]> msgs = digests(files.subList(i, Math.min(i + BATCH, files.size())), sha256);
+                Map<String, Timestamp> proofs = timestampStore.getTimestamps(msgs);
+                List<Timestamp> batch = new ArrayList<>(msgs.size());
+                for (byte[] msg : msgs) {
+                    Timestamp proof = proofs.get(Utils.bytesToHex(msg));
+                    if (proof == null) {
+                        countMissing++;
+                        continue;
+                    }
+                    batch.add(proof);
+                }
+                writer.write(batch);
+                countEntries += batch.size();
+                countBytes = out.getCount();
+                if (listener != null) {
+                    listener.onProgress(countEntries, countBytes);
+                }
+            }
+            writer.finish();
+            countBytes = out.getCount();
+        } finally {
+            elapsed = System.currentTimeMillis() - start;
+            Log.d("STAMP", "EXPORT BUNDLE: " + toString());
+        }
+        return countEntries;
+    }
+
+    // Bytes written through, to report the size of a streamed bundle
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+
+    // Digests and proofs of a batch, queued to the serializers in the files order
+    private List<Future<Entry>> load(List<File> files, ExecutorService serializers) throws Exception {
+        List<byte[]> msgs = digests(files, MessageDigest.getInstance("SHA-256"));
+        Map<String, Timestamp> proofs = timestampStore.getTimestamps(msgs);
+
+        List<Future<Entry>> entries = new ArrayList<>(files.size());
+        for (byte[] msg : msgs) {
+            final String name = IOUtil.bytesToHex(msg);
+            final Timestamp proof = proofs.get(Utils.bytesToHex(msg));
+            entries.add(serializers.submit(new Callable<Entry>() {
+                @Override
+                public Entry call() throws Exception {
+                    if (proof == null) {
+                        return null;
+                    }
+                    return serialize(name + ".ots", proof);
+                }
+            }));
+        }
+        return entries;
+    }
+
+    // Proof messages of a batch: the sha256 of the file digests, read from the files cache
+    private List<byte[]> digests(List<File> files, MessageDigest sha256) throws Exception {
+        List<String> paths = new ArrayList<>(files.size());
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        Map<String, FileHash> cached = fileHashDBHelper.getByPaths(paths);
+
+        List<byte[]> msgs = new ArrayList<>(files.size());
+        for (File file : files) {
+            byte[] digest;
+            FileHash fileHash = cached.get(file.getAbsolutePath());
+            if (fileHash != null && fileHash.digest != null && fileHash.isSame(FileHash.from(file))) {
+                digest = fileHash.digest;
+            } else {
+                // Changed since the last stamp, its proof is looked up anyway
+                digest = fileHashDBHelper.getDigest(file);
+            }
+            msgs.add(sha256.digest(digest));
+        }
+        return msgs;
+    }
+
+    private static Entry serialize(String name, Timestamp proof) {
+        // The loaded proofs share their nodes, each serializer works on its own copy
+        DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(), copy(proof));
+        StreamSerializationContext ctx = new StreamSerializationContext();
+        detached.serialize(ctx);
+
+        Entry entry = new Entry();
+        entry.name = name;
+        entry.bytes = ctx.getOutput();
+        CRC32 crc = new CRC32();
+        crc.update(entry.bytes);
+        entry.crc = crc.getValue();
+        return entry;
+    }
+
+    private static Timestamp copy(Timestamp timestamp) {
+        Timestamp copy = new Timestamp(timestamp.msg);
+        copy.attestations.addAll(timestamp.attestations);
+        for (Map.Entry<Op, Timestamp> entry : timestamp.ops.entrySet()) {
+            copy.ops.put(entry.getKey(), copy(entry.getValue()));
+        }
+        return copy;
+    }
+
+    public double getEntriesPerSecond() {
+        return elapsed == 0 ? 0 : countEntries * 1000.0 / elapsed;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsed == 0 ? 0 : countBytes * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d entries, %d bytes, %d without proof in %d ms with %d workers: %.1f entries/s, %.1f KB/s",
+                countEntries, countBytes, countMissing, elapsed, workers,
+                getEntriesPerSecond(), getBytesPerSecond() / 1024);
+    }
+}
@@ -0,0 +1,128 @@
+package com.eternitywall.opentimestamps.engines;
+
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.dbs.FileHashDBHelper;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.op.OpSHA256;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hash a list of files on a pool of workers.
+ * The files are queued on a bounded queue, when it is full the caller thread hashes too.
+ * Results keep the order of the input files, so the merkle tree built on them is deterministic.
+ * The digest of the cache is kept next to each result: the timestamp is on its sha256.
+ */
+
+public class HashingEngine {
+
+    public interface Listener {
+        void onProgress(int countFiles, long countBytes);
+    }
+
+    private final FileHashDBHelper fileHashDBHelper;
+    private final int workers;
+    private final int queueSize;
+
+    private final AtomicInteger countFiles = new AtomicInteger();
+    private final AtomicLong countBytes = new AtomicLong();
+    private long elapsed = 0;
+    private final Map<String, byte[]> digests = new LinkedHashMap<>();
+
+    public HashingEngine(FileHashDBHelper fileHashDBHelper) {
+        this(fileHashDBHelper, Runtime.getRuntime().availableProcessors());
+    }
+
+    public HashingEngine(FileHashDBHelper fileHashDBHelper, int workers) {
+        this.fileHashDBHelper = fileHashDBHelper;
+        this.workers = Math.max(1, workers);
+        this.queueSize = this.workers * 4;
+    }
+
+    public List<DetachedTimestampFile> hashing(final List<File> files, final Listener listener) throws InterruptedException {
+        final DetachedTimestampFile[] results = new DetachedTimestampFile[files.size()];
+        final byte[][] fileDigests = new byte[files.size()][];
+        countFiles.set(0);
+        countBytes.set(0);
+        long start = System.currentTimeMillis();
+
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (int i = 0; i < files.size(); i++) {
+                final int index = i;
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        File file = files.get(index);
+                        long started = System.nanoTime();
+                        try {
+                            byte[] digest = fileHashDBHelper.getDigest(file);
+                            results[index] = DetachedTimestampFile.from(new OpSHA256(), digest);
+                            fileDigests[index] = digest;
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            Metrics.counter("hash.failures").inc();
+                        }
+                        Metrics.timer("hash.file").stop(started);
+                        int countFiles = HashingEngine.this.countFiles.incrementAndGet();
+                        long length = file.length();
+                        long bytes = countBytes.addAndGet(length);
+                        Metrics.counter("hash.bytes").add(length);
+                        if (listener != null) {
+                            listener.onProgress(countFiles, bytes);
+                        }
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            elapsed = System.currentTimeMillis() - start;
+        }
+
+        // Skip the files that failed, keeping the order
+        List<DetachedTimestampFile> fileTimestamps = new ArrayList<>(results.length);
+        digests.clear();
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                fileTimestamps.add(results[i]);
+                digests.put(files.get(i).getAbsolutePath(), fileDigests[i]);
+            }
+        }
+        Log.d("STAMP", "HASHING: " + toString());
+        return fileTimestamps;
+    }
+
+    // Cache digests of the files hashed by the last hashing by absolute path, in the order of the
+    // timestamps returned: the ones of the files cache, not the fileDigest of the timestamps
+    public Map<String, byte[]> getDigests() {
+        return digests;
+    }
+
+    public double getFilesPerSecond() {
+        return elapsed == 0 ? 0 : countFiles.get() * 1000.0 / elapsed;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsed == 0 ? 0 : countBytes.get() * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d files, %d bytes in %d ms with %d workers: %.1f files/s, %.1f MB/s",
+                countFiles.get(), countBytes.get(), elapsed, workers,
+                getFilesPerSecond(), getBytesPerSecond() / (1024 * 1024));
+    }
+}
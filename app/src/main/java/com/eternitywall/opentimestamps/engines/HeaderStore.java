@@ -0,0 +1,562 @@
+package com.eternitywall.opentimestamps.engines;
+
+import android.content.Context;
+
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Local copy of the bitcoin block headers, to verify the attestations without the network.
+ * The headers are fixed 80 bytes records after a small file header, the record of a height is
+ * at a direct offset. Reads go through a read-only memory map of the records, remapped after
+ * every import. A bitcoin attestation commits to the merkle root, bytes 36..68 of the header
+ * as the msg of its node, and the block time is at 68..72, little endian.
+ * An import is checked as a light client would: the chain starts at the pinned genesis or at a
+ * checkpoint, every header has the proof of work of its bits, the bits follow the retarget
+ * rules, and a reorg is taken only for a branch with more work than the stored one.
+ */
+
+public class HeaderStore {
+
+    public interface Listener {
+        void onProgress(int countHeaders);
+    }
+
+    /**
+     * Consensus parameters of a chain: the genesis, the highest target and the heights a dump
+     * can start at without its parents.
+     */
+    public static final class Network {
+        // hashes in internal byte order, as doubleSha256 gives them
+        final byte[] genesis;
+        final BigInteger powLimit;
+        final boolean retargeting;
+        final Map<Integer, byte[]> checkpoints = new HashMap<>();
+
+        Network(byte[] genesis, BigInteger powLimit, boolean retargeting) {
+            this.genesis = genesis;
+            this.powLimit = powLimit;
+            this.retargeting = retargeting;
+        }
+
+        Network checkpoint(int height, byte[] hash) {
+            checkpoints.put(height, hash);
+            return this;
+        }
+
+        // From a block hash as it is displayed
+        private Network checkpoint(int height, String hash) {
+            return checkpoint(height, fromDisplayHex(hash));
+        }
+    }
+
+    public static final Network MAINNET = new Network(
+            fromDisplayHex("000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f"),
+            new BigInteger("00000000ffffffffffffffffffffffffffffffffffffffffffffffffffffffff", 16), true)
+            .checkpoint(11111, "0000000069e244f73d78e8fd29ba2fd2ed618bd6fa2ee92559f542fdb26e7c1d")
+            .checkpoint(33333, "000000002dd5588a74784eaa7ab0507a18ad16a236e7b1ce69f00d7ddfb5d0a6")
+            .checkpoint(74000, "0000000000573993a3c9e41ce34471c079dcf5f52a0e824a81e7f953b8661a20")
+            .checkpoint(105000, "00000000000291ce28027faea320c8d2b054b2e0fe44a773f3eefb151d6bdc97")
+            .checkpoint(134444, "00000000000005b12ffd4cd315cd34ffd4a594f430ac814c91184a0d42d2b0fe")
+            .checkpoint(168000, "000000000000099e61ea72015e79632f216fe6cb33d7899acb35b75c8303b763")
+            .checkpoint(193000, "000000000000059f452a5f7340de6682a977387c17010ff6e6c3bd83ca8b1317")
+            .checkpoint(210000, "000000000000048b95347e83192f69cf0366076336c639f9b7228e9ba171342e")
+            .checkpoint(216116, "00000000000001b4f4b433e81ee46494af945cf96014816a4e2370f11b23df4e")
+            .checkpoint(225430, "00000000000001c108384350f74090433e7fcf79a606b8e797f065b130575932")
+            .checkpoint(250000, "000000000000003887df1f29024b06fc2200b55f8af8f35453d7be294df2d214")
+            .checkpoint(279000, "0000000000000001ae8c72a0b0c301f67e3afca10e819efa9041e458e9bd7e40")
+            .checkpoint(295000, "00000000000000004d9b4ef50f0f9d686fd69db2e03af35a100370c64632a983");
+
+    public static final int HEADER_SIZE = 80;
+    private static final byte[] MAGIC = "\0OTS headers\0".getBytes();
+    private static final int VERSION = 1;
+    // magic, version, start height, count of headers, padded
+    private static final int FILE_HEADER_SIZE = 32;
+    private static final int MERKLE_OFFSET = 36;
+    private static final int TIME_OFFSET = 68;
+    private static final int BITS_OFFSET = 72;
+    // the target is recomputed every 2016 blocks, for two weeks of blocks
+    static final int RETARGET_INTERVAL = 2016;
+    static final long TARGET_TIMESPAN = 14 * 24 * 60 * 60;
+    // a continuing dump is matched against the tail of the store, and no reorg goes deeper
+    private static final int MAX_OVERLAP = 10000;
+    // headers written per file write
+    private static final int BATCH = 2016;
+
+    private static HeaderStore sInstance;
+
+    public static synchronized HeaderStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new HeaderStore(new File(context.getFilesDir(), "headers"));
+        }
+        return sInstance;
+    }
+
+    private final File file;
+    private final Network network;
+    private int startHeight = 0;
+    private int count = 0;
+    private MappedByteBuffer mapped;
+
+    private int countVerified = 0;
+    private int countMismatches = 0;
+    private int countMissing = 0;
+    private int countReorgs = 0;
+
+    public HeaderStore(File file) {
+        this(file, MAINNET);
+    }
+
+    HeaderStore(File file, Network network) {
+        this.file = file;
+        this.network = network;
+        try {
+            open();
+        } catch (IOException e) {
+            // a broken store is dropped, the headers have to be imported again
+            e.printStackTrace();
+            file.delete();
+            startHeight = 0;
+            count = 0;
+            mapped = null;
+        }
+    }
+
+    private synchronized void open() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] header = new byte[FILE_HEADER_SIZE];
+            raf.readFully(header);
+            if (!Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC) || header[MAGIC.length] != VERSION) {
+                throw new IOException("Not a header store");
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(header, MAGIC.length + 1, 8);
+            startHeight = buffer.getInt();
+            count = buffer.getInt();
+            if (raf.length() < FILE_HEADER_SIZE + (long) count * HEADER_SIZE) {
+                throw new IOException("Truncated header store");
+            }
+            mapped = count == 0 ? null :
+                    raf.getChannel().map(FileChannel.MapMode.READ_ONLY, FILE_HEADER_SIZE, (long) count * HEADER_SIZE);
+        } finally {
+            raf.close();
+        }
+    }
+
+    public synchronized int getStartHeight() {
+        return startHeight;
+    }
+
+    // Height after the last stored header
+    public synchronized int getEndHeight() {
+        return startHeight + count;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean contains(int height) {
+        return height >= startHeight && height < startHeight + count;
+    }
+
+    // The raw header at a height, null if not stored
+    public synchronized byte[] getHeader(int height) {
+        if (!contains(height)) {
+            return null;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        ByteBuffer buffer = mapped.duplicate();
+        buffer.position((height - startHeight) * HEADER_SIZE);
+        buffer.get(header);
+        return header;
+    }
+
+    public byte[] getMerkleRoot(int height) {
+        byte[] header = getHeader(height);
+        return header == null ? null : Arrays.copyOfRange(header, MERKLE_OFFSET, MERKLE_OFFSET + 32);
+    }
+
+    // Block time in seconds, -1 if not stored
+    public long getTime(int height) {
+        byte[] header = getHeader(height);
+        return header == null ? -1 : readTime(header);
+    }
+
+    private static long readTime(byte[] header) {
+        return ByteBuffer.wrap(header, TIME_OFFSET, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+    }
+
+    private static long readBits(byte[] header) {
+        return ByteBuffer.wrap(header, BITS_OFFSET, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+    }
+
+    /**
+     * Verify the bitcoin attestations of a proof against the stored headers.
+     * Returns the earliest attested time, 0 if the attestations checked are all wrong,
+     * null if no attestation is at a stored height and the network is needed.
+     */
+    public Long verify(Timestamp timestamp) {
+        long[] earliest = { Long.MAX_VALUE };
+        int[] counts = new int[3];
+        verify(timestamp, earliest, counts);
+        synchronized (this) {
+            countVerified += counts[0];
+            countMismatches += counts[1];
+            countMissing += counts[2];
+        }
+        if (counts[0] > 0) {
+            return earliest[0];
+        }
+        return counts[1] > 0 ? Long.valueOf(0) : null;
+    }
+
+    // counts: verified, mismatches, missing
+    private void verify(Timestamp timestamp, long[] earliest, int[] counts) {
+        for (TimeAttestation attestation : timestamp.attestations) {
+            if (!(attestation instanceof BitcoinBlockHeaderAttestation)) {
+                continue;
+            }
+            byte[] header = getHeader(((BitcoinBlockHeaderAttestation) attestation).getHeight());
+            if (header == null) {
+                counts[2]++;
+            } else if (Arrays.equals(timestamp.msg, Arrays.copyOfRange(header, MERKLE_OFFSET, MERKLE_OFFSET + 32))) {
+                counts[0]++;
+                earliest[0] = Math.min(earliest[0], readTime(header));
+            } else {
+                counts[1]++;
+            }
+        }
+        for (Timestamp child : timestamp.ops.values()) {
+            verify(child, earliest, counts);
+        }
+    }
+
+    /**
+     * Import a dump of consecutive raw headers and close it. A dump starting with the genesis
+     * block goes at height 0, any other dump has to continue the headers already stored.
+     */
+    public int importing(InputStream input, Listener listener) throws IOException {
+        try {
+            byte[] first = new byte[HEADER_SIZE];
+            if (readFully(input, first) < HEADER_SIZE) {
+                throw new IOException("Empty header dump");
+            }
+            int height;
+            if (isZero(first, 4, 36)) {
+                height = 0;
+            } else {
+                height = findParent(first);
+                if (height < 0) {
+                    throw new IOException("The header dump doesn't continue the stored headers");
+                }
+            }
+            return importing(first, input, height, listener);
+        } finally {
+            input.close();
+        }
+    }
+
+    // Import a dump of consecutive raw headers starting at a known height, and close it
+    public int importing(InputStream input, int height, Listener listener) throws IOException {
+        try {
+            byte[] first = new byte[HEADER_SIZE];
+            if (readFully(input, first) < HEADER_SIZE) {
+                throw new IOException("Empty header dump");
+            }
+            return importing(first, input, height, listener);
+        } finally {
+            input.close();
+        }
+    }
+
+    private synchronized int importing(byte[] first, InputStream input, int height, Listener listener) throws IOException {
+        if (count > 0 && (height < startHeight || height > startHeight + count)) {
+            throw new IOException("Headers from " + height + " leave a gap with the stored " + startHeight + ".." + getEndHeight());
+        }
+        if (count == 0) {
+            startHeight = height;
+        }
+
+        int start = height;
+        byte[] previous = height > startHeight ? getHeader(height - 1) : null;
+        if (previous == null) {
+            // without its parents the first header has to be a pinned one
+            byte[] pinned = height == 0 ? network.genesis : network.checkpoints.get(height);
+            if (pinned == null || !Arrays.equals(doubleSha256(first), pinned)) {
+                throw new IOException("Header " + height + " is not a known block of the chain");
+            }
+        }
+        // time of the first block of the retarget period, -1 if not stored
+        int periodStart = height - height % RETARGET_INTERVAL;
+        long firstTime = periodStart < height && contains(periodStart) ? getTime(periodStart) : -1;
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(BATCH * HEADER_SIZE);
+        byte[] header = first;
+        int countBatch = 0;
+        int countImported = 0;
+        // a reorg branch is held in memory until it has more work than the stored one
+        boolean changed = false;
+        int reorgHeight = -1;
+        BigInteger storedWork = BigInteger.ZERO;
+        BigInteger branchWork = BigInteger.ZERO;
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < FILE_HEADER_SIZE) {
+                writeFileHeader(raf, startHeight, 0);
+            }
+            FileChannel channel = raf.getChannel();
+            while (header != null) {
+                int current = height + countBatch;
+                if (previous != null) {
+                    if (!Arrays.equals(Arrays.copyOfRange(header, 4, 36), doubleSha256(previous))) {
+                        throw new IOException("Header " + current + " doesn't link to the previous one");
+                    }
+                    checkBits(header, current, previous, firstTime);
+                }
+                if (!hasWork(header, network.powLimit)) {
+                    throw new IOException("Header " + current + " doesn't have the proof of work of its target");
+                }
+                if (current % RETARGET_INTERVAL == 0) {
+                    firstTime = readTime(header);
+                }
+                if (!changed && contains(current) && !Arrays.equals(header, getHeader(current))) {
+                    // a reorg, the stored headers after it are dropped if the branch has more work
+                    if (getEndHeight() - current > MAX_OVERLAP) {
+                        throw new IOException("Reorg at " + current + " deeper than " + MAX_OVERLAP + " headers");
+                    }
+                    changed = true;
+                    reorgHeight = current;
+                    for (int stored = current; stored < getEndHeight(); stored++) {
+                        storedWork = storedWork.add(getWork(readBits(getHeader(stored))));
+                    }
+                }
+                if (changed) {
+                    branchWork = branchWork.add(getWork(readBits(header)));
+                }
+                batch.write(header, 0, HEADER_SIZE);
+                countBatch++;
+                previous = header;
+
+                header = new byte[HEADER_SIZE];
+                int read = readFully(input, header);
+                if (read < HEADER_SIZE) {
+                    if (read > 0) {
+                        throw new IOException("Truncated header at " + (height + countBatch));
+                    }
+                    header = null;
+                }
+                boolean holding = changed && branchWork.compareTo(storedWork) <= 0;
+                if (holding && header == null) {
+                    throw new IOException("The reorg at " + reorgHeight + " has less work than the stored headers");
+                }
+                if (!holding && (countBatch >= BATCH || header == null)) {
+                    channel.write(ByteBuffer.wrap(batch.toByteArray()),
+                            FILE_HEADER_SIZE + (long) (height - startHeight) * HEADER_SIZE);
+                    batch.reset();
+                    height += countBatch;
+                    countImported += countBatch;
+                    countBatch = 0;
+                    if (listener != null) {
+                        listener.onProgress(countImported);
+                    }
+                }
+            }
+
+            // the count goes last, a broken import leaves the previous headers valid
+            int end = changed ? height : Math.max(height, startHeight + count);
+            channel.force(false);
+            writeFileHeader(raf, startHeight, end - startHeight);
+            raf.setLength(FILE_HEADER_SIZE + (long) (end - startHeight) * HEADER_SIZE);
+            channel.force(true);
+            if (changed) {
+                countReorgs++;
+            }
+        } finally {
+            raf.close();
+            open();
+        }
+        return height - start;
+    }
+
+    // The bits of a header have to be the ones of its height after the previous header
+    private void checkBits(byte[] header, int height, byte[] previous, long firstTime) throws IOException {
+        long bits = readBits(header);
+        long previousBits = readBits(previous);
+        if (!network.retargeting || height % RETARGET_INTERVAL != 0) {
+            if (bits != previousBits) {
+                throw new IOException("Header " + height + " changes the target out of a retarget");
+            }
+            return;
+        }
+        if (firstTime >= 0) {
+            if (bits != retarget(previousBits, readTime(previous) - firstTime, network.powLimit)) {
+                throw new IOException("Header " + height + " doesn't have the retargeted bits");
+            }
+            return;
+        }
+        // the period started before a checkpoint, only the bounds of a retarget are known
+        BigInteger target = decodeBits(bits);
+        if (target == null
+                || target.compareTo(decodeBits(retarget(previousBits, TARGET_TIMESPAN / 4, network.powLimit))) < 0
+                || target.compareTo(decodeBits(retarget(previousBits, TARGET_TIMESPAN * 4, network.powLimit))) > 0) {
+            throw new IOException("Header " + height + " retargets out of bounds");
+        }
+    }
+
+    // The bits after a retarget period that took timespan seconds
+    static long retarget(long bits, long timespan, BigInteger powLimit) {
+        timespan = Math.max(TARGET_TIMESPAN / 4, Math.min(TARGET_TIMESPAN * 4, timespan));
+        BigInteger target = decodeBits(bits).multiply(BigInteger.valueOf(timespan)).divide(BigInteger.valueOf(TARGET_TIMESPAN));
+        return encodeBits(target.min(powLimit));
+    }
+
+    // The hash of the header, as a number, is at most the target of its bits
+    static boolean hasWork(byte[] header, BigInteger powLimit) throws IOException {
+        BigInteger target = decodeBits(readBits(header));
+        if (target == null || target.compareTo(powLimit) > 0) {
+            return false;
+        }
+        byte[] hash = doubleSha256(header);
+        return new BigInteger(1, reverse(hash)).compareTo(target) <= 0;
+    }
+
+    // Expected hashes to find a header of these bits
+    static BigInteger getWork(long bits) {
+        BigInteger target = decodeBits(bits);
+        return target == null ? BigInteger.ZERO : BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+    }
+
+    // The target of compact bits, null if negative, zero or over 256 bits
+    static BigInteger decodeBits(long bits) {
+        int size = (int) (bits >>> 24);
+        long word = bits & 0x007fffffL;
+        if ((bits & 0x00800000L) != 0 || word == 0) {
+            return null;
+        }
+        BigInteger target = size <= 3 ? BigInteger.valueOf(word >>> (8 * (3 - size))) :
+                BigInteger.valueOf(word).shiftLeft(8 * (size - 3));
+        return target.signum() == 0 || target.bitLength() > 256 ? null : target;
+    }
+
+    static long encodeBits(BigInteger target) {
+        int size = (target.bitLength() + 7) / 8;
+        long word = size <= 3 ? target.longValue() << (8 * (3 - size)) : target.shiftRight(8 * (size - 3)).longValue();
+        if ((word & 0x00800000L) != 0) {
+            word >>>= 8;
+            size++;
+        }
+        return word | ((long) size << 24);
+    }
+
+    // Height after the stored header that the first header of a dump links to, -1 if none
+    private synchronized int findParent(byte[] first) throws IOException {
+        byte[] parent = Arrays.copyOfRange(first, 4, 36);
+        int end = startHeight + count;
+        for (int height = end - 1; height >= Math.max(startHeight, end - MAX_OVERLAP); height--) {
+            if (Arrays.equals(parent, doubleSha256(getHeader(height)))) {
+                return height + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static void writeFileHeader(RandomAccessFile raf, int startHeight, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        buffer.put(MAGIC);
+        buffer.put((byte) VERSION);
+        buffer.putInt(startHeight);
+        buffer.putInt(count);
+        raf.seek(0);
+        raf.write(buffer.array());
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int read = input.read(buffer, total, buffer.length - total);
+            if (read == -1) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static boolean isZero(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] reverse(byte[] bytes) {
+        byte[] reversed = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            reversed[i] = bytes[bytes.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static byte[] fromDisplayHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[bytes.length - 1 - i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    static byte[] doubleSha256(byte[] bytes) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(digest.digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public synchronized int getCountVerified() {
+        return countVerified;
+    }
+
+    public synchronized int getCountMismatches() {
+        return countMismatches;
+    }
+
+    public synchronized int getCountMissing() {
+        return countMissing;
+    }
+
+    public synchronized int getCountReorgs() {
+        return countReorgs;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("headers %d..%d, %d verified, %d mismatches, %d missing",
+                startHeight, getEndHeight(), countVerified, countMismatches, countMissing);
+    }
+}
@@ -0,0 +1,205 @@
+package com.eternitywall.opentimestamps.engines;
+
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.models.Ots;
+import com.eternitywall.opentimestamps.models.OtsBundle;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.ots.Timestamp;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Import proofs from a stream: a zip of .ots files, a bundle or a single .ots.
+ * Zip entries are read one at a time into a reused buffer and merged in batches,
+ * each batch in one transaction, so the memory does not grow with the archive.
+ */
+
+public class ImportEngine {
+
+    public interface Listener {
+        void onProgress(int countEntries, long countBytes);
+    }
+
+    public enum Format {
+        ZIP, BUNDLE, OTS
+    }
+
+    // Proofs merged per transaction
+    private static final int BATCH = 1000;
+    // A larger entry is not a single proof
+    private static final int MAX_ENTRY = 1024 * 1024;
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+
+    private final TimestampStore timestampStore;
+    private final byte[] chunk = new byte[64 * 1024];
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private Format format;
+    private int countEntries = 0;
+    private int countFailed = 0;
+    private long countBytes = 0;
+    private long elapsed = 0;
+
+    public ImportEngine(TimestampStore timestampStore) {
+        this.timestampStore = timestampStore;
+    }
+
+    // Import the proofs of the stream, whatever the format, and close it
+    public int importing(InputStream input, Listener listener) throws Exception {
+        countEntries = 0;
+        countFailed = 0;
+        countBytes = 0;
+        long start = System.currentTimeMillis();
+
+        BufferedInputStream in = new BufferedInputStream(input, chunk.length);
+        try {
+            format = detect(in);
+            switch (format) {
+                case ZIP:
+                    importingZip(in, listener);
+                    break;
+                case BUNDLE:
+                    importingBundle(in, listener);
+                    break;
+                case OTS:
+                    importingOts(in, listener);
+                    break;
+            }
+        } finally {
+            in.close();
+            elapsed = System.currentTimeMillis() - start;
+            Log.d("STAMP", "IMPORT: " + toString());
+        }
+        return countEntries;
+    }
+
+    private Format detect(BufferedInputStream in) throws IOException {
+        byte[] magic = new byte[OtsBundle.MAGIC.length];
+        in.mark(magic.length);
+        int length = 0;
+        int read;
+        while (length < magic.length && (read = in.read(magic, length, magic.length - length)) != -1) {
+            length += read;
+        }
+        in.reset();
+
+        if (length >= ZIP_MAGIC.length && Arrays.equals(Arrays.copyOf(magic, ZIP_MAGIC.length), ZIP_MAGIC)) {
+            return Format.ZIP;
+        }
+        if (OtsBundle.isBundle(Arrays.copyOf(magic, length))) {
+            return Format.BUNDLE;
+        }
+        return Format.OTS;
+    }
+
+    private void importingZip(InputStream in, Listener listener) throws IOException {
+        ZipInputStream zin = new ZipInputStream(in);
+        List<Timestamp> timestamps = new ArrayList<>(BATCH);
+        ZipEntry entry;
+        while ((entry = zin.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            try {
+                byte[] bytes = readEntry(zin);
+                timestamps.add(Ots.read(bytes).getTimestamp());
+                countEntries++;
+                countBytes += bytes.length;
+            } catch (Exception e) {
+                // Not a proof, skip it
+                Log.d("STAMP", "IMPORT: skip " + entry.getName() + " " + e);
+                countFailed++;
+            }
+            zin.closeEntry();
+
+            if (timestamps.size() >= BATCH) {
+                timestampStore.addTimestamps(timestamps);
+                timestamps.clear();
+                if (listener != null) {
+                    listener.onProgress(countEntries, countBytes);
+                }
+            }
+        }
+        if (!timestamps.isEmpty()) {
+            timestampStore.addTimestamps(timestamps);
+        }
+        if (listener != null) {
+            listener.onProgress(countEntries, countBytes);
+        }
+    }
+
+    private void importingBundle(InputStream in, Listener listener) throws Exception {
+        byte[] bytes = readAll(in);
+        OtsBundle bundle = Ots.readBundle(bytes);
+        timestampStore.addTimestamps(bundle.getTimestamps());
+        countEntries = bundle.size();
+        countBytes = bytes.length;
+        if (listener != null) {
+            listener.onProgress(countEntries, countBytes);
+        }
+    }
+
+    private void importingOts(InputStream in, Listener listener) throws Exception {
+        byte[] bytes = readEntry(in);
+        timestampStore.addTimestamp(Ots.read(bytes).getTimestamp());
+        countEntries = 1;
+        countBytes = bytes.length;
+        if (listener != null) {
+            listener.onProgress(countEntries, countBytes);
+        }
+    }
+
+    // Read a whole entry into the reused buffer, the entry size in the zip header may be missing
+    private byte[] readEntry(InputStream in) throws IOException {
+        buffer.reset();
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            buffer.write(chunk, 0, read);
+            if (buffer.size() > MAX_ENTRY) {
+                throw new IOException("Entry over " + MAX_ENTRY + " bytes");
+            }
+        }
+        return buffer.toByteArray();
+    }
+
+    private byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int read;
+        while ((read = in.read(chunk)) != -1) {
+            out.write(chunk, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public int getCountFailed() {
+        return countFailed;
+    }
+
+    public double getEntriesPerSecond() {
+        return elapsed == 0 ? 0 : countEntries * 1000.0 / elapsed;
+    }
+
+    public double getBytesPerSecond() {
+        return elapsed == 0 ? 0 : countBytes * 1000.0 / elapsed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d entries, %d bytes, %d skipped in %d ms: %.1f entries/s, %.1f KB/s",
+                format, countEntries, countBytes, countFailed, elapsed,
+                getEntriesPerSecond(), getBytesPerSecond() / 1024);
+    }
+}
@@ -0,0 +1,189 @@
+package com.eternitywall.opentimestamps.engines;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.IOUtil;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.opentimestamps.stores.TimestampStores;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stamp the leaves of every requester in rounds: the requests received within the window
+ * after the first one share a single merkle tree and a single calendar submission.
+ * The leaves of a round are stored in one transaction, then each requester gets the
+ * round back to update its own state.
+ */
+
+public class StampingCoordinator {
+
+    public static final long DEFAULT_WINDOW = 5000;
+
+    public interface Callback {
+        void onStamped(Round round);
+        void onError(Exception e);
+    }
+
+    public static class Round {
+        public byte[] tip;
+        public byte[] ots;
+        public int countLeaves;
+        public int countRequests;
+    }
+
+    private static class Request {
+        List<DetachedTimestampFile> leaves;
+        Callback callback;
+    }
+
+    private static StampingCoordinator sInstance;
+
+    public static synchronized StampingCoordinator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new StampingCoordinator(TimestampStores.get(context));
+        }
+        return sInstance;
+    }
+
+    private final TimestampStore timestampStore;
+    private final CalendarPool calendarPool = CalendarPool.getDefault();
+    private final SecureRandom random = new SecureRandom();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private List<Request> requests = new ArrayList<>();
+    private int countRunning = 0;
+    private volatile long window = DEFAULT_WINDOW;
+
+    private final Runnable mRound = new Runnable() {
+        @Override
+        public void run() {
+            round();
+        }
+    };
+
+    private StampingCoordinator(TimestampStore timestampStore) {
+        this.timestampStore = timestampStore;
+    }
+
+    public void setWindow(long window) {
+        this.window = window;
+    }
+
+    public long getWindow() {
+        return window;
+    }
+
+    // Queue leaves for the next round, the callback runs on the coordinator thread
+    public synchronized void submit(List<DetachedTimestampFile> leaves, Callback callback) {
+        Request request = new Request();
+        request.leaves = leaves;
+        request.callback = callback;
+        requests.add(request);
+        countRunning++;
+        if (requests.size() == 1) {
+            executor.schedule(mRound, window, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Submit and wait for the round, for requesters with their own thread
+    public Round stamp(List<DetachedTimestampFile> leaves) throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Round[] round = { null };
+        final Exception[] error = { null };
+        submit(leaves, new Callback() {
+            @Override
+            public void onStamped(Round stamped) {
+                round[0] = stamped;
+                latch.countDown();
+            }
+
+            @Override
+            public void onError(Exception e) {
+                error[0] = e;
+                latch.countDown();
+            }
+        });
+        latch.await();
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return round[0];
+    }
+
+    // No request waiting for a round
+    public synchronized boolean isIdle() {
+        return countRunning == 0;
+    }
+
+    private void round() {
+        List<Request> round;
+        synchronized (this) {
+            round = requests;
+            requests = new ArrayList<>();
+        }
+
+        List<DetachedTimestampFile> leaves = new ArrayList<>();
+        for (Request request : round) {
+            leaves.addAll(request.leaves);
+        }
+
+        Round stamped = new Round();
+        stamped.countLeaves = leaves.size();
+        stamped.countRequests = round.size();
+        Exception error = null;
+        try {
+            long start = System.nanoTime();
+            Timestamp merkleTip = OpenTimestamps.makeMerkleTree(leaves);
+            // Nonce on the tip as OpenTimestamps.stamp does, then the calendars in parallel
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            Timestamp nonced = merkleTip.add(new OpAppend(nonce)).add(new OpSHA256());
+            CalendarPool.merge(nonced, calendarPool.submit(nonced.msg));
+            DetachedTimestampFile detached = new DetachedTimestampFile(new OpSHA256(), merkleTip);
+            stamped.tip = merkleTip.getDigest();
+            stamped.ots = detached.serialize();
+
+            List<Timestamp> timestamps = new ArrayList<>(leaves.size());
+            for (DetachedTimestampFile leaf : leaves) {
+                timestamps.add(leaf.getTimestamp());
+            }
+            timestampStore.addTimestamps(timestamps);
+            long us = Metrics.timer("stamp.round").stop(start);
+            Metrics.counter("stamp.leaves").add(stamped.countLeaves);
+            Log.d("STAMP", "ROUND: " + stamped.countLeaves + " leaves of " + stamped.countRequests + " requests, merkle " +
+                    IOUtil.bytesToHex(stamped.tip) + " in " + us / 1000 + " ms");
+            Log.d("STAMP", "CALENDARS: " + calendarPool);
+        } catch (Exception e) {
+            e.printStackTrace();
+            Metrics.counter("stamp.failures").inc();
+            error = e;
+        }
+
+        for (Request request : round) {
+            synchronized (this) {
+                countRunning--;
+            }
+            try {
+                if (error == null) {
+                    request.callback.onStamped(stamped);
+                } else {
+                    request.callback.onError(error);
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
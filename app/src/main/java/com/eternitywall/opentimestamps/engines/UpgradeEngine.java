@@ -0,0 +1,142 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Upgrade the stored proofs by calendar commitment instead of by file.
+ * The files stamped together share the merkle tip and its pending attestations, so every
+ * distinct (calendar, commitment) is queried once and the upgraded subtree is merged back
+ * into the node store: all the proofs below that commitment become complete together.
+ * As OpenTimestamps.upgrade does, an answer is merged only if it reaches a bitcoin attestation,
+ * a commitment the calendar has not confirmed yet stays pending and is asked again.
+ */
+
+public class UpgradeEngine {
+
+    public interface PendingStore {
+        // Nodes with a pending attestation not completed by a bitcoin attestation yet
+        List<Timestamp> getPendingNodes();
+        void addTimestamps(Collection<Timestamp> timestamps);
+    }
+
+    public interface CalendarClient {
+        // The timestamp of the commitment, null while the calendar has not completed it
+        Timestamp getTimestamp(String url, byte[] commitment) throws Exception;
+    }
+
+    private final PendingStore store;
+    private final CalendarClient client;
+    private int countCommitments = 0;
+    private int countQueries = 0;
+    private int countUpgraded = 0;
+    private int countFailures = 0;
+    private long elapsed = 0;
+
+    public UpgradeEngine(PendingStore store) {
+        this(store, CalendarPool.getDefault());
+    }
+
+    public UpgradeEngine(PendingStore store, CalendarClient client) {
+        this.store = store;
+        this.client = client;
+    }
+
+    // Query each pending commitment once, returns the count of upgraded commitments
+    public int upgrade() {
+        long start = System.currentTimeMillis();
+        countCommitments = 0;
+        countQueries = 0;
+        countUpgraded = 0;
+        countFailures = 0;
+
+        // Distinct commitments by calendar
+        Map<String, Map<String, byte[]>> pendings = new LinkedHashMap<>();
+        for (Timestamp node : store.getPendingNodes()) {
+            for (TimeAttestation attestation : node.attestations) {
+                if (!(attestation instanceof PendingAttestation)) {
+                    continue;
+                }
+                String url = new String(((PendingAttestation) attestation).getUri(), Charset.forName("UTF-8"));
+                Map<String, byte[]> commitments = pendings.get(url);
+                if (commitments == null) {
+                    commitments = new LinkedHashMap<>();
+                    pendings.put(url, commitments);
+                }
+                commitments.put(Utils.bytesToHex(node.msg), node.msg);
+            }
+        }
+
+        List<Timestamp> upgraded = new ArrayList<>();
+        for (Map.Entry<String, Map<String, byte[]>> entry : pendings.entrySet()) {
+            String url = entry.getKey();
+            for (byte[] commitment : entry.getValue().values()) {
+                countCommitments++;
+                countQueries++;
+                try {
+                    Timestamp timestamp = client.getTimestamp(url, commitment);
+                    if (timestamp != null && isComplete(timestamp)) {
+                        upgraded.add(timestamp);
+                        countUpgraded++;
+                    }
+                } catch (Exception e) {
+                    // Not yet completed or calendar unreachable, the next run asks again
+                    countFailures++;
+                }
+            }
+        }
+
+        if (!upgraded.isEmpty()) {
+            store.addTimestamps(upgraded);
+        }
+        elapsed = System.currentTimeMillis() - start;
+        return countUpgraded;
+    }
+
+    // Whether a bitcoin attestation is reachable from the node
+    private static boolean isComplete(Timestamp node) {
+        for (TimeAttestation attestation : node.attestations) {
+            if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                return true;
+            }
+        }
+        for (Timestamp child : node.ops.values()) {
+            if (isComplete(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getCountCommitments() {
+        return countCommitments;
+    }
+
+    public int getCountQueries() {
+        return countQueries;
+    }
+
+    public int getCountUpgraded() {
+        return countUpgraded;
+    }
+
+    public int getCountFailures() {
+        return countFailures;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d pending commitments, %d calendar queries, %d upgraded, %d failed in %d ms",
+                countCommitments, countQueries, countUpgraded, countFailures, elapsed);
+    }
+}
@@ -0,0 +1,241 @@
+package com.eternitywall.opentimestamps.jobs;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.dbs.ChangeDBHelper;
+import com.eternitywall.opentimestamps.dbs.DirectoryDBHelper;
+import com.eternitywall.opentimestamps.dbs.FileHashDBHelper;
+import com.eternitywall.opentimestamps.dbs.FolderDBHelper;
+import com.eternitywall.opentimestamps.dbs.JobDBHelper;
+import com.eternitywall.opentimestamps.engines.ChangeTracker;
+import com.eternitywall.opentimestamps.engines.DirectoryScanner;
+import com.eternitywall.opentimestamps.engines.ExportEngine;
+import com.eternitywall.opentimestamps.engines.HashingEngine;
+import com.eternitywall.opentimestamps.engines.StampingCoordinator;
+import com.eternitywall.opentimestamps.engines.UpgradeEngine;
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Folder;
+import com.eternitywall.opentimestamps.models.Job;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.opentimestamps.stores.TimestampStores;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.sromku.simple.storage.Storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+
+/**
+ * Run the queued jobs of the folders, without any activity.
+ * The work done is saved as it goes: the digests in the files cache, the stamps in the
+ * timestamps table and the manifest with the consumed journal only after a stamp, so a job
+ * restarted after a kill finds its finished part and does only the rest.
+ */
+
+public class JobRunner {
+
+    // Progress checkpoints are saved at most once per second, the UI gets every step coalesced
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    public interface Listener {
+        void onProgress(Job job, Folder folder);
+        // End of a job handed off by run, error is null on success
+        void onFinished(Job job, Exception error);
+    }
+
+    private final Context context;
+    private final Storage storage;
+    private final FolderDBHelper folderDBHelper;
+    private final TimestampStore timestampStore;
+    private final FileHashDBHelper fileHashDBHelper;
+    private final JobDBHelper jobDBHelper;
+    private final ChangeTracker changeTracker;
+
+    public JobRunner(Context context, Storage storage) {
+        this.context = context;
+        this.storage = storage;
+        folderDBHelper = new FolderDBHelper(context);
+        timestampStore = TimestampStores.get(context);
+        fileHashDBHelper = new FileHashDBHelper(context);
+        jobDBHelper = new JobDBHelper(context);
+        changeTracker = new ChangeTracker(new DirectoryScanner(new DirectoryDBHelper(context)), new ChangeDBHelper(context));
+    }
+
+    // Run a job, false when it was handed off and ends later through the listener
+    public boolean run(Job job, Listener listener) throws Exception {
+        long start = System.nanoTime();
+        if (job.type == Job.Type.UPGRADE) {
+            upgrade();
+            Metrics.timer("job.upgrade").stop(start);
+            return true;
+        }
+        Folder folder = folderDBHelper.get(job.folderId);
+        switch (job.type) {
+            case SCAN:
+                scan(job, folder, listener);
+                Metrics.timer("job.scan").stop(start);
+                break;
+            case HASH:
+                hash(job, folder, listener);
+                Metrics.timer("job.hash").stop(start);
+                break;
+            case STAMP:
+                return stamp(job, folder, listener, start);
+            case EXPORT:
+                export(job, folder, listener);
+                Metrics.timer("job.export").stop(start);
+                break;
+        }
+        return true;
+    }
+
+    // Check a folder for changes, without stamping them
+    private void scan(Job job, Folder folder, Listener listener) {
+        folder.state = Folder.State.CHECKING;
+        listener.onProgress(job, folder);
+
+        DirectoryScanner.ChangeSet changes = changeTracker.getChanges(folder, folder.getRoot(storage), job.full);
+        Log.d("STAMP", "SCAN: " + changes);
+        if (changes.getChangedFiles().size() > 0) {
+            folder.state = Folder.State.NOTUPDATED;
+        } else {
+            // Nothing to stamp: keep the manifest and the journal up to date
+            changeTracker.commit(folder, changes);
+            folder.state = (folder.lastSync == 0) ? Folder.State.NOTHING : Folder.State.STAMPED;
+        }
+        listener.onProgress(job, folder);
+    }
+
+    // Hash the changed files into the files cache, then queue their stamp
+    private void hash(Job job, Folder folder, Listener listener) throws InterruptedException {
+        folder.state = Folder.State.CHECKING;
+        folder.countFiles = job.progress;
+        listener.onProgress(job, folder);
+
+        DirectoryScanner.ChangeSet changes = changeTracker.getChanges(folder, folder.getRoot(storage), false);
+        Log.d("STAMP", "SCAN: " + changes);
+        hashing(job, folder, changes, listener);
+        jobDBHelper.enqueue(folder.id, Job.Type.STAMP, false);
+    }
+
+    // Stamp the changed files in the next round of the coordinator, with the changes of the other
+    // folders and the shared files: the job ends when the round is stored
+    private boolean stamp(final Job job, final Folder folder, final Listener listener, final long start) throws Exception {
+        folder.state = Folder.State.STAMPING;
+        listener.onProgress(job, folder);
+
+        final DirectoryScanner.ChangeSet changes = changeTracker.getChanges(folder, folder.getRoot(storage), false);
+        final List<DetachedTimestampFile> fileTimestamps = hashing(job, folder, changes, listener);
+        folder.state = Folder.State.STAMPING;
+        listener.onProgress(job, folder);
+
+        if (fileTimestamps.isEmpty()) {
+            stamped(job, folder, changes, 0, listener);
+            Metrics.timer("job.stamp").stop(start);
+            return true;
+        }
+
+        StampingCoordinator.getInstance(context).submit(fileTimestamps, new StampingCoordinator.Callback() {
+            @Override
+            public void onStamped(StampingCoordinator.Round round) {
+                folder.hash = round.tip;
+                folder.ots = round.ots;
+                try {
+                    stamped(job, folder, changes, fileTimestamps.size(), listener);
+                } catch (Exception e) {
+                    listener.onFinished(job, e);
+                    return;
+                }
+                // from the hashing to the stored round
+                Metrics.timer("job.stamp").stop(start);
+                listener.onFinished(job, null);
+            }
+
+            @Override
+            public void onError(Exception e) {
+                listener.onFinished(job, e);
+            }
+        });
+        return false;
+    }
+
+    private void stamped(Job job, Folder folder, DirectoryScanner.ChangeSet changes, int countFiles, Listener listener) {
+        changeTracker.commit(folder, changes);
+
+        folder.state = Folder.State.STAMPED;
+        folder.countFiles = countFiles;
+        folder.lastSync = System.currentTimeMillis();
+        folderDBHelper.update(folder);
+        listener.onProgress(job, folder);
+    }
+
+    // Upgrade every pending calendar commitment once, completing the proofs of all the files below it
+    private void upgrade() {
+        UpgradeEngine upgradeEngine = new UpgradeEngine(timestampStore);
+        upgradeEngine.upgrade();
+        Log.d("STAMP", "UPGRADE: " + upgradeEngine);
+    }
+
+    // Export the proofs of a folder in one zip file, and in one bundle if asked, a resumed export writes them again from the start
+    private void export(final Job job, final Folder folder, final Listener listener) throws Exception {
+        folder.state = Folder.State.EXPORTING;
+        folder.countFiles = 0;
+        listener.onProgress(job, folder);
+
+        List<File> files = folder.getNestedFiles(storage);
+        if (files.size() > 0) {
+            ExportEngine exportEngine = new ExportEngine(fileHashDBHelper, timestampStore);
+            exportEngine.exporting(files, new FileOutputStream(folder.zipPath(context)), new ExportEngine.Listener() {
+                @Override
+                public void onProgress(int countEntries, long countBytes) {
+                    folder.countFiles = countEntries;
+                    listener.onProgress(job, folder);
+                }
+            });
+            // The same proofs with the shared nodes once, to import them back, when asked for
+            if (job.full) {
+                FileOutputStream output = new FileOutputStream(folder.bundlePath(context));
+                try {
+                    exportEngine.exportingBundle(files, output, null);
+                } finally {
+                    output.close();
+                }
+            }
+        }
+
+        folder.state = Folder.State.EXPORTED;
+        listener.onProgress(job, folder);
+    }
+
+    // Hash the changed files through the cache, checkpointing the count of hashed files: their digests
+    // are kept in the change set, to be marked as stamped once it is committed
+    private List<DetachedTimestampFile> hashing(final Job job, final Folder folder, DirectoryScanner.ChangeSet changes, final Listener listener) throws InterruptedException {
+        HashingEngine hashingEngine = new HashingEngine(fileHashDBHelper);
+        List<File> files = changes.getChangedFiles();
+        final long[] lastCheckpoint = {0};
+        // the workers report out of order, the count shown only grows
+        final long[] lastCount = {job.progress};
+        List<DetachedTimestampFile> fileTimestamps = hashingEngine.hashing(files, new HashingEngine.Listener() {
+            @Override
+            public void onProgress(int countFiles, long countBytes) {
+                synchronized (lastCheckpoint) {
+                    if (countFiles <= lastCount[0]) {
+                        return;
+                    }
+                    lastCount[0] = countFiles;
+                    long now = System.currentTimeMillis();
+                    if (now - lastCheckpoint[0] >= CHECKPOINT_INTERVAL) {
+                        lastCheckpoint[0] = now;
+                        jobDBHelper.checkpoint(job, countFiles);
+                    }
+                    folder.countFiles = countFiles;
+                    listener.onProgress(job, folder);
+                }
+            }
+        });
+        jobDBHelper.checkpoint(job, fileTimestamps.size());
+        changes.stamped.putAll(hashingEngine.getDigests());
+        return fileTimestamps;
+    }
+}
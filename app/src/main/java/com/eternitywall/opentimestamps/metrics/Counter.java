@@ -0,0 +1,33 @@
+package com.eternitywall.opentimestamps.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A count that only grows, safe to add from many threads.
+ */
+
+public class Counter {
+
+    private final AtomicLong count = new AtomicLong();
+
+    public void inc() {
+        count.incrementAndGet();
+    }
+
+    public void add(long delta) {
+        count.addAndGet(delta);
+    }
+
+    public long get() {
+        return count.get();
+    }
+
+    void reset() {
+        count.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(count.get());
+    }
+}
@@ -0,0 +1,25 @@
+package com.eternitywall.opentimestamps.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The last value of a size or a level, set by its owner.
+ */
+
+public class Gauge {
+
+    private final AtomicLong value = new AtomicLong();
+
+    public void set(long value) {
+        this.value.set(value);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(value.get());
+    }
+}
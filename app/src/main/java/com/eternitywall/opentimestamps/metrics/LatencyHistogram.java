@@ -0,0 +1,108 @@
+package com.eternitywall.opentimestamps.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies counted in fixed log-scale buckets, safe to record from many threads.
+ * Recording doesn't allocate, the buckets are in ms unless given.
+ */
+
+public class LatencyHistogram {
+
+    // Upper bounds of the buckets in ms, the last bucket takes the rest
+    private static final long[] BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000 };
+
+    private final long[] bounds;
+    private final String unit;
+    private final AtomicLongArray counts;
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public LatencyHistogram() {
+        this(BOUNDS_MS, "ms");
+    }
+
+    // Buckets with increasing upper bounds in a unit
+    public LatencyHistogram(long[] bounds, String unit) {
+        this.bounds = bounds;
+        this.unit = unit;
+        counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        counts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long count = this.count.get();
+        return count == 0 ? 0 : sum.get() / (double) count;
+    }
+
+    // Upper bound of the bucket holding the percentile, the max for the last bucket
+    public long getPercentile(double percentile) {
+        long count = this.count.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(bounds[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Bucket upper bounds and counts, the last bound is Long.MAX_VALUE
+    public long[][] getBuckets() {
+        long[][] buckets = new long[bounds.length + 1][2];
+        for (int i = 0; i <= bounds.length; i++) {
+            buckets[i][0] = i < bounds.length ? bounds[i] : Long.MAX_VALUE;
+            buckets[i][1] = counts.get(i);
+        }
+        return buckets;
+    }
+
+    // Drop the recorded values, the values recorded meanwhile may be half dropped
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count %d, mean %.1f %s, p50 %d %s, p90 %d %s, p99 %d %s, max %d %s",
+                getCount(), getMean(), unit, getPercentile(50), unit, getPercentile(90), unit,
+                getPercentile(99), unit, getMax(), unit);
+    }
+}
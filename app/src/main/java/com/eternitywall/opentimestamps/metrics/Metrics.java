@@ -0,0 +1,199 @@
+package com.eternitywall.opentimestamps.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process wide registry of the counters, gauges and latency histograms, by name.
+ * The names are constants of the instrumented code, like "db.FileHash.getByPath" or "job.hash":
+ * a lookup of a registered name doesn't allocate, the hot paths can look them up on every call.
+ * Values live until the process dies or a reset, they are shown by the diagnostics screen.
+ */
+
+public final class Metrics {
+
+    private static final ConcurrentMap<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter == null) {
+            counters.putIfAbsent(name, new Counter());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    public static Gauge gauge(String name) {
+        Gauge gauge = gauges.get(name);
+        if (gauge == null) {
+            gauges.putIfAbsent(name, new Gauge());
+            gauge = gauges.get(name);
+        }
+        return gauge;
+    }
+
+    public static Timer timer(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histograms.putIfAbsent(name, new Timer());
+            histogram = histograms.get(name);
+        }
+        if (!(histogram instanceof Timer)) {
+            throw new IllegalArgumentException(name + " is not a timer");
+        }
+        return (Timer) histogram;
+    }
+
+    // Show a histogram kept by its owner, replacing the one registered with the same name
+    public static void register(String name, LatencyHistogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public static Map<String, Long> getCounters() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    public static Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().get());
+        }
+        return values;
+    }
+
+    public static Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    // Zero the counters and the histograms, the gauges keep their last value
+    public static void reset() {
+        for (Counter counter : counters.values()) {
+            counter.reset();
+        }
+        for (LatencyHistogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    // One line per value, sorted by name
+    public static String format() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+            }
+        }
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * All the values as a JSON object, to attach to a bug report:
+     * { "time", "info": {...}, "counters": {...}, "gauges": {...},
+     *   "histograms": { name: { "unit", "count", "mean", "p50", "p90", "p99", "max", "buckets": [[le, count]] } } }
+     * The buckets are the non empty ones, the le of the last open bucket is null.
+     */
+    public static String toJson(Map<String, String> info) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"time\":").append(System.currentTimeMillis());
+
+        sb.append(",\"info\":{");
+        boolean first = true;
+        if (info != null) {
+            for (Map.Entry<String, String> entry : new TreeMap<>(info).entrySet()) {
+                first = appendKey(sb, entry.getKey(), first);
+                appendString(sb, entry.getValue());
+            }
+        }
+
+        sb.append("},\"counters\":{");
+        first = true;
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            first = appendKey(sb, entry.getKey(), first);
+            sb.append(entry.getValue());
+        }
+
+        sb.append("},\"gauges\":{");
+        first = true;
+        for (Map.Entry<String, Long> entry : getGauges().entrySet()) {
+            first = appendKey(sb, entry.getKey(), first);
+            sb.append(entry.getValue());
+        }
+
+        sb.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            first = appendKey(sb, entry.getKey(), first);
+            sb.append("{\"unit\":");
+            appendString(sb, histogram.getUnit());
+            sb.append(",\"count\":").append(histogram.getCount())
+                    .append(",\"mean\":").append(String.format(Locale.US, "%.1f", histogram.getMean()))
+                    .append(",\"p50\":").append(histogram.getPercentile(50))
+                    .append(",\"p90\":").append(histogram.getPercentile(90))
+                    .append(",\"p99\":").append(histogram.getPercentile(99))
+                    .append(",\"max\":").append(histogram.getMax())
+                    .append(",\"buckets\":[");
+            boolean firstBucket = true;
+            for (long[] bucket : histogram.getBuckets()) {
+                if (bucket[1] == 0) {
+                    continue;
+                }
+                if (!firstBucket) {
+                    sb.append(',');
+                }
+                firstBucket = false;
+                sb.append('[').append(bucket[0] == Long.MAX_VALUE ? "null" : String.valueOf(bucket[0]))
+                        .append(',').append(bucket[1]).append(']');
+            }
+            sb.append("]}");
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    private static boolean appendKey(StringBuilder sb, String key, boolean first) {
+        if (!first) {
+            sb.append(',');
+        }
+        appendString(sb, key);
+        sb.append(':');
+        return false;
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        if (value == null) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        sb.append('"');
+    }
+}
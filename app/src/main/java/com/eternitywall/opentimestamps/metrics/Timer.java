@@ -0,0 +1,31 @@
+package com.eternitywall.opentimestamps.metrics;
+
+/**
+ * Latencies in microseconds from a db call to a whole job:
+ *
+ *     long start = timer.start();
+ *     try { ... } finally { timer.stop(start); }
+ */
+
+public class Timer extends LatencyHistogram {
+
+    // Upper bounds of the buckets in us, from 10 us to a minute
+    private static final long[] BOUNDS_US = { 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 20000, 50000, 100000, 200000, 500000,
+            1000000, 2000000, 5000000, 10000000, 30000000, 60000000 };
+
+    public Timer() {
+        super(BOUNDS_US, "us");
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    // Record the time since a start, returned in us
+    public long stop(long start) {
+        long us = (System.nanoTime() - start) / 1000;
+        record(us);
+        return us;
+    }
+}
@@ -0,0 +1,26 @@
+package com.eternitywall.opentimestamps.models;
+
+/**
+ * An event of the journal of a folder, recorded by the watcher.
+ */
+
+public class Change {
+    public long id;
+    public long folderId;
+    public String path;
+    public Event event;
+    public long time;
+
+    public enum Event {
+        // RESCAN : events may have been lost, the folder has to be scanned
+        CREATED, MODIFIED, DELETED, MOVED_FROM, MOVED_TO, RESCAN
+    }
+
+    public static int eventToInt(Event event) {
+        return event.ordinal();
+    }
+
+    public static Event intToEvent(int event) {
+        return Event.values()[event];
+    }
+}
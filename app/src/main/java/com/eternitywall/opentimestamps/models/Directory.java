@@ -0,0 +1,13 @@
+package com.eternitywall.opentimestamps.models;
+
+/**
+ * A directory of a folder as last scanned: its mtime and count of entries.
+ */
+
+public class Directory {
+    public long id;
+    public String path;
+    public String parent;
+    public long mtime;
+    public long countChildren;
+}
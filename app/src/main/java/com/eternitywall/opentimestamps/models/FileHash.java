@@ -0,0 +1,52 @@
+package com.eternitywall.opentimestamps.models;
+
+import android.os.Build;
+import android.system.Os;
+
+import java.io.File;
+
+/**
+ * The cached digest of a file, valid while its path, size, mtime and inode are unchanged.
+ */
+
+public class FileHash {
+    public long id;
+    public String path;
+    public long size;
+    public long mtime;
+    public long inode;
+    public byte[] digest;
+    public String dir;
+    // The digest went in a stamp of its folder, a new digest is not stamped yet
+    public boolean stamped;
+
+    // Build the identity of a file on disk, without reading its content
+    public static FileHash from(File file) {
+        FileHash fileHash = new FileHash();
+        fileHash.path = file.getAbsolutePath();
+        fileHash.dir = file.getAbsoluteFile().getParent();
+        fileHash.size = file.length();
+        fileHash.mtime = file.lastModified();
+        fileHash.inode = getInode(file);
+        return fileHash;
+    }
+
+    // The cached digest is still valid if the file identity did not change
+    public boolean isSame(FileHash fileHash) {
+        return this.path.equals(fileHash.path) &&
+                this.size == fileHash.size &&
+                this.mtime == fileHash.mtime &&
+                this.inode == fileHash.inode;
+    }
+
+    private static long getInode(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return 0;
+        }
+        try {
+            return Os.stat(file.getAbsolutePath()).st_ino;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+}
@@ -29,6 +29,10 @@ public class Folder {
         NOTHING, CHECKING, STAMPED, STAMPING, NOTUPDATED, EXPORTING, EXPORTED
     }
 
+    public File getRoot(Storage storage){
+        return storage.getFile(roodDir);
+    }
+
     public List<File> getNestedFiles(Storage storage){
         List<File> files = new ArrayList<>();
         files = storage.getNestedFiles(roodDir);
@@ -50,6 +54,10 @@ public class Folder {
         File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
         return  dir.getAbsolutePath()+"/"+this.name.replace(" ","_")+".zip";
     }
+    public String bundlePath(Context context){
+        File dir = Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS);
+        return  dir.getAbsolutePath()+"/"+this.name.replace(" ","_")+".otsb";
+    }
     public boolean isReady() {
         if (this.enabled == false)
             return false;
@@ -0,0 +1,51 @@
+package com.eternitywall.opentimestamps.models;
+
+/**
+ * A queued unit of background work on a folder, with its checkpoint and retries.
+ */
+
+public class Job {
+    public long id;
+    public long folderId;
+    public Type type;
+    // SCAN: list also the unchanged directories, EXPORT: write also the bundle
+    public boolean full = false;
+    public State state = State.PENDING;
+    // checkpoint: the files done so far
+    public long progress = 0;
+    public int retries = 0;
+    public long notBefore = 0;
+    public long time;
+    public String error;
+
+    public enum Type {
+        // SCAN : check a folder, HASH : hash its changed files, STAMP : stamp them,
+        // UPGRADE : all the pending proofs, not bound to a folder
+        SCAN, HASH, STAMP, UPGRADE, EXPORT
+    }
+
+    public enum State {
+        PENDING, RUNNING, DONE, FAILED
+    }
+
+    public static int typeToInt(Type type) {
+        return type.ordinal();
+    }
+
+    public static Type intToType(int type) {
+        return Type.values()[type];
+    }
+
+    public static int stateToInt(State state) {
+        return state.ordinal();
+    }
+
+    public static State intToState(int state) {
+        return State.values()[state];
+    }
+
+    @Override
+    public String toString() {
+        return type + " #" + id + " folder " + folderId + " " + state + " progress " + progress + " retries " + retries;
+    }
+}
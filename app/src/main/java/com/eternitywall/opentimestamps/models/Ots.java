@@ -1,6 +1,7 @@
 package com.eternitywall.opentimestamps.models;
 
 import com.eternitywall.opentimestamps.IOUtil;
+import com.eternitywall.opentimestamps.dbs.FileHashDBHelper;
 import com.eternitywall.opentimestamps.dbs.TimestampDBHelper;
 import com.eternitywall.ots.DetachedTimestampFile;
 import com.eternitywall.ots.Hash;
@@ -16,6 +17,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.NoSuchAlgorithmException;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
@@ -50,6 +52,15 @@ public class Ots {
         fos.close();
     }
 
+    public static void write(byte[] ots, String filepath) throws IOException {
+        FileOutputStream fos = new FileOutputStream(new File(filepath));
+        try {
+            fos.write(ots);
+        } finally {
+            fos.close();
+        }
+    }
+
     public static void write(ZipOutputStream out, DetachedTimestampFile detached, String filepath) throws IOException, NoSuchAlgorithmException {
 
         StreamSerializationContext ctx = new StreamSerializationContext();
@@ -64,7 +75,26 @@ public class Ots {
         }
     }
 
+    public static OtsBundle readBundle(File filepath) throws Exception {
+        return readBundle(IOUtil.readFile(filepath));
+    }
+
+    public static OtsBundle readBundle(byte[] bundle) throws Exception {
+        return OtsBundle.deserialize(bundle);
+    }
+
+    // The caller closes the stream
+    public static void writeBundle(OutputStream out, OtsBundle bundle) throws IOException {
+        OtsBundle.Writer writer = new OtsBundle.Writer(out);
+        writer.write(bundle.getTimestamps());
+        writer.finish();
+    }
+
     public static DetachedTimestampFile hashing(File file) throws Exception {
         return DetachedTimestampFile.from(new OpSHA256(), IOUtil.readFileSHA256(file));
     }
+
+    public static DetachedTimestampFile hashing(File file, FileHashDBHelper fileHashDBHelper) throws Exception {
+        return DetachedTimestampFile.from(new OpSHA256(), fileHashDBHelper.getDigest(file));
+    }
 }
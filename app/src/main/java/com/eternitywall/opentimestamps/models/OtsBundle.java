@@ -0,0 +1,260 @@
+package com.eternitywall.opentimestamps.models;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.StreamDeserializationContext;
+import com.eternitywall.ots.StreamSerializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+import com.eternitywall.ots.op.OpSHA256;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Proofs of many files with every tree node stored once.
+ *
+ * magic, version
+ * then chunks, until a chunk of 0 leaves:
+ * count of leaves, then for each leaf: digest length, digest, node index
+ * count of nodes, then for each node: attestations, ops each with its child node index
+ *
+ * Nodes are numbered across the chunks and stored parents first, so the message of every
+ * node is computed from its parent while reading, only the leaf digests are stored.
+ * A chunk refers to the nodes of the previous ones, so a bundle is written a batch of
+ * proofs at a time. Version 1 is a single chunk without the end.
+ */
+
+public class OtsBundle {
+
+    public static final byte[] MAGIC = { 0x00, 'O', 'T', 'S', ' ', 'b', 'u', 'n', 'd', 'l', 'e', 0x00 };
+    public static final int VERSION = 2;
+
+    // Leaves by hex digest, in the order they were added
+    private final Map<String, Timestamp> leaves = new LinkedHashMap<>();
+
+    public void add(Timestamp timestamp) {
+        leaves.put(Utils.bytesToHex(timestamp.msg), timestamp);
+    }
+
+    public void addAll(Collection<Timestamp> timestamps) {
+        for (Timestamp timestamp : timestamps) {
+            add(timestamp);
+        }
+    }
+
+    public Collection<Timestamp> getTimestamps() {
+        return leaves.values();
+    }
+
+    public int size() {
+        return leaves.size();
+    }
+
+    // A single standard .ots of a leaf, null if not in the bundle
+    public DetachedTimestampFile expand(byte[] digest) {
+        Timestamp timestamp = leaves.get(Utils.bytesToHex(digest));
+        if (timestamp == null) {
+            return null;
+        }
+        return new DetachedTimestampFile(new OpSHA256(), timestamp);
+    }
+
+    public static boolean isBundle(byte[] bytes) {
+        return bytes.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(bytes, MAGIC.length), MAGIC);
+    }
+
+    // Check the magic only, without reading the whole file
+    public static boolean isBundle(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(magic);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        return Arrays.equals(magic, MAGIC);
+    }
+
+    public byte[] serialize() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Writer writer = new Writer(out);
+            writer.write(leaves.values());
+            writer.finish();
+        } catch (IOException e) {
+            // not thrown by a byte array
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Write a bundle to a stream a chunk at a time, the caller closes the stream.
+     * The indexes of the last written nodes are kept to refer to them from the next chunks,
+     * an older node shared again is written again.
+     */
+    public static class Writer {
+
+        private static final int MAX_INDEXES = 64 * 1024;
+
+        private final OutputStream out;
+        private final Map<String, Integer> indexes = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                return size() > MAX_INDEXES;
+            }
+        };
+        private int countNodes = 0;
+
+        public Writer(OutputStream out) throws IOException {
+            this.out = out;
+            StreamSerializationContext ctx = new StreamSerializationContext();
+            ctx.writeBytes(MAGIC);
+            ctx.writeVaruint(VERSION);
+            out.write(ctx.getOutput());
+        }
+
+        // Write the proofs as one chunk
+        public void write(Collection<Timestamp> leaves) throws IOException {
+            if (leaves.isEmpty()) {
+                return;
+            }
+            // Number the new nodes breadth-first from the leaves, a node shared by many proofs once
+            Map<String, Integer> chunk = new HashMap<>();
+            List<Timestamp> nodes = new ArrayList<>();
+            for (Timestamp leaf : leaves) {
+                index(leaf, chunk, nodes);
+            }
+            for (int i = 0; i < nodes.size(); i++) {
+                for (Timestamp child : nodes.get(i).ops.values()) {
+                    index(child, chunk, nodes);
+                }
+            }
+
+            StreamSerializationContext ctx = new StreamSerializationContext();
+            ctx.writeVaruint(leaves.size());
+            for (Timestamp leaf : leaves) {
+                ctx.writeVaruint(leaf.msg.length);
+                ctx.writeBytes(leaf.msg);
+                ctx.writeVaruint(chunk.get(Utils.bytesToHex(leaf.msg)));
+            }
+
+            ctx.writeVaruint(nodes.size());
+            for (Timestamp node : nodes) {
+                ctx.writeVaruint(node.attestations.size());
+                for (TimeAttestation attestation : node.attestations) {
+                    attestation.serialize(ctx);
+                }
+                ctx.writeVaruint(node.ops.size());
+                for (Map.Entry<Op, Timestamp> entry : node.ops.entrySet()) {
+                    entry.getKey().serialize(ctx);
+                    ctx.writeVaruint(chunk.get(Utils.bytesToHex(entry.getValue().msg)));
+                }
+            }
+            out.write(ctx.getOutput());
+            indexes.putAll(chunk);
+        }
+
+        // Write the end of the bundle, without closing the stream
+        public void finish() throws IOException {
+            StreamSerializationContext ctx = new StreamSerializationContext();
+            ctx.writeVaruint(0);
+            out.write(ctx.getOutput());
+            out.flush();
+        }
+
+        // A node written by a previous chunk and still kept is referred to, the others are new
+        private void index(Timestamp node, Map<String, Integer> chunk, List<Timestamp> nodes) {
+            String key = Utils.bytesToHex(node.msg);
+            if (chunk.containsKey(key)) {
+                return;
+            }
+            Integer index = indexes.get(key);
+            if (index != null) {
+                chunk.put(key, index);
+            } else {
+                chunk.put(key, countNodes++);
+                nodes.add(node);
+            }
+        }
+    }
+
+    public static OtsBundle deserialize(byte[] bytes) throws Exception {
+        StreamDeserializationContext ctx = new StreamDeserializationContext(bytes);
+        if (!Arrays.equals(ctx.readBytes(MAGIC.length), MAGIC)) {
+            throw new Exception("Not an ots bundle");
+        }
+        int version = ctx.readVaruint();
+        if (version != 1 && version != VERSION) {
+            throw new Exception("Unsupported ots bundle version " + version);
+        }
+
+        List<Timestamp> leaves = new ArrayList<>();
+        Map<Integer, Timestamp> nodes = new HashMap<>();
+        int countNodes = 0;
+        while (true) {
+            int countLeaves = ctx.readVaruint();
+            if (countLeaves == 0 && version != 1) {
+                break;
+            }
+            for (int i = 0; i < countLeaves; i++) {
+                byte[] digest = ctx.readBytes(ctx.readVaruint());
+                int index = ctx.readVaruint();
+                Timestamp leaf = nodes.get(index);
+                if (leaf == null) {
+                    leaf = new Timestamp(digest);
+                    nodes.put(index, leaf);
+                }
+                leaves.add(leaf);
+            }
+
+            int count = ctx.readVaruint();
+            for (int i = countNodes; i < countNodes + count; i++) {
+                Timestamp node = nodes.get(i);
+                if (node == null) {
+                    throw new Exception("Ots bundle node " + i + " before its parent");
+                }
+                int countAttestations = ctx.readVaruint();
+                for (int j = 0; j < countAttestations; j++) {
+                    node.attestations.add(TimeAttestation.deserialize(ctx));
+                }
+                int countOps = ctx.readVaruint();
+                for (int j = 0; j < countOps; j++) {
+                    Op op = Op.deserialize(ctx);
+                    int index = ctx.readVaruint();
+                    Timestamp child = nodes.get(index);
+                    if (child == null) {
+                        nodes.put(index, node.add(op));
+                    } else {
+                        node.ops.put(op, child);
+                    }
+                }
+            }
+            countNodes += count;
+            if (version == 1) {
+                break;
+            }
+        }
+
+        OtsBundle bundle = new OtsBundle();
+        bundle.addAll(leaves);
+        return bundle;
+    }
+}
@@ -0,0 +1,15 @@
+package com.eternitywall.opentimestamps.models;
+
+/**
+ * A commitment waiting on a calendar, with the node it was submitted for.
+ */
+
+public class Pending {
+    public long id;
+    public String url;
+    // the commitment submitted to the calendar, msg of the pending node
+    public byte[] msg;
+    public long nodeId;
+    public long time;
+    public boolean completed = false;
+}
@@ -8,8 +8,6 @@ import com.eternitywall.ots.op.OpSHA256;
 
 import org.spongycastle.util.Times;
 
-import java.util.Arrays;
-
 /**
  * Created by luca on 11/06/2017.
  */
@@ -31,8 +29,4 @@ public class SerializedTimestamp {
         serialized = ctx.getOutput();
         msg = timestamp.getDigest();
     }
-
-    public int getHashcode(){
-        return Arrays.hashCode(msg);
-    }
 }
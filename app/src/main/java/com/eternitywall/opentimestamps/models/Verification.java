@@ -0,0 +1,20 @@
+package com.eternitywall.opentimestamps.models;
+
+/**
+ * The cached result of verifying the proof of a leaf digest.
+ */
+
+public class Verification {
+    // leaf digest, msg of the proof root
+    public byte[] digest;
+    // time attested by the block, in seconds
+    public long time;
+    public int height;
+    // the serialized bitcoin attestation of the block
+    public byte[] attestation;
+    // the serialized detached proof, shown and shared without loading the nodes
+    public byte[] proof;
+    // no pending attestation left in the proof
+    public boolean completed = false;
+    public long verified;
+}
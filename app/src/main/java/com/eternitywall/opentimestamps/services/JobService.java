@@ -0,0 +1,156 @@
+package com.eternitywall.opentimestamps.services;
+
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.dbs.JobDBHelper;
+import com.eternitywall.opentimestamps.engines.StampingCoordinator;
+import com.eternitywall.opentimestamps.jobs.JobRunner;
+import com.eternitywall.opentimestamps.models.Folder;
+import com.eternitywall.opentimestamps.models.Job;
+import com.sromku.simple.storage.SimpleStorage;
+import com.sromku.simple.storage.Storage;
+
+/**
+ * Drain the job queue on a background thread, one job at a time.
+ * The service is sticky: when the process is killed the system starts it again and the
+ * interrupted job runs again from its checkpoint. Progress is sent as a local broadcast,
+ * coalesced by the ProgressBus.
+ */
+
+public class JobService extends Service {
+
+    public static final String ACTION_PROGRESS = "com.eternitywall.opentimestamps.JOB_PROGRESS";
+    public static final String EXTRA_FOLDER_ID = "folderId";
+    public static final String EXTRA_STATE = "state";
+    public static final String EXTRA_COUNT_FILES = "countFiles";
+    public static final String EXTRA_LAST_SYNC = "lastSync";
+
+    // Queue a job and make sure the service is running it
+    public static void enqueue(Context context, long folderId, Job.Type type, boolean full) {
+        new JobDBHelper(context).enqueue(folderId, type, full);
+        context.startService(new Intent(context, JobService.class));
+    }
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private volatile int mLastStartId;
+
+    private JobDBHelper jobDBHelper;
+    private JobRunner jobRunner;
+    private ProgressBus progressBus;
+
+    private final JobRunner.Listener mListener = new JobRunner.Listener() {
+        @Override
+        public void onProgress(Job job, Folder folder) {
+            progressBus.post(folder);
+        }
+
+        @Override
+        public void onFinished(Job job, Exception error) {
+            finish(job, error);
+            // Check again the queue and whether to stop
+            mHandler.post(mDrain);
+        }
+    };
+
+    private final Runnable mDrain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread("JobService");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        Storage storage;
+        if (SimpleStorage.isExternalStorageWritable()) {
+            storage = SimpleStorage.getExternalStorage();
+        } else {
+            storage = SimpleStorage.getInternalStorage(this);
+        }
+        jobDBHelper = new JobDBHelper(this);
+        jobRunner = new JobRunner(this, storage);
+        progressBus = new ProgressBus(this);
+
+        // The service stops only with an empty queue, a running job here was killed
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                int count = jobDBHelper.resume();
+                if (count > 0) {
+                    Log.d("JOB", "Resuming " + count + " jobs");
+                }
+            }
+        });
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mLastStartId = startId;
+        mHandler.removeCallbacks(mDrain);
+        mHandler.post(mDrain);
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.removeCallbacks(mDrain);
+        mThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    private void drain() {
+        Job job;
+        while ((job = jobDBHelper.next()) != null) {
+            Log.d("JOB", "RUN: " + job);
+            try {
+                if (jobRunner.run(job, mListener)) {
+                    finish(job, null);
+                }
+            } catch (Exception e) {
+                finish(job, e);
+            }
+        }
+        jobDBHelper.purge();
+
+        // Wait for the retries and the stamping rounds, the service stays alive in the meanwhile
+        long nextRetry = jobDBHelper.nextRetry();
+        if (nextRetry > 0) {
+            mHandler.postDelayed(mDrain, Math.max(0, nextRetry - System.currentTimeMillis()));
+        } else if (StampingCoordinator.getInstance(this).isIdle()) {
+            stopSelfResult(mLastStartId);
+        }
+    }
+
+    private void finish(Job job, Exception error) {
+        if (error == null) {
+            jobDBHelper.done(job);
+        } else {
+            error.printStackTrace();
+            jobDBHelper.fail(job, error.toString());
+            publishFailure(job);
+        }
+        Log.d("JOB", "END: " + job + " in " + (System.currentTimeMillis() - job.time) + " ms since queued");
+    }
+
+    // The folder is left as not updated until the retry
+    private void publishFailure(Job job) {
+        progressBus.post(job.folderId, Folder.State.NOTUPDATED, -1, -1);
+    }
+}
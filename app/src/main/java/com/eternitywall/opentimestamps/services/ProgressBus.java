@@ -0,0 +1,106 @@
+package com.eternitywall.opentimestamps.services;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.v4.content.LocalBroadcastManager;
+
+import com.eternitywall.opentimestamps.metrics.Metrics;
+import com.eternitywall.opentimestamps.models.Folder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Folder progress for the UI, coalesced per folder to a frame budget.
+ * The jobs post every step from any thread; a change of state is sent at once with the
+ * pending progress of the other folders, the counts in between at most once per frame, with
+ * the last value of each folder. The broadcasts are sent under the lock, so they keep the
+ * order of the posts and a stale count never follows a new state.
+ */
+
+public class ProgressBus {
+
+    // 10 updates per second
+    public static final long FRAME = 100;
+
+    // Last progress of a folder, reused across the posts
+    private static class Progress {
+        long folderId;
+        Folder.State state;
+        long countFiles;
+        long lastSync;
+        boolean dirty;
+    }
+
+    private final LocalBroadcastManager broadcastManager;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Map<Long, Progress> progresses = new LinkedHashMap<>();
+    private long lastFlush = 0;
+    private boolean scheduled = false;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProgressBus.this) {
+                scheduled = false;
+                flush();
+            }
+        }
+    };
+
+    public ProgressBus(Context context) {
+        broadcastManager = LocalBroadcastManager.getInstance(context);
+    }
+
+    public void post(Folder folder) {
+        post(folder.id, folder.state, folder.countFiles, folder.lastSync);
+    }
+
+    // A negative count or last sync leaves the one shown
+    public synchronized void post(long folderId, Folder.State state, long countFiles, long lastSync) {
+        Metrics.counter("progress.posts").inc();
+        Progress progress = progresses.get(folderId);
+        if (progress == null) {
+            progress = new Progress();
+            progress.folderId = folderId;
+            progresses.put(folderId, progress);
+        }
+        boolean changed = progress.state != state;
+        progress.state = state;
+        progress.countFiles = countFiles;
+        progress.lastSync = lastSync;
+        progress.dirty = true;
+
+        long now = SystemClock.uptimeMillis();
+        if (changed || now - lastFlush >= FRAME) {
+            flush();
+        } else if (!scheduled) {
+            scheduled = true;
+            handler.postAtTime(mFlush, lastFlush + FRAME);
+        }
+    }
+
+    private void flush() {
+        lastFlush = SystemClock.uptimeMillis();
+        for (Progress progress : progresses.values()) {
+            if (!progress.dirty) {
+                continue;
+            }
+            progress.dirty = false;
+            Intent intent = new Intent(JobService.ACTION_PROGRESS);
+            intent.putExtra(JobService.EXTRA_FOLDER_ID, progress.folderId);
+            intent.putExtra(JobService.EXTRA_STATE, progress.state.name());
+            if (progress.countFiles >= 0) {
+                intent.putExtra(JobService.EXTRA_COUNT_FILES, progress.countFiles);
+            }
+            if (progress.lastSync >= 0) {
+                intent.putExtra(JobService.EXTRA_LAST_SYNC, progress.lastSync);
+            }
+            broadcastManager.sendBroadcast(intent);
+            Metrics.counter("progress.broadcasts").inc();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.eternitywall.opentimestamps.services;
+
+import android.app.Service;
+import android.content.Intent;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.util.Log;
+
+import com.eternitywall.opentimestamps.dbs.ChangeDBHelper;
+import com.eternitywall.opentimestamps.dbs.DirectoryDBHelper;
+import com.eternitywall.opentimestamps.dbs.FolderDBHelper;
+import com.eternitywall.opentimestamps.models.Change;
+import com.eternitywall.opentimestamps.models.Directory;
+import com.eternitywall.opentimestamps.models.Folder;
+import com.sromku.simple.storage.SimpleStorage;
+import com.sromku.simple.storage.Storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watch the enabled folders with a FileObserver on every directory and journal
+ * the file events in the changes table, so that a quiet folder costs no I/O to check.
+ * Events are lost while the service is not running, so every (re)start of a watch
+ * and every change of the directory tree journals a rescan of the folder.
+ * Send a start intent again to reload the folders after enabling or disabling one.
+ */
+
+public class WatcherService extends Service {
+
+    private static final int MASK = FileObserver.CREATE | FileObserver.CLOSE_WRITE |
+            FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE |
+            FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    // Folders with live observers in this process
+    private static final Set<Long> sWatchedFolders = Collections.synchronizedSet(new HashSet<Long>());
+
+    public static boolean isWatching(long folderId) {
+        return sWatchedFolders.contains(folderId);
+    }
+
+    // Observers by directory path, they stop when garbage collected
+    private final Map<String, FolderObserver> mObservers = new HashMap<>();
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    private Storage storage;
+    private FolderDBHelper folderDBHelper;
+    private DirectoryDBHelper directoryDBHelper;
+    private ChangeDBHelper changeDBHelper;
+
+    private class FolderObserver extends FileObserver {
+        final long folderId;
+        final String dir;
+
+        FolderObserver(long folderId, String dir) {
+            super(dir, MASK);
+            this.folderId = folderId;
+            this.dir = dir;
+        }
+
+        @Override
+        public void onEvent(int event, final String path) {
+            final int type = event & FileObserver.ALL_EVENTS;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onChange(FolderObserver.this, type, path);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mThread = new HandlerThread("WatcherService");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        if (SimpleStorage.isExternalStorageWritable()) {
+            storage = SimpleStorage.getExternalStorage();
+        } else {
+            storage = SimpleStorage.getInternalStorage(this);
+        }
+        folderDBHelper = new FolderDBHelper(this);
+        directoryDBHelper = new DirectoryDBHelper(this);
+        changeDBHelper = new ChangeDBHelper(this);
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                reload();
+            }
+        });
+        return START_STICKY;
+    }
+
+    @Override
+    public void onDestroy() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (FolderObserver observer : mObservers.values()) {
+                    observer.stopWatching();
+                }
+                mObservers.clear();
+                sWatchedFolders.clear();
+                mThread.quit();
+            }
+        });
+        super.onDestroy();
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    // Watch the enabled folders, stop watching the others
+    private void reload() {
+        Set<Long> enabled = new HashSet<>();
+        for (Folder folder : folderDBHelper.getAll()) {
+            if (!folder.enabled) {
+                continue;
+            }
+            enabled.add(folder.id);
+            if (!isWatching(folder.id)) {
+                watch(folder.id, folder.getRoot(storage));
+                // Events before now were not seen
+                changeDBHelper.rescan(folder.id);
+                sWatchedFolders.add(folder.id);
+            }
+        }
+
+        for (FolderObserver observer : new ArrayList<>(mObservers.values())) {
+            if (!enabled.contains(observer.folderId)) {
+                observer.stopWatching();
+                mObservers.remove(observer.dir);
+            }
+        }
+        sWatchedFolders.retainAll(enabled);
+        Log.d("WATCH", "Watching " + mObservers.size() + " directories of " + enabled.size() + " folders");
+    }
+
+    // Observe a directory and its subdirectories, known from the manifest when possible
+    private void watch(long folderId, File dir) {
+        if (dir == null || !dir.isDirectory() || mObservers.containsKey(dir.getAbsolutePath())) {
+            return;
+        }
+        String path = dir.getAbsolutePath();
+        FolderObserver observer = new FolderObserver(folderId, path);
+        observer.startWatching();
+        mObservers.put(path, observer);
+
+        if (directoryDBHelper.getDirectory(path) != null) {
+            for (Directory subdirectory : directoryDBHelper.getSubdirectories(path)) {
+                watch(folderId, new File(subdirectory.path));
+            }
+        } else {
+            File[] children = dir.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        watch(folderId, child);
+                    }
+                }
+            }
+        }
+    }
+
+    private void onChange(FolderObserver observer, int type, String name) {
+        if (!mObservers.containsKey(observer.dir)) {
+            // stopped in the meanwhile
+            return;
+        }
+        if (type == FileObserver.DELETE_SELF || type == FileObserver.MOVE_SELF) {
+            observer.stopWatching();
+            mObservers.remove(observer.dir);
+            journal(observer.folderId, observer.dir, Change.Event.RESCAN);
+            return;
+        }
+        if (name == null) {
+            return;
+        }
+
+        File file = new File(observer.dir, name);
+        String path = file.getAbsolutePath();
+        if ((type == FileObserver.CREATE || type == FileObserver.MOVED_TO) && file.isDirectory()) {
+            // New directory: watch it, its content is found by a scan
+            watch(observer.folderId, file);
+            journal(observer.folderId, path, Change.Event.RESCAN);
+        } else if ((type == FileObserver.DELETE || type == FileObserver.MOVED_FROM) && mObservers.containsKey(path)) {
+            // Removed directory, its observers stop by themselves
+            journal(observer.folderId, path, Change.Event.RESCAN);
+        } else if (type == FileObserver.CREATE) {
+            journal(observer.folderId, path, Change.Event.CREATED);
+        } else if (type == FileObserver.CLOSE_WRITE) {
+            journal(observer.folderId, path, Change.Event.MODIFIED);
+        } else if (type == FileObserver.MOVED_FROM) {
+            journal(observer.folderId, path, Change.Event.MOVED_FROM);
+        } else if (type == FileObserver.MOVED_TO) {
+            journal(observer.folderId, path, Change.Event.MOVED_TO);
+        } else if (type == FileObserver.DELETE) {
+            journal(observer.folderId, path, Change.Event.DELETED);
+        }
+    }
+
+    private void journal(long folderId, String path, Change.Event event) {
+        if (event == Change.Event.RESCAN || changeDBHelper.count(folderId) >= ChangeDBHelper.MAX_CHANGES) {
+            changeDBHelper.rescan(folderId);
+            return;
+        }
+        Change change = new Change();
+        change.folderId = folderId;
+        change.path = path;
+        change.event = event;
+        change.time = System.currentTimeMillis();
+        changeDBHelper.create(change);
+    }
+}
@@ -0,0 +1,228 @@
+package com.eternitywall.opentimestamps.stores;
+
+import com.eternitywall.opentimestamps.dbs.TimestampMerger;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.op.Op;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * Store of serialized nodes by msg, the engines only read and write the records.
+ * The merge, the loading of the subtrees and the pending commitments are done here the way
+ * TimestampDBHelper does them. Records are msg length, node length, msg and node.
+ */
+
+public abstract class AbstractTimestampStore implements TimestampStore {
+
+    protected static final int RECORD_HEADER = 8;
+
+    // pending commitments by msg, true once completed
+    private final Map<ByteBuffer, Boolean> pendings = new HashMap<>();
+    private Listener listener;
+
+    // The serialized node of a msg, null if not stored
+    protected abstract byte[] read(byte[] msg);
+
+    protected abstract void write(byte[] msg, byte[] node);
+
+    protected abstract void reset();
+
+    // End of a batch of writes
+    protected void flush() {
+    }
+
+    // Track a node read back when the store is opened
+    protected void indexPending(byte[] msg, byte[] node) {
+        Timestamp timestamp = new Timestamp(msg);
+        NodeCodec.read(timestamp, node);
+        if (NodeCodec.isPending(timestamp) && !pendings.containsKey(ByteBuffer.wrap(msg))) {
+            pendings.put(ByteBuffer.wrap(msg), false);
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(byte[] msg) {
+        return read(msg) != null;
+    }
+
+    @Override
+    public synchronized Timestamp getNode(byte[] msg) {
+        byte[] node = read(msg);
+        if (node == null) {
+            return null;
+        }
+        Timestamp timestamp = new Timestamp(msg);
+        NodeCodec.read(timestamp, node);
+        return timestamp;
+    }
+
+    @Override
+    public synchronized void putNode(Timestamp node) {
+        write(node.msg, NodeCodec.serialize(node));
+        ByteBuffer key = ByteBuffer.wrap(node.msg);
+        if (NodeCodec.isPending(node) && !pendings.containsKey(key)) {
+            pendings.put(key, false);
+        }
+    }
+
+    @Override
+    public Timestamp getTimestamp(byte[] msg) {
+        return getTimestamps(Collections.singletonList(msg)).get(Utils.bytesToHex(msg));
+    }
+
+    // Breadth-first from all the msgs, the nodes shared by them are loaded and built once
+    @Override
+    public synchronized Map<String, Timestamp> getTimestamps(Collection<byte[]> msgs) {
+        Map<ByteBuffer, Timestamp> nodes = new HashMap<>();
+        Set<Timestamp> loaded = Collections.newSetFromMap(new IdentityHashMap<Timestamp, Boolean>());
+        Queue<Timestamp> queue = new ArrayDeque<>();
+        for (byte[] msg : msgs) {
+            ByteBuffer key = ByteBuffer.wrap(msg);
+            if (!nodes.containsKey(key)) {
+                Timestamp timestamp = new Timestamp(msg);
+                nodes.put(key, timestamp);
+                queue.add(timestamp);
+            }
+        }
+
+        while (!queue.isEmpty()) {
+            Timestamp timestamp = queue.poll();
+            byte[] node = read(timestamp.msg);
+            if (node == null) {
+                continue;
+            }
+            NodeCodec.read(timestamp, node);
+            loaded.add(timestamp);
+            for (Map.Entry<Op, Timestamp> entry : timestamp.ops.entrySet()) {
+                ByteBuffer childKey = ByteBuffer.wrap(entry.getValue().msg);
+                Timestamp child = nodes.get(childKey);
+                if (child == null) {
+                    nodes.put(childKey, entry.getValue());
+                    queue.add(entry.getValue());
+                } else {
+                    entry.setValue(child);
+                }
+            }
+        }
+
+        Map<String, Timestamp> roots = new HashMap<>();
+        for (byte[] msg : msgs) {
+            Timestamp timestamp = nodes.get(ByteBuffer.wrap(msg));
+            if (loaded.contains(timestamp)) {
+                roots.put(Utils.bytesToHex(msg), timestamp);
+            }
+        }
+        return roots;
+    }
+
+    @Override
+    public void addTimestamp(Timestamp timestamp) {
+        addTimestamps(Collections.singletonList(timestamp));
+    }
+
+    @Override
+    public synchronized void addTimestamps(Collection<Timestamp> timestamps) {
+        TimestampMerger merger = new TimestampMerger(this);
+        List<byte[]> changed = new ArrayList<>();
+        for (Timestamp timestamp : timestamps) {
+            long writes = merger.getWrites();
+            merger.merge(timestamp);
+            if (merger.getWrites() > writes) {
+                changed.add(timestamp.msg);
+            }
+        }
+        List<Timestamp> completed = TimestampMerger.getCompleted(timestamps);
+        for (Timestamp node : completed) {
+            ByteBuffer key = ByteBuffer.wrap(node.msg);
+            if (pendings.containsKey(key)) {
+                pendings.put(key, true);
+            }
+        }
+        flush();
+
+        if (listener != null && (!changed.isEmpty() || merger.getInnerUpdates() > 0 || !completed.isEmpty())) {
+            listener.onChanged(changed, merger.getInnerUpdates() > 0, !completed.isEmpty());
+        }
+    }
+
+    @Override
+    public synchronized List<Timestamp> getPendingNodes() {
+        List<Timestamp> nodes = new ArrayList<>();
+        for (Map.Entry<ByteBuffer, Boolean> entry : pendings.entrySet()) {
+            if (!entry.getValue()) {
+                Timestamp node = getNode(entry.getKey().array());
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+        }
+        return nodes;
+    }
+
+    @Override
+    public synchronized void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public synchronized void clear() {
+        reset();
+        pendings.clear();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    // Whether the record at an offset is the one of a msg
+    protected static boolean matches(ByteBuffer buffer, int offset, byte[] msg) {
+        if (buffer.getInt(offset) != msg.length) {
+            return false;
+        }
+        int start = offset + RECORD_HEADER;
+        for (int i = 0; i < msg.length; i++) {
+            if (buffer.get(start + i) != msg[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    protected static byte[] readMsg(ByteBuffer buffer, int offset) {
+        byte[] msg = new byte[buffer.getInt(offset)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER);
+        record.get(msg);
+        return msg;
+    }
+
+    protected static byte[] readNode(ByteBuffer buffer, int offset) {
+        int msgLength = buffer.getInt(offset);
+        byte[] node = new byte[buffer.getInt(offset + 4)];
+        ByteBuffer record = buffer.duplicate();
+        record.position(offset + RECORD_HEADER + msgLength);
+        record.get(node);
+        return node;
+    }
+
+    protected static ByteBuffer record(byte[] msg, byte[] node) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + msg.length + node.length);
+        record.putInt(msg.length);
+        record.putInt(node.length);
+        record.put(msg);
+        record.put(node);
+        record.flip();
+        return record;
+    }
+}
@@ -0,0 +1,111 @@
+package com.eternitywall.opentimestamps.stores;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing index from a msg to the offset of its record, on primitive arrays.
+ * The msgs are not kept here, a probe compares them with the record through the Keys.
+ */
+
+class DigestIndex {
+
+    interface Keys {
+        boolean matches(long offset, byte[] msg);
+    }
+
+    private static final long EMPTY = -1;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final Keys keys;
+    private int[] hashes;
+    private long[] offsets;
+    private int size = 0;
+
+    DigestIndex(Keys keys) {
+        this.keys = keys;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        offsets = new long[capacity];
+        Arrays.fill(offsets, EMPTY);
+    }
+
+    static int hash(byte[] msg) {
+        int h = 1;
+        for (byte b : msg) {
+            h = 31 * h + b;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // Offset of the record of a msg, -1 if not indexed
+    long get(byte[] msg) {
+        int hash = hash(msg);
+        int mask = offsets.length - 1;
+        for (int i = hash & mask; offsets[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == hash && keys.matches(offsets[i], msg)) {
+                return offsets[i];
+            }
+        }
+        return EMPTY;
+    }
+
+    // Point a msg to its last record
+    void put(byte[] msg, long offset) {
+        int hash = hash(msg);
+        int mask = offsets.length - 1;
+        int i = hash & mask;
+        for (; offsets[i] != EMPTY; i = (i + 1) & mask) {
+            if (hashes[i] == hash && keys.matches(offsets[i], msg)) {
+                offsets[i] = offset;
+                return;
+            }
+        }
+        hashes[i] = hash;
+        offsets[i] = offset;
+        if (++size * 2 > offsets.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        int[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        allocate(oldOffsets.length * 2);
+        int mask = offsets.length - 1;
+        for (int j = 0; j < oldOffsets.length; j++) {
+            if (oldOffsets[j] == EMPTY) {
+                continue;
+            }
+            int i = oldHashes[j] & mask;
+            while (offsets[i] != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = oldHashes[j];
+            offsets[i] = oldOffsets[j];
+        }
+    }
+
+    // Offsets of all the indexed records
+    long[] offsets() {
+        long[] all = new long[size];
+        int n = 0;
+        for (long offset : offsets) {
+            if (offset != EMPTY) {
+                all[n++] = offset;
+            }
+        }
+        return all;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        allocate(INITIAL_CAPACITY);
+        size = 0;
+    }
+}
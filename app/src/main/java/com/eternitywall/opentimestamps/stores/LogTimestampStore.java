@@ -0,0 +1,188 @@
+package com.eternitywall.opentimestamps.stores;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only log engine: every node written is a record appended to the file, and the
+ * index from msg to the offset of the last record is kept in memory and rebuilt when the
+ * log is opened. Records are read through a read-only memory map of the file, the ones
+ * appended after it are read from the channel: the map is redone only when that tail is as
+ * large as the map, so a log growing with reads in between is mapped a logarithmic number
+ * of times. A torn record at the end is cut off on open.
+ * The completed pending commitments are not logged: after a restart they are checked again,
+ * and the upgrade that finds no news marks them as completed, as the SQLite backfill does.
+ */
+
+public class LogTimestampStore extends AbstractTimestampStore {
+
+    // A smaller tail is read from the channel
+    private static final long MIN_REMAP = 1024 * 1024;
+
+    private final File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    // end of the last full record
+    private long end = 0;
+    private MappedByteBuffer mapped;
+    private int countMaps = 0;
+    private final DigestIndex index = new DigestIndex(new DigestIndex.Keys() {
+        @Override
+        public boolean matches(long offset, byte[] msg) {
+            return AbstractTimestampStore.matches(view(offset, RECORD_HEADER + msg.length), 0, msg);
+        }
+    });
+
+    public LogTimestampStore(File file) throws IOException {
+        this.file = file;
+        open();
+    }
+
+    private void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        long length = channel.size();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Log over 2 GB: " + file);
+        }
+        end = 0;
+        mapped = null;
+        if (length > 0) {
+            map(length);
+        }
+        while (end + RECORD_HEADER <= length) {
+            int msgLength = mapped.getInt((int) end);
+            int nodeLength = mapped.getInt((int) end + 4);
+            long next = end + RECORD_HEADER + msgLength + nodeLength;
+            if (msgLength <= 0 || nodeLength < 0 || next > length) {
+                break;
+            }
+            index.put(readMsg(mapped, (int) end), end);
+            end = next;
+        }
+        if (end < length) {
+            mapped = null;
+            channel.truncate(end);
+            if (end > 0) {
+                map(end);
+            }
+        }
+        for (long offset : index.offsets()) {
+            indexPending(readMsg(mapped, (int) offset), readNode(mapped, (int) offset));
+        }
+    }
+
+    private void map(long length) {
+        try {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            countMaps++;
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't map " + file, e);
+        }
+    }
+
+    // Up to length bytes of the log from an offset, starting at 0 of the returned buffer:
+    // a view of the map, or read from the channel past it
+    private ByteBuffer view(long offset, int length) {
+        length = (int) Math.min(length, end - offset);
+        long mappedEnd = mapped == null ? 0 : mapped.capacity();
+        if (offset + length > mappedEnd && end - mappedEnd >= Math.max(mappedEnd, MIN_REMAP)) {
+            map(end);
+            mappedEnd = end;
+        }
+        if (offset + length <= mappedEnd) {
+            ByteBuffer view = mapped.duplicate();
+            view.position((int) offset);
+            return view.slice();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of " + file);
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't read " + file, e);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    protected byte[] read(byte[] msg) {
+        long offset = index.get(msg);
+        if (offset < 0) {
+            return null;
+        }
+        ByteBuffer header = view(offset, RECORD_HEADER);
+        return readNode(view(offset, RECORD_HEADER + header.getInt(0) + header.getInt(4)), 0);
+    }
+
+    @Override
+    protected void write(byte[] msg, byte[] node) {
+        ByteBuffer record = record(msg, node);
+        if (end + record.remaining() > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Log over 2 GB: " + file);
+        }
+        long position = end;
+        try {
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write " + file, e);
+        }
+        index.put(msg, end);
+        end = position;
+    }
+
+    @Override
+    protected void flush() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write " + file, e);
+        }
+    }
+
+    @Override
+    protected void reset() {
+        try {
+            mapped = null;
+            channel.truncate(0);
+            end = 0;
+            index.clear();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't clear " + file, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            mapped = null;
+            raf.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Bytes of the log, the rewritten nodes included
+    public synchronized long getSize() {
+        return end;
+    }
+
+    public synchronized int getCountNodes() {
+        return index.size();
+    }
+
+    // Times the log was mapped since it was opened
+    synchronized int getCountMaps() {
+        return countMaps;
+    }
+}
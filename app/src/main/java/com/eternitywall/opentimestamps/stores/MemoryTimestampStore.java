@@ -0,0 +1,57 @@
+package com.eternitywall.opentimestamps.stores;
+
+import java.nio.ByteBuffer;
+
+/**
+ * In-memory engine, for the tests and the benchmarks. The records are appended to a direct
+ * buffer off the java heap and indexed by msg on primitive arrays, a rewritten node leaves
+ * its old record behind.
+ */
+
+public class MemoryTimestampStore extends AbstractTimestampStore {
+
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+
+    private ByteBuffer arena = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+    private final DigestIndex index = new DigestIndex(new DigestIndex.Keys() {
+        @Override
+        public boolean matches(long offset, byte[] msg) {
+            return AbstractTimestampStore.matches(arena, (int) offset, msg);
+        }
+    });
+
+    @Override
+    protected byte[] read(byte[] msg) {
+        long offset = index.get(msg);
+        return offset < 0 ? null : readNode(arena, (int) offset);
+    }
+
+    @Override
+    protected void write(byte[] msg, byte[] node) {
+        ByteBuffer record = record(msg, node);
+        if (arena.remaining() < record.remaining()) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(arena.capacity() * 2, arena.position() + record.remaining()));
+            arena.flip();
+            grown.put(arena);
+            arena = grown;
+        }
+        int offset = arena.position();
+        arena.put(record);
+        index.put(msg, offset);
+    }
+
+    @Override
+    protected void reset() {
+        arena = ByteBuffer.allocateDirect(INITIAL_CAPACITY);
+        index.clear();
+    }
+
+    // Bytes taken by the records, the rewritten ones included
+    public synchronized int getSize() {
+        return arena.position();
+    }
+
+    public synchronized int getCountNodes() {
+        return index.size();
+    }
+}
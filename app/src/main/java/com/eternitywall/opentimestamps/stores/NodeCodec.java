@@ -0,0 +1,63 @@
+package com.eternitywall.opentimestamps.stores;
+
+import com.eternitywall.ots.StreamDeserializationContext;
+import com.eternitywall.ots.StreamSerializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+
+import java.util.Map;
+
+/**
+ * Serialized form of a single node, shared by the stores: the attestations, then the ops.
+ * The children are not written, each one is a node of its own.
+ */
+
+public class NodeCodec {
+
+    private NodeCodec() {
+    }
+
+    public static byte[] serialize(Timestamp node) {
+        StreamSerializationContext ctx = new StreamSerializationContext();
+        ctx.writeVaruint(node.attestations.size());
+        for (TimeAttestation attestation : node.attestations) {
+            attestation.serialize(ctx);
+        }
+        ctx.writeVaruint(node.ops.size());
+        for (Map.Entry<Op, Timestamp> entry : node.ops.entrySet()) {
+            entry.getKey().serialize(ctx);
+        }
+        return ctx.getOutput();
+    }
+
+    // Fill attestations and ops of a node, children are left with their message only
+    public static void read(Timestamp timestamp, byte[] serialized) {
+        StreamDeserializationContext ctx = new StreamDeserializationContext(serialized);
+
+        int count = ctx.readVaruint();
+        for (int i = 0; i < count; i++) {
+            TimeAttestation attestation = TimeAttestation.deserialize(ctx);
+            if (timestamp.attestations.contains(attestation)) {
+                timestamp.attestations.set(timestamp.attestations.indexOf(attestation), attestation);
+            } else {
+                timestamp.attestations.add(attestation);
+            }
+        }
+        count = ctx.readVaruint();
+        for (int i = 0; i < count; i++) {
+            Op op = Op.deserialize(ctx);
+            timestamp.add(op);
+        }
+    }
+
+    public static boolean isPending(Timestamp node) {
+        for (TimeAttestation attestation : node.attestations) {
+            if (attestation instanceof PendingAttestation) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,51 @@
+package com.eternitywall.opentimestamps.stores;
+
+import com.eternitywall.opentimestamps.dbs.TimestampMerger;
+import com.eternitywall.opentimestamps.engines.UpgradeEngine;
+import com.eternitywall.ots.Timestamp;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Store of the timestamp nodes, one node per msg with its attestations and the ops to its children.
+ * Proofs are merged in batches and loaded by msg, the pending commitments are kept for the upgrades.
+ * The engine is picked by TimestampStores.
+ */
+
+public interface TimestampStore extends TimestampMerger.NodeStore, UpgradeEngine.PendingStore {
+
+    // Changes of the stored proofs, for the caches built on them
+    interface Listener {
+        // changed : the roots of the batch whose proof changed
+        // shared : a node already stored below a root changed, other proofs may have changed too
+        // completed : pending commitments got a bitcoin attestation
+        void onChanged(List<byte[]> changed, boolean shared, boolean completed);
+    }
+
+    boolean contains(byte[] msg);
+
+    // The timestamp of a msg with its subtree, null if not stored
+    Timestamp getTimestamp(byte[] msg);
+
+    // The timestamps of many msgs by lowercase hex msg, the shared nodes are loaded once
+    Map<String, Timestamp> getTimestamps(Collection<byte[]> msgs);
+
+    void addTimestamp(Timestamp timestamp);
+
+    // Merge the timestamps in a single batch
+    @Override
+    void addTimestamps(Collection<Timestamp> timestamps);
+
+    // Nodes of the pending commitments, with their ops but not their children
+    @Override
+    List<Timestamp> getPendingNodes();
+
+    void setListener(Listener listener);
+
+    // Drop all the nodes
+    void clear();
+
+    void close();
+}
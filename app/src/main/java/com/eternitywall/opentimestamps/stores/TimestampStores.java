@@ -0,0 +1,57 @@
+package com.eternitywall.opentimestamps.stores;
+
+import android.content.Context;
+
+import com.eternitywall.opentimestamps.BuildConfig;
+import com.eternitywall.opentimestamps.dbs.TimestampDBHelper;
+import com.eternitywall.opentimestamps.dbs.VerificationDBHelper;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The timestamp store of the app, its engine is BuildConfig.TIMESTAMP_STORE:
+ * "sqlite" the nodes table (default), "memory" nodes lost on exit, "log" an append-only file.
+ */
+
+public class TimestampStores {
+
+    public static final String SQLITE = "sqlite";
+    public static final String MEMORY = "memory";
+    public static final String LOG = "log";
+
+    private static TimestampStore sInstance;
+
+    private TimestampStores() {
+    }
+
+    public static synchronized TimestampStore get(Context context) {
+        if (sInstance == null) {
+            sInstance = open(context.getApplicationContext(), BuildConfig.TIMESTAMP_STORE);
+        }
+        return sInstance;
+    }
+
+    public static TimestampStore open(Context context, String engine) {
+        TimestampStore store;
+        switch (engine) {
+            case MEMORY:
+                store = new MemoryTimestampStore();
+                break;
+            case LOG:
+                try {
+                    store = new LogTimestampStore(new File(context.getFilesDir(), "timestamps.log"));
+                } catch (IOException e) {
+                    // keep the proofs somewhere
+                    e.printStackTrace();
+                    return new TimestampDBHelper(context);
+                }
+                break;
+            default:
+                return new TimestampDBHelper(context);
+        }
+        // the verifications cached in the db follow the proofs of the other engines
+        store.setListener(new VerificationDBHelper(context));
+        return store;
+    }
+}
@@ -0,0 +1,276 @@
+package com.eternitywall.opentimestamps.stores;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.Utils;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The behaviour every TimestampStore engine has to share, run by a subclass per engine.
+ */
+public abstract class TimestampStoreConformance {
+
+    private static final String CALENDAR = "https://alice.btc.calendar.opentimestamps.org";
+
+    protected TimestampStore store;
+    private final Random random = new Random(42);
+
+    // An empty store of the engine
+    protected abstract TimestampStore create() throws Exception;
+
+    @Before
+    public void setUp() throws Exception {
+        store = create();
+        store.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private byte[] digest() {
+        byte[] digest = new byte[32];
+        random.nextBytes(digest);
+        return digest;
+    }
+
+    // Leaves stamped together, the tip pending on a calendar; the pending node is returned in commitment
+    protected List<Timestamp> stamp(int countLeaves, Timestamp[] commitment) throws Exception {
+        List<DetachedTimestampFile> files = new ArrayList<>();
+        for (int i = 0; i < countLeaves; i++) {
+            files.add(new DetachedTimestampFile(new OpSHA256(), new Timestamp(digest())));
+        }
+        Timestamp tip = OpenTimestamps.makeMerkleTree(files);
+        Timestamp pending = tip.add(new OpAppend(digest())).add(new OpSHA256());
+        pending.attestations.add(new PendingAttestation(CALENDAR.getBytes()));
+        if (commitment != null) {
+            commitment[0] = pending;
+        }
+        List<Timestamp> leaves = new ArrayList<>();
+        for (DetachedTimestampFile file : files) {
+            leaves.add(file.getTimestamp());
+        }
+        return leaves;
+    }
+
+    // Calendar answer of a commitment, completed in a block
+    private static Timestamp completed(byte[] commitment, int height) {
+        Timestamp timestamp = new Timestamp(commitment);
+        Timestamp block = timestamp.add(new OpAppend(new byte[] { (byte) height })).add(new OpSHA256());
+        block.attestations.add(new BitcoinBlockHeaderAttestation(height));
+        return timestamp;
+    }
+
+    protected static void assertSameTree(Timestamp expected, Timestamp actual) {
+        assertNotNull(actual);
+        assertArrayEquals(expected.msg, actual.msg);
+        assertEquals(new HashSet<TimeAttestation>(expected.attestations), new HashSet<TimeAttestation>(actual.attestations));
+        assertEquals(expected.ops.keySet(), actual.ops.keySet());
+        for (Map.Entry<Op, Timestamp> entry : expected.ops.entrySet()) {
+            assertSameTree(entry.getValue(), actual.ops.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void putAndGetNode() throws Exception {
+        Timestamp node = new Timestamp(digest());
+        node.add(new OpSHA256());
+        node.attestations.add(new PendingAttestation(CALENDAR.getBytes()));
+        assertFalse(store.contains(node.msg));
+        assertNull(store.getNode(node.msg));
+
+        store.putNode(node);
+        assertTrue(store.contains(node.msg));
+        Timestamp stored = store.getNode(node.msg);
+        assertArrayEquals(node.msg, stored.msg);
+        assertEquals(node.attestations, stored.attestations);
+        assertEquals(node.ops.keySet(), stored.ops.keySet());
+        // children are not loaded
+        assertTrue(stored.ops.values().iterator().next().ops.isEmpty());
+    }
+
+    @Test
+    public void addAndLoadProofs() throws Exception {
+        List<Timestamp> leaves = stamp(10, null);
+        store.addTimestamps(leaves);
+        for (Timestamp leaf : leaves) {
+            assertTrue(store.contains(leaf.msg));
+            assertSameTree(leaf, store.getTimestamp(leaf.msg));
+        }
+        assertNull(store.getTimestamp(digest()));
+    }
+
+    @Test
+    public void loadsSharedNodesOnce() throws Exception {
+        List<Timestamp> leaves = stamp(8, null);
+        store.addTimestamps(leaves);
+
+        List<byte[]> msgs = new ArrayList<>();
+        for (Timestamp leaf : leaves) {
+            msgs.add(leaf.msg);
+        }
+        msgs.add(digest());
+        Map<String, Timestamp> proofs = store.getTimestamps(msgs);
+        assertEquals(leaves.size(), proofs.size());
+
+        // the pending commitment below the tip is one node for all the leaves
+        Timestamp first = proofs.get(Utils.bytesToHex(leaves.get(0).msg));
+        Timestamp last = proofs.get(Utils.bytesToHex(leaves.get(leaves.size() - 1).msg));
+        assertSame(pendingNode(first), pendingNode(last));
+    }
+
+    private static Timestamp pendingNode(Timestamp timestamp) {
+        for (TimeAttestation attestation : timestamp.attestations) {
+            if (attestation instanceof PendingAttestation) {
+                return timestamp;
+            }
+        }
+        for (Timestamp child : timestamp.ops.values()) {
+            Timestamp node = pendingNode(child);
+            if (node != null) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void mergesIntoStoredNodes() throws Exception {
+        Timestamp[] commitment = new Timestamp[1];
+        List<Timestamp> leaves = stamp(4, commitment);
+        store.addTimestamps(leaves);
+
+        // the same leaf with one more branch
+        Timestamp leaf = store.getTimestamp(leaves.get(0).msg);
+        Timestamp other = leaf.add(new OpAppend(digest())).add(new OpSHA256());
+        other.attestations.add(new PendingAttestation("https://bob.btc.calendar.opentimestamps.org".getBytes()));
+        store.addTimestamp(leaf);
+
+        Timestamp merged = store.getTimestamp(leaves.get(0).msg);
+        assertSameTree(leaf, merged);
+        assertEquals(leaves.get(0).ops.size() + 1, merged.ops.size());
+        // the other leaves keep their proof
+        assertSameTree(leaves.get(1), store.getTimestamp(leaves.get(1).msg));
+    }
+
+    @Test
+    public void tracksPendingCommitments() throws Exception {
+        Timestamp[] commitment = new Timestamp[1];
+        store.addTimestamps(stamp(4, commitment));
+
+        List<Timestamp> pendings = store.getPendingNodes();
+        assertEquals(1, pendings.size());
+        assertArrayEquals(commitment[0].msg, pendings.get(0).msg);
+
+        // the upgrade completes it
+        store.addTimestamps(Collections.singletonList(completed(commitment[0].msg, 500000)));
+        assertTrue(store.getPendingNodes().isEmpty());
+
+        // a later write of the node keeps it completed
+        Timestamp node = store.getNode(commitment[0].msg);
+        node.add(new OpAppend(digest()));
+        store.putNode(node);
+        assertTrue(store.getPendingNodes().isEmpty());
+    }
+
+    @Test
+    public void upgradeReachesTheLeaves() throws Exception {
+        Timestamp[] commitment = new Timestamp[1];
+        List<Timestamp> leaves = stamp(4, commitment);
+        store.addTimestamps(leaves);
+        store.addTimestamps(Collections.singletonList(completed(commitment[0].msg, 500000)));
+
+        Timestamp proof = store.getTimestamp(leaves.get(3).msg);
+        assertTrue(hasBitcoinAttestation(proof));
+    }
+
+    private static boolean hasBitcoinAttestation(Timestamp timestamp) {
+        for (TimeAttestation attestation : timestamp.attestations) {
+            if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                return true;
+            }
+        }
+        for (Timestamp child : timestamp.ops.values()) {
+            if (hasBitcoinAttestation(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Test
+    public void notifiesTheChanges() throws Exception {
+        final List<List<byte[]>> changes = new ArrayList<>();
+        final boolean[] flags = new boolean[2];
+        store.setListener(new TimestampStore.Listener() {
+            @Override
+            public void onChanged(List<byte[]> changed, boolean shared, boolean completed) {
+                changes.add(changed);
+                flags[0] |= shared;
+                flags[1] |= completed;
+            }
+        });
+
+        Timestamp[] commitment = new Timestamp[1];
+        List<Timestamp> leaves = stamp(2, commitment);
+        store.addTimestamps(leaves);
+        assertEquals(1, changes.size());
+        assertEquals(2, changes.get(0).size());
+        assertFalse(flags[0]);
+
+        // nothing new, nothing to tell
+        store.addTimestamps(leaves);
+        assertEquals(1, changes.size());
+
+        store.addTimestamps(Collections.singletonList(completed(commitment[0].msg, 500000)));
+        assertEquals(2, changes.size());
+        assertTrue(flags[1]);
+        assertTrue(Arrays.equals(commitment[0].msg, changes.get(1).get(0)));
+        store.setListener(null);
+    }
+
+    @Test
+    public void clearDropsAll() throws Exception {
+        List<Timestamp> leaves = stamp(3, null);
+        store.addTimestamps(leaves);
+        store.clear();
+        assertFalse(store.contains(leaves.get(0).msg));
+        assertNull(store.getTimestamp(leaves.get(0).msg));
+        assertTrue(store.getPendingNodes().isEmpty());
+    }
+
+    @Test
+    public void manyProofs() throws Exception {
+        List<Timestamp> all = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            List<Timestamp> leaves = stamp(100, null);
+            store.addTimestamps(leaves);
+            all.addAll(leaves);
+        }
+        for (int i = 0; i < all.size(); i += 97) {
+            assertSameTree(all.get(i), store.getTimestamp(all.get(i).msg));
+        }
+        assertEquals(20, store.getPendingNodes().size());
+    }
+}
@@ -0,0 +1,174 @@
+package com.eternitywall.opentimestamps.dbs;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Node reads and writes per proof of the previous recursive addTimestamp against TimestampMerger.
+ */
+public class TimestampMergerTest {
+
+    // In-memory node store counting reads and writes
+    static class CountingNodeStore implements TimestampMerger.NodeStore {
+        Map<ByteBuffer, Timestamp> nodes = new HashMap<>();
+        long reads = 0;
+        long writes = 0;
+
+        @Override
+        public Timestamp getNode(byte[] msg) {
+            reads++;
+            Timestamp stored = nodes.get(ByteBuffer.wrap(msg));
+            if (stored == null) {
+                return null;
+            }
+            // Return a copy with only the direct children, as the db does
+            Timestamp node = new Timestamp(msg);
+            node.attestations.addAll(stored.attestations);
+            for (Op op : stored.ops.keySet()) {
+                node.add(op);
+            }
+            return node;
+        }
+
+        @Override
+        public void putNode(Timestamp node) {
+            writes++;
+            nodes.put(ByteBuffer.wrap(node.msg), node);
+        }
+    }
+
+    // The addTimestamp of TimestampDBHelper before the merge engine
+    static class RecursiveAdder {
+        CountingNodeStore store;
+
+        RecursiveAdder(CountingNodeStore store) {
+            this.store = store;
+        }
+
+        Timestamp getTimestamp(byte[] msg) {
+            Timestamp timestamp = store.getNode(msg);
+            if (timestamp == null) {
+                return null;
+            }
+            for (Op op : new ArrayList<>(timestamp.ops.keySet())) {
+                timestamp.ops.put(op, getTimestamp(timestamp.ops.get(op).msg));
+            }
+            return timestamp;
+        }
+
+        void addTimestamp(Timestamp newTimestamp) {
+            Timestamp existingTimestamp = getTimestamp(newTimestamp.msg);
+            if (existingTimestamp == null) {
+                existingTimestamp = new Timestamp(newTimestamp.msg);
+            }
+            for (TimeAttestation attestation : newTimestamp.attestations) {
+                if (!existingTimestamp.attestations.contains(attestation)) {
+                    existingTimestamp.attestations.add(attestation);
+                }
+            }
+            for (Map.Entry<Op, Timestamp> entry : newTimestamp.ops.entrySet()) {
+                if (!existingTimestamp.ops.containsKey(entry.getKey())) {
+                    existingTimestamp.add(entry.getKey());
+                }
+                addTimestamp(entry.getValue());
+            }
+            Timestamp node = new Timestamp(existingTimestamp.msg);
+            node.attestations.addAll(existingTimestamp.attestations);
+            for (Op op : existingTimestamp.ops.keySet()) {
+                node.add(op);
+            }
+            store.putNode(node);
+        }
+    }
+
+    // Leaves of a folder stamped together, below a calendar path ending with a pending attestation
+    private static List<Timestamp> proofs(int countFiles, int calendarDepth) throws Exception {
+        Random random = new Random(42);
+        List<DetachedTimestampFile> fileTimestamps = new ArrayList<>();
+        for (int i = 0; i < countFiles; i++) {
+            byte[] digest = new byte[32];
+            random.nextBytes(digest);
+            fileTimestamps.add(new DetachedTimestampFile(new OpSHA256(), new Timestamp(digest)));
+        }
+        Timestamp tip = OpenTimestamps.makeMerkleTree(fileTimestamps);
+        for (int i = 0; i < calendarDepth; i++) {
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            tip = tip.add(new OpAppend(nonce));
+            tip = tip.add(new OpSHA256());
+        }
+        tip.attestations.add(new PendingAttestation("https://alice.btc.calendar.opentimestamps.org".getBytes()));
+
+        List<Timestamp> timestamps = new ArrayList<>();
+        for (DetachedTimestampFile file : fileTimestamps) {
+            timestamps.add(file.getTimestamp());
+        }
+        return timestamps;
+    }
+
+    private static void benchmark(int countFiles, int calendarDepth) throws Exception {
+        CountingNodeStore before = new CountingNodeStore();
+        RecursiveAdder adder = new RecursiveAdder(before);
+        for (Timestamp timestamp : proofs(countFiles, calendarDepth)) {
+            adder.addTimestamp(timestamp);
+        }
+
+        CountingNodeStore after = new CountingNodeStore();
+        TimestampMerger merger = new TimestampMerger(after);
+        for (Timestamp timestamp : proofs(countFiles, calendarDepth)) {
+            merger.merge(timestamp);
+        }
+
+        System.out.println(String.format("%d files, calendar depth %d: before %.1f reads %.1f writes per proof, after %.1f reads %.1f writes per proof",
+                countFiles, calendarDepth,
+                before.reads / (double) countFiles, before.writes / (double) countFiles,
+                after.reads / (double) countFiles, after.writes / (double) countFiles));
+
+        // Same stored nodes, each read and written once
+        assertEquals(before.nodes.keySet(), after.nodes.keySet());
+        assertEquals(after.nodes.size(), after.reads);
+        assertEquals(after.nodes.size(), after.writes);
+        assertTrue(after.reads < before.reads);
+        assertTrue(after.writes < before.writes);
+    }
+
+    @Test
+    public void mergeReadsEachNodeOnce() throws Exception {
+        benchmark(1, 20);
+        benchmark(100, 20);
+        benchmark(1000, 20);
+    }
+
+    @Test
+    public void mergeWritesOnlyChangedNodes() throws Exception {
+        CountingNodeStore store = new CountingNodeStore();
+        for (Timestamp timestamp : proofs(100, 20)) {
+            new TimestampMerger(store).merge(timestamp);
+        }
+        long writes = store.writes;
+
+        TimestampMerger merger = new TimestampMerger(store);
+        for (Timestamp timestamp : proofs(100, 20)) {
+            merger.merge(timestamp);
+        }
+        assertEquals(writes, store.writes);
+        assertEquals(0, merger.getWrites());
+    }
+}
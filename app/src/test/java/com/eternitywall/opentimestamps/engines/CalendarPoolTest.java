@@ -0,0 +1,193 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.ots.StreamSerializationContext;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Concurrent submission to local stand-in calendars with configurable delays.
+ */
+public class CalendarPoolTest {
+
+    // Calendar answering a pending attestation on its own url after a delay
+    static class StandInCalendar implements HttpHandler {
+        final HttpServer server;
+        final String url;
+        final AtomicInteger countRequests = new AtomicInteger();
+        volatile long delay;
+        // Delay of the first request only, to trigger the hedge
+        volatile long firstDelay = -1;
+        volatile boolean broken;
+
+        StandInCalendar(long delay) throws IOException {
+            this.delay = delay;
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            server.createContext("/", this);
+            server.setExecutor(java.util.concurrent.Executors.newCachedThreadPool());
+            server.start();
+            url = "http://127.0.0.1:" + server.getAddress().getPort();
+        }
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int count = countRequests.incrementAndGet();
+            byte[] request = read(exchange.getRequestBody());
+            try {
+                Thread.sleep(count == 1 && firstDelay >= 0 ? firstDelay : delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath();
+            if (broken || !path.equals("/digest")) {
+                exchange.sendResponseHeaders(path.startsWith("/timestamp/") ? 404 : 500, -1);
+                exchange.close();
+                return;
+            }
+
+            Timestamp timestamp = new Timestamp(request);
+            Timestamp commitment = timestamp.add(new OpAppend(url.getBytes(Charset.forName("UTF-8")))).add(new OpSHA256());
+            commitment.attestations.add(new PendingAttestation(url.getBytes(Charset.forName("UTF-8"))));
+            StreamSerializationContext ctx = new StreamSerializationContext();
+            timestamp.serialize(ctx);
+            byte[] body = ctx.getOutput();
+
+            exchange.sendResponseHeaders(200, body.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+
+        void stop() {
+            server.stop(0);
+        }
+    }
+
+    private final List<StandInCalendar> calendars = new ArrayList<>();
+
+    private CalendarPool pool(int m, long hedgeDelay, long timeout, long... delays) throws IOException {
+        List<String> urls = new ArrayList<>();
+        for (long delay : delays) {
+            StandInCalendar calendar = new StandInCalendar(delay);
+            calendars.add(calendar);
+            urls.add(calendar.url);
+        }
+        return new CalendarPool(urls, m, hedgeDelay, timeout);
+    }
+
+    @After
+    public void tearDown() {
+        for (StandInCalendar calendar : calendars) {
+            calendar.stop();
+        }
+    }
+
+    private static byte[] digest(int seed) {
+        byte[] digest = new byte[32];
+        Arrays.fill(digest, (byte) seed);
+        return digest;
+    }
+
+    private static List<TimeAttestation> attestations(Timestamp timestamp) {
+        List<TimeAttestation> attestations = new ArrayList<>();
+        for (Timestamp child : timestamp.ops.values()) {
+            for (Timestamp grandChild : child.ops.values()) {
+                attestations.addAll(grandChild.attestations);
+            }
+        }
+        return attestations;
+    }
+
+    @Test
+    public void returnsWhenTheFirstMAnswered() throws Exception {
+        CalendarPool pool = pool(2, 10000, 20000, 0, 50, 5000);
+        long start = System.currentTimeMillis();
+        Timestamp timestamp = pool.submit(digest(1));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Waited for the slow calendar: " + elapsed + " ms", elapsed < 3000);
+        assertArrayEquals(digest(1), timestamp.msg);
+        assertEquals(2, timestamp.ops.size());
+        assertEquals(2, attestations(timestamp).size());
+        assertEquals(0, pool.getCountHedges());
+    }
+
+    @Test
+    public void hedgesAStalledRequest() throws Exception {
+        CalendarPool pool = pool(2, 200, 20000, 0, 0);
+        calendars.get(1).firstDelay = 5000;
+        long start = System.currentTimeMillis();
+        Timestamp timestamp = pool.submit(digest(2));
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("Waited for the stalled request: " + elapsed + " ms", elapsed < 3000);
+        assertEquals(2, attestations(timestamp).size());
+        assertEquals(1, pool.getCountHedges());
+        assertEquals(2, calendars.get(1).countRequests.get());
+    }
+
+    @Test(expected = IOException.class)
+    public void failsWhenLessThanMAnswered() throws Exception {
+        CalendarPool pool = pool(2, 10000, 20000, 0, 0, 0);
+        calendars.get(1).broken = true;
+        calendars.get(2).broken = true;
+        pool.submit(digest(3));
+    }
+
+    @Test(expected = IOException.class)
+    public void failsOnTimeout() throws Exception {
+        CalendarPool pool = pool(1, 10000, 300, 2000);
+        pool.submit(digest(4));
+    }
+
+    @Test
+    public void recordsLatencies() throws Exception {
+        CalendarPool pool = pool(3, 10000, 20000, 0, 0, 0);
+        for (int i = 0; i < 5; i++) {
+            pool.submit(digest(i));
+        }
+        for (StandInCalendar calendar : calendars) {
+            assertEquals(5, pool.getHistogram(calendar.url).getCount());
+            assertEquals(0, pool.getFailures(calendar.url));
+        }
+    }
+
+    @Test
+    public void notCompletedCommitment() throws Exception {
+        CalendarPool pool = pool(1, 10000, 20000, 0);
+        assertNull(pool.getTimestamp(calendars.get(0).url, digest(5)));
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+}
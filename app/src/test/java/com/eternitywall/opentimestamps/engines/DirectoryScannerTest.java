@@ -0,0 +1,248 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.opentimestamps.models.Directory;
+import com.eternitywall.opentimestamps.models.FileHash;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Full and incremental scans of a synthetic tree, 100k files by default.
+ */
+public class DirectoryScannerTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    // In-memory manifest, the changed files with a digest in the change set are added as stamped
+    static class MemoryManifest implements DirectoryScanner.Manifest {
+        Map<String, Directory> directories = new HashMap<>();
+        Map<String, Map<String, FileHash>> files = new HashMap<>();
+
+        @Override
+        public Directory getDirectory(String path) {
+            return directories.get(path);
+        }
+
+        @Override
+        public List<Directory> getSubdirectories(String path) {
+            List<Directory> subdirectories = new ArrayList<>();
+            for (Directory directory : directories.values()) {
+                if (path.equals(directory.parent)) {
+                    subdirectories.add(directory);
+                }
+            }
+            return subdirectories;
+        }
+
+        @Override
+        public Map<String, FileHash> getFiles(String dir) {
+            Map<String, FileHash> fileHashes = files.get(dir);
+            return fileHashes == null ? new HashMap<String, FileHash>() : fileHashes;
+        }
+
+        @Override
+        public void commit(DirectoryScanner.ChangeSet changes) {
+            for (Directory directory : changes.directories) {
+                directories.put(directory.path, directory);
+            }
+            for (String path : changes.deletedDirectories) {
+                directories.remove(path);
+                files.remove(path);
+            }
+            for (File file : changes.getChangedFiles()) {
+                byte[] digest = changes.stamped.get(file.getPath());
+                if (digest == null) {
+                    continue;
+                }
+                FileHash fileHash = new FileHash();
+                fileHash.path = file.getPath();
+                fileHash.dir = file.getParent();
+                fileHash.size = file.length();
+                fileHash.mtime = file.lastModified();
+                fileHash.digest = digest;
+                fileHash.stamped = true;
+                if (!files.containsKey(fileHash.dir)) {
+                    files.put(fileHash.dir, new HashMap<String, FileHash>());
+                }
+                files.get(fileHash.dir).put(fileHash.path, fileHash);
+            }
+            for (String path : changes.deleted) {
+                Map<String, FileHash> fileHashes = files.get(new File(path).getParent());
+                if (fileHashes != null) {
+                    fileHashes.remove(path);
+                }
+            }
+        }
+    }
+
+    // The changed files as the hashing engine reports them, the digests are not checked here
+    private static void stamp(DirectoryScanner.ChangeSet changes) {
+        for (File file : changes.getChangedFiles()) {
+            changes.stamped.put(file.getPath(), new byte[32]);
+        }
+    }
+
+    @Test
+    public void incrementalScan() throws Exception {
+        int countFiles = Integer.getInteger("scanner.files", 100000);
+        int countDirs = Math.max(1, countFiles / 1000);
+        long old = System.currentTimeMillis() - 3600 * 1000;
+
+        File root = temporaryFolder.newFolder("root");
+        for (int d = 0; d < countDirs; d++) {
+            File dir = new File(root, "dir" + d);
+            assertTrue(dir.mkdir());
+            for (int f = 0; f < countFiles / countDirs; f++) {
+                File file = new File(dir, "file" + f);
+                assertTrue(file.createNewFile());
+                file.setLastModified(old);
+            }
+            dir.setLastModified(old);
+        }
+        root.setLastModified(old);
+
+        MemoryManifest manifest = new MemoryManifest();
+        DirectoryScanner scanner = new DirectoryScanner(manifest);
+
+        long start = System.currentTimeMillis();
+        DirectoryScanner.ChangeSet changes = scanner.scan(root, 0, false);
+        long firstScan = System.currentTimeMillis() - start;
+        assertEquals(countDirs * (countFiles / countDirs), changes.added.size());
+        stamp(changes);
+        scanner.commit(changes);
+        long lastSync = System.currentTimeMillis();
+
+        start = System.currentTimeMillis();
+        changes = scanner.scan(root, lastSync, true);
+        long fullScan = System.currentTimeMillis() - start;
+        assertTrue(changes.isEmpty());
+
+        start = System.currentTimeMillis();
+        changes = scanner.scan(root, lastSync, false);
+        long incrementalScan = System.currentTimeMillis() - start;
+        assertTrue(changes.isEmpty());
+        assertEquals(0, changes.countListedDirectories);
+
+        // A new file changes only its directory
+        File dir = new File(root, "dir0");
+        File file = new File(dir, "new");
+        assertTrue(file.createNewFile());
+        dir.setLastModified(old + 1000);
+        changes = scanner.scan(root, lastSync, false);
+        assertEquals(1, changes.added.size());
+        assertEquals(file.getPath(), changes.added.get(0).getPath());
+        assertEquals(1, changes.countListedDirectories);
+
+        // A deleted file too
+        stamp(changes);
+        scanner.commit(changes);
+        assertTrue(file.delete());
+        dir.setLastModified(old + 2000);
+        changes = scanner.scan(root, lastSync, false);
+        assertEquals(1, changes.deleted.size());
+
+        // A file added without a change of the directory mtime is found by the count of entries
+        stamp(changes);
+        scanner.commit(changes);
+        file = new File(dir, "same mtime");
+        assertTrue(file.createNewFile());
+        file.setLastModified(old);
+        dir.setLastModified(old + 2000);
+        changes = scanner.scan(root, lastSync, false);
+        assertEquals(1, changes.added.size());
+        assertEquals(file.getPath(), changes.added.get(0).getPath());
+
+        // A file hashed by something else than a stamp is still to stamp
+        stamp(changes);
+        scanner.commit(changes);
+        file = new File(dir, "shared");
+        assertTrue(file.createNewFile());
+        FileHash cached = new FileHash();
+        cached.path = file.getPath();
+        cached.dir = dir.getPath();
+        cached.size = file.length();
+        cached.mtime = file.lastModified();
+        manifest.getFiles(dir.getPath()).put(cached.path, cached);
+        file.setLastModified(old);
+        cached.mtime = old;
+        dir.setLastModified(old + 3000);
+        changes = scanner.scan(root, lastSync, false);
+        assertEquals(1, changes.added.size());
+        assertEquals(file.getPath(), changes.added.get(0).getPath());
+
+        System.out.println(String.format("%d files in %d directories: first scan %d ms, full scan %d ms, incremental scan %d ms",
+                countFiles, countDirs, firstScan, fullScan, incrementalScan));
+    }
+
+    @Test
+    public void editInPlaceIsFound() throws Exception {
+        long old = System.currentTimeMillis() - 3600 * 1000;
+        File root = temporaryFolder.newFolder("root");
+        File dir = new File(root, "dir");
+        assertTrue(dir.mkdir());
+        File file = new File(dir, "file");
+        assertTrue(file.createNewFile());
+        file.setLastModified(old);
+        dir.setLastModified(old);
+        root.setLastModified(old);
+
+        DirectoryScanner scanner = new DirectoryScanner(new MemoryManifest());
+        DirectoryScanner.ChangeSet changes = scanner.scan(root, 0, false);
+        stamp(changes);
+        scanner.commit(changes);
+        long lastSync = System.currentTimeMillis();
+
+        // Rewritten while nothing watched it: the directory keeps its mtime and count
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(1);
+        } finally {
+            out.close();
+        }
+        file.setLastModified(lastSync + 1000);
+        dir.setLastModified(old);
+        changes = scanner.scan(root, lastSync, false);
+        assertEquals(0, changes.countListedDirectories);
+        assertEquals(1, changes.modified.size());
+        assertEquals(file.getPath(), changes.modified.get(0).getPath());
+    }
+
+    @Test
+    public void unstampedFileIsScannedAgain() throws Exception {
+        long old = System.currentTimeMillis() - 3600 * 1000;
+        File root = temporaryFolder.newFolder("root");
+        File dir = new File(root, "dir");
+        assertTrue(dir.mkdir());
+        File stamped = new File(dir, "stamped");
+        File failed = new File(dir, "failed");
+        assertTrue(stamped.createNewFile());
+        assertTrue(failed.createNewFile());
+        stamped.setLastModified(old);
+        failed.setLastModified(old);
+        dir.setLastModified(old);
+        root.setLastModified(old);
+
+        DirectoryScanner scanner = new DirectoryScanner(new MemoryManifest());
+        DirectoryScanner.ChangeSet changes = scanner.scan(root, 0, false);
+        assertEquals(2, changes.added.size());
+
+        // The hashing of a file failed, it has no digest to mark
+        changes.stamped.put(stamped.getPath(), new byte[32]);
+        scanner.commit(changes);
+
+        changes = scanner.scan(root, System.currentTimeMillis(), false);
+        assertEquals(1, changes.added.size());
+        assertEquals(failed.getPath(), changes.added.get(0).getPath());
+    }
+}
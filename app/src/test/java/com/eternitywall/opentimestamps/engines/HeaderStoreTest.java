@@ -0,0 +1,360 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local verification against a synthetic chain of headers, mined at the highest target.
+ */
+public class HeaderStoreTest {
+
+    private static final long GENESIS_TIME = 1231006505;
+    // half of the hashes have the work of it, as on regtest
+    private static final long BITS = 0x207fffffL;
+    private static final BigInteger POW_LIMIT = BigInteger.ONE.shiftLeft(255).subtract(BigInteger.ONE);
+
+    private static final String BITCOIN_GENESIS = "0100000000000000000000000000000000000000000000000000000000000000" +
+            "000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[][] chain(int count) throws IOException {
+        return chain(null, 0, count, false);
+    }
+
+    // Mined headers from the genesis, or a branch of a base chain from a fork height with other merkle roots
+    private static byte[][] chain(byte[][] base, int fork, int count, boolean retargeting) throws IOException {
+        byte[][] headers = new byte[count][];
+        long bits = BITS;
+        for (int height = 0; height < count; height++) {
+            if (retargeting && height > 0 && height % HeaderStore.RETARGET_INTERVAL == 0) {
+                bits = HeaderStore.retarget(bits, time(height - 1) - time(height - HeaderStore.RETARGET_INTERVAL), POW_LIMIT);
+            }
+            if (height < fork) {
+                headers[height] = base[height];
+                continue;
+            }
+            byte[] root = merkleRoot(height);
+            if (base != null) {
+                root[31] ^= (byte) 0xff;
+            }
+            byte[] previous = height == 0 ? new byte[32] : HeaderStore.doubleSha256(headers[height - 1]);
+            headers[height] = mine(previous, root, time(height), bits);
+        }
+        return headers;
+    }
+
+    private static byte[] mine(byte[] previous, byte[] merkleRoot, long time, long bits) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HeaderStore.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(1);
+        buffer.put(previous);
+        buffer.put(merkleRoot);
+        buffer.putInt((int) time);
+        buffer.putInt((int) bits);
+        for (int nonce = 0; ; nonce++) {
+            buffer.putInt(76, nonce);
+            if (HeaderStore.hasWork(buffer.array(), POW_LIMIT)) {
+                return buffer.array();
+            }
+        }
+    }
+
+    // The same header with a nonce that misses its target
+    private static byte[] unmined(byte[] header) throws IOException {
+        byte[] copy = header.clone();
+        ByteBuffer buffer = ByteBuffer.wrap(copy).order(ByteOrder.LITTLE_ENDIAN);
+        for (int nonce = buffer.getInt(76) + 1; HeaderStore.hasWork(copy, POW_LIMIT); nonce++) {
+            buffer.putInt(76, nonce);
+        }
+        return copy;
+    }
+
+    private static long time(int height) {
+        return GENESIS_TIME + height * 600L;
+    }
+
+    private static long bits(byte[] header) {
+        return ByteBuffer.wrap(header, 72, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+    }
+
+    private static byte[] merkleRoot(int height) {
+        byte[] root = new byte[32];
+        Arrays.fill(root, (byte) height);
+        root[0] = (byte) (height >> 8);
+        return root;
+    }
+
+    // The network of a synthetic chain, with its genesis pinned
+    private static HeaderStore.Network network(byte[][] headers, boolean retargeting) throws IOException {
+        return new HeaderStore.Network(HeaderStore.doubleSha256(headers[0]), POW_LIMIT, retargeting);
+    }
+
+    private HeaderStore store(byte[][] headers) throws IOException {
+        return new HeaderStore(folder.newFile(), network(headers, false));
+    }
+
+    private static ByteArrayInputStream dump(byte[][] headers, int from, int to) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int height = from; height < to; height++) {
+            out.write(headers[height], 0, headers[height].length);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    // Proof of a leaf committed in the merkle root of a block
+    private static Timestamp proof(byte[] merkleRoot, int height) {
+        Timestamp leaf = new Timestamp(new byte[] { 1, 2, 3 });
+        Timestamp node = leaf.add(new OpAppend(new byte[] { 4 })).add(new OpSHA256());
+        Timestamp root = new Timestamp(merkleRoot);
+        root.attestations.add(new BitcoinBlockHeaderAttestation(height));
+        // stand-in for the path from the leaf to the merkle root
+        node.ops.put(new OpAppend(new byte[] { 5 }), root);
+        return leaf;
+    }
+
+    private static void assertRejected(HeaderStore store, ByteArrayInputStream dump) {
+        try {
+            store.importing(dump, null);
+            fail("Imported invalid headers");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void importsFromGenesis() throws Exception {
+        byte[][] headers = chain(5000);
+        HeaderStore store = store(headers);
+        assertEquals(5000, store.importing(dump(headers, 0, 5000), null));
+
+        assertEquals(0, store.getStartHeight());
+        assertEquals(5000, store.getEndHeight());
+        assertArrayEquals(headers[4321], store.getHeader(4321));
+        assertArrayEquals(merkleRoot(17), store.getMerkleRoot(17));
+        assertEquals(GENESIS_TIME + 4999 * 600L, store.getTime(4999));
+        assertNull(store.getHeader(5000));
+        assertEquals(-1, store.getTime(-1));
+    }
+
+    @Test
+    public void acceptsTheBitcoinGenesis() throws Exception {
+        byte[] genesis = new BigInteger(BITCOIN_GENESIS, 16).toByteArray();
+        genesis = Arrays.copyOfRange(genesis, genesis.length - HeaderStore.HEADER_SIZE, genesis.length);
+        HeaderStore store = new HeaderStore(folder.newFile());
+        assertEquals(1, store.importing(new ByteArrayInputStream(genesis), null));
+        assertEquals(GENESIS_TIME, store.getTime(0));
+    }
+
+    @Test
+    public void rejectsAnotherGenesis() throws Exception {
+        byte[][] headers = chain(10);
+        HeaderStore store = new HeaderStore(folder.newFile());
+        assertRejected(store, dump(headers, 0, 10));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void verifiesLocally() throws Exception {
+        byte[][] headers = chain(100);
+        HeaderStore store = store(headers);
+        store.importing(dump(headers, 0, 100), null);
+
+        assertEquals(Long.valueOf(GENESIS_TIME + 42 * 600L), store.verify(proof(merkleRoot(42), 42)));
+        // the msg is not the merkle root of the block
+        assertEquals(Long.valueOf(0), store.verify(proof(merkleRoot(43), 42)));
+        // the block is not stored, the network has to tell
+        assertNull(store.verify(proof(merkleRoot(42), 500)));
+        assertEquals(1, store.getCountVerified());
+        assertEquals(1, store.getCountMismatches());
+        assertEquals(1, store.getCountMissing());
+    }
+
+    @Test
+    public void earliestAttestationWins() throws Exception {
+        byte[][] headers = chain(100);
+        HeaderStore store = store(headers);
+        store.importing(dump(headers, 0, 100), null);
+
+        Timestamp leaf = proof(merkleRoot(80), 80);
+        Timestamp earlier = new Timestamp(merkleRoot(20));
+        earlier.attestations.add(new BitcoinBlockHeaderAttestation(20));
+        leaf.ops.put(new OpAppend(new byte[] { 6 }), earlier);
+        assertEquals(Long.valueOf(GENESIS_TIME + 20 * 600L), store.verify(leaf));
+    }
+
+    @Test
+    public void continuesTheStoredHeaders() throws Exception {
+        byte[][] headers = chain(3000);
+        HeaderStore store = store(headers);
+        store.importing(dump(headers, 0, 1000), null);
+        // overlapping dump, placed by the parent of its first header
+        assertEquals(2500, store.importing(dump(headers, 500, 3000), null));
+        assertEquals(3000, store.getEndHeight());
+        assertEquals(1500, store.importing(dump(headers, 1500, 3000), null));
+        assertEquals(3000, store.getEndHeight());
+        assertArrayEquals(headers[2999], store.getHeader(2999));
+        assertEquals(0, store.getCountReorgs());
+    }
+
+    @Test
+    public void importsFromACheckpoint() throws Exception {
+        byte[][] headers = chain(300);
+        HeaderStore store = new HeaderStore(folder.newFile(),
+                network(headers, false).checkpoint(200, HeaderStore.doubleSha256(headers[200])));
+        assertEquals(100, store.importing(dump(headers, 200, 300), 200, null));
+        assertEquals(200, store.getStartHeight());
+        assertFalse(store.contains(199));
+        assertArrayEquals(headers[250], store.getHeader(250));
+    }
+
+    @Test
+    public void rejectsAnUnknownStartHeight() throws Exception {
+        byte[][] headers = chain(300);
+        HeaderStore store = store(headers);
+        try {
+            store.importing(dump(headers, 200, 300), 200, null);
+            fail("Imported headers from a height without a checkpoint");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void rejectsUnlinkedHeaders() throws Exception {
+        byte[][] headers = chain(200);
+        File file = folder.newFile();
+        HeaderStore store = new HeaderStore(file, network(headers, false));
+        store.importing(dump(headers, 0, 100), null);
+
+        headers[150][10] ^= 1;
+        try {
+            store.importing(dump(headers, 100, 200), 100, null);
+            fail("Imported a broken chain");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(100, store.getEndHeight());
+        assertEquals(100, new HeaderStore(file, network(headers, false)).getEndHeight());
+    }
+
+    @Test
+    public void rejectsHeadersWithoutWork() throws Exception {
+        byte[][] headers = chain(100);
+        headers[50] = unmined(headers[50]);
+        HeaderStore store = store(headers);
+        assertRejected(store, dump(headers, 0, 100));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void rejectsAnotherTarget() throws Exception {
+        byte[][] headers = chain(100);
+        // a harder block in the middle of a period, still not the target of its height
+        headers[50] = mine(HeaderStore.doubleSha256(headers[49]), merkleRoot(50), time(50), 0x207ffffeL);
+        HeaderStore store = store(headers);
+        assertRejected(store, dump(headers, 0, 100));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void retargetsEveryPeriod() throws Exception {
+        byte[][] headers = chain(null, 0, 2100, true);
+        int retarget = HeaderStore.RETARGET_INTERVAL;
+        // a period of 2015 intervals of 600 seconds is a bit faster than two weeks
+        assertTrue(HeaderStore.decodeBits(bits(headers[retarget])).compareTo(HeaderStore.decodeBits(BITS)) < 0);
+
+        HeaderStore store = new HeaderStore(folder.newFile(), network(headers, true));
+        assertEquals(2100, store.importing(dump(headers, 0, 2100), null));
+
+        // the same target after the period
+        byte[][] stale = chain(2100);
+        store = new HeaderStore(folder.newFile(), network(stale, true));
+        assertRejected(store, dump(stale, 0, 2100));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void encodesTheCompactBits() {
+        assertEquals(0x1d00ffffL, HeaderStore.encodeBits(HeaderStore.decodeBits(0x1d00ffffL)));
+        assertEquals(0x1b0404cbL, HeaderStore.encodeBits(HeaderStore.decodeBits(0x1b0404cbL)));
+        assertEquals(new BigInteger("ffff", 16).shiftLeft(208), HeaderStore.decodeBits(0x1d00ffffL));
+        // the sign bit is never set
+        assertEquals(0x02008000L, HeaderStore.encodeBits(BigInteger.valueOf(0x80)));
+        assertNull(HeaderStore.decodeBits(0x1d800000L));
+        // a slow period keeps the highest target
+        assertEquals(0x1d00ffffL, HeaderStore.retarget(0x1d00ffffL, 4 * HeaderStore.TARGET_TIMESPAN, HeaderStore.MAINNET.powLimit));
+        // a fast one divides the target by 4 at most
+        assertEquals(0x1c3fffc0L, HeaderStore.retarget(0x1d00ffffL, 60, HeaderStore.MAINNET.powLimit));
+    }
+
+    @Test
+    public void refusesAReorgWithLessWork() throws Exception {
+        byte[][] headers = chain(100);
+        HeaderStore store = store(headers);
+        store.importing(dump(headers, 0, 100), null);
+
+        // as many blocks as the stored ones after the fork is not enough
+        byte[][] branch = chain(headers, 90, 100, false);
+        assertRejected(store, dump(branch, 90, 100));
+        assertEquals(100, store.getEndHeight());
+        assertArrayEquals(headers[95], store.getHeader(95));
+        assertEquals(0, store.getCountReorgs());
+    }
+
+    @Test
+    public void takesAReorgWithMoreWork() throws Exception {
+        byte[][] headers = chain(100);
+        HeaderStore store = store(headers);
+        store.importing(dump(headers, 0, 100), null);
+
+        byte[][] branch = chain(headers, 90, 120, false);
+        assertEquals(30, store.importing(dump(branch, 90, 120), null));
+        assertEquals(120, store.getEndHeight());
+        assertArrayEquals(branch[95], store.getHeader(95));
+        assertArrayEquals(headers[89], store.getHeader(89));
+        assertEquals(1, store.getCountReorgs());
+    }
+
+    @Test
+    public void rejectsAnUnknownParent() throws Exception {
+        byte[][] headers = chain(200);
+        HeaderStore store = store(headers);
+        try {
+            store.importing(dump(headers, 100, 200), null);
+            fail("Imported headers without a parent");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void reopensTheFile() throws Exception {
+        byte[][] headers = chain(100);
+        File file = folder.newFile();
+        new HeaderStore(file, network(headers, false)).importing(dump(headers, 0, 100), null);
+
+        HeaderStore store = new HeaderStore(file, network(headers, false));
+        assertEquals(100, store.size());
+        assertArrayEquals(headers[99], store.getHeader(99));
+    }
+}
@@ -0,0 +1,218 @@
+package com.eternitywall.opentimestamps.engines;
+
+import com.eternitywall.opentimestamps.dbs.TimestampMerger;
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.attestation.TimeAttestation;
+import com.eternitywall.ots.op.Op;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Batch upgrade of folders stamped together against a local stand-in calendar.
+ */
+public class UpgradeEngineTest {
+
+    private static final String[] CALENDARS = {
+            "https://alice.btc.calendar.opentimestamps.org",
+            "https://bob.btc.calendar.opentimestamps.org"
+    };
+
+    // In-memory node store, merging as the db does
+    static class MemoryStore implements UpgradeEngine.PendingStore, TimestampMerger.NodeStore {
+        Map<ByteBuffer, Timestamp> nodes = new HashMap<>();
+
+        @Override
+        public Timestamp getNode(byte[] msg) {
+            Timestamp stored = nodes.get(ByteBuffer.wrap(msg));
+            if (stored == null) {
+                return null;
+            }
+            Timestamp node = new Timestamp(msg);
+            node.attestations.addAll(stored.attestations);
+            for (Op op : stored.ops.keySet()) {
+                node.add(op);
+            }
+            return node;
+        }
+
+        @Override
+        public void putNode(Timestamp node) {
+            nodes.put(ByteBuffer.wrap(node.msg), node);
+        }
+
+        @Override
+        public List<Timestamp> getPendingNodes() {
+            List<Timestamp> pendings = new ArrayList<>();
+            for (Timestamp node : nodes.values()) {
+                if (!node.ops.isEmpty()) {
+                    continue;
+                }
+                for (TimeAttestation attestation : node.attestations) {
+                    if (attestation instanceof PendingAttestation) {
+                        pendings.add(getNode(node.msg));
+                        break;
+                    }
+                }
+            }
+            return pendings;
+        }
+
+        @Override
+        public void addTimestamps(Collection<Timestamp> timestamps) {
+            TimestampMerger merger = new TimestampMerger(this);
+            for (Timestamp timestamp : timestamps) {
+                merger.merge(timestamp);
+            }
+        }
+
+        // Whether a bitcoin attestation is reachable from a message
+        boolean isComplete(byte[] msg) {
+            Timestamp node = nodes.get(ByteBuffer.wrap(msg));
+            for (TimeAttestation attestation : node.attestations) {
+                if (attestation instanceof BitcoinBlockHeaderAttestation) {
+                    return true;
+                }
+            }
+            for (Timestamp child : node.ops.values()) {
+                if (isComplete(child.msg)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    // Calendar answering every commitment with a path to a block, counting the queries
+    static class StandInCalendar implements UpgradeEngine.CalendarClient {
+        int queries = 0;
+        boolean completed = true;
+        // false: the path ends on another pending attestation, not in a block yet
+        boolean confirmed = true;
+
+        @Override
+        public Timestamp getTimestamp(String url, byte[] commitment) throws Exception {
+            queries++;
+            if (!completed) {
+                throw new Exception("Commitment not found");
+            }
+            Timestamp timestamp = new Timestamp(commitment);
+            Timestamp block = timestamp.add(new OpAppend(url.getBytes())).add(new OpSHA256());
+            if (confirmed) {
+                block.attestations.add(new BitcoinBlockHeaderAttestation(500000));
+            } else {
+                block.attestations.add(new PendingAttestation(url.getBytes()));
+            }
+            return timestamp;
+        }
+    }
+
+    // Files of a folder stamped together on all the calendars
+    private static List<byte[]> stamp(MemoryStore store, Random random, int countFiles) throws Exception {
+        List<DetachedTimestampFile> fileTimestamps = new ArrayList<>();
+        List<byte[]> digests = new ArrayList<>();
+        for (int i = 0; i < countFiles; i++) {
+            byte[] digest = new byte[32];
+            random.nextBytes(digest);
+            digests.add(digest);
+            fileTimestamps.add(new DetachedTimestampFile(new OpSHA256(), new Timestamp(digest)));
+        }
+        Timestamp tip = OpenTimestamps.makeMerkleTree(fileTimestamps);
+        for (String calendar : CALENDARS) {
+            byte[] nonce = new byte[16];
+            random.nextBytes(nonce);
+            Timestamp pending = tip.add(new OpAppend(nonce)).add(new OpSHA256());
+            pending.attestations.add(new PendingAttestation(calendar.getBytes()));
+        }
+
+        List<Timestamp> timestamps = new ArrayList<>();
+        for (DetachedTimestampFile file : fileTimestamps) {
+            timestamps.add(file.getTimestamp());
+        }
+        store.addTimestamps(timestamps);
+        return digests;
+    }
+
+    @Test
+    public void upgradeQueriesEachCommitmentOnce() throws Exception {
+        int countFolders = 5;
+        int countFiles = 10000;
+        MemoryStore store = new MemoryStore();
+        Random random = new Random(42);
+        List<byte[]> digests = new ArrayList<>();
+        for (int i = 0; i < countFolders; i++) {
+            digests.addAll(stamp(store, random, countFiles));
+        }
+
+        StandInCalendar calendar = new StandInCalendar();
+        UpgradeEngine engine = new UpgradeEngine(store, calendar);
+        assertEquals(countFolders * CALENDARS.length, engine.upgrade());
+        System.out.println(countFolders * countFiles + " files: " + engine);
+
+        // One query per calendar and folder instead of one per file
+        assertEquals(countFolders * CALENDARS.length, calendar.queries);
+        for (byte[] digest : digests) {
+            assertTrue(store.isComplete(digest));
+        }
+
+        // Nothing left to upgrade
+        calendar.queries = 0;
+        assertEquals(0, new UpgradeEngine(store, calendar).upgrade());
+        assertEquals(0, calendar.queries);
+    }
+
+    @Test
+    public void upgradeKeepsPendingUntilCompleted() throws Exception {
+        MemoryStore store = new MemoryStore();
+        List<byte[]> digests = stamp(store, new Random(7), 100);
+
+        StandInCalendar calendar = new StandInCalendar();
+        calendar.completed = false;
+        UpgradeEngine engine = new UpgradeEngine(store, calendar);
+        assertEquals(0, engine.upgrade());
+        assertEquals(CALENDARS.length, engine.getCountFailures());
+        assertFalse(store.isComplete(digests.get(0)));
+
+        // Asked again on the next run
+        calendar.completed = true;
+        assertEquals(CALENDARS.length, new UpgradeEngine(store, calendar).upgrade());
+        assertTrue(store.isComplete(digests.get(0)));
+    }
+
+    @Test
+    public void upgradeMergesOnlyConfirmedAnswers() throws Exception {
+        MemoryStore store = new MemoryStore();
+        List<byte[]> digests = stamp(store, new Random(11), 100);
+        int countNodes = store.nodes.size();
+
+        // An answer without a bitcoin attestation is not merged
+        StandInCalendar calendar = new StandInCalendar();
+        calendar.confirmed = false;
+        assertEquals(0, new UpgradeEngine(store, calendar).upgrade());
+        assertEquals(CALENDARS.length, calendar.queries);
+        assertEquals(countNodes, store.nodes.size());
+        assertFalse(store.isComplete(digests.get(0)));
+
+        // The same commitments are asked again
+        calendar.confirmed = true;
+        calendar.queries = 0;
+        assertEquals(CALENDARS.length, new UpgradeEngine(store, calendar).upgrade());
+        assertEquals(CALENDARS.length, calendar.queries);
+        assertTrue(store.isComplete(digests.get(0)));
+    }
+}
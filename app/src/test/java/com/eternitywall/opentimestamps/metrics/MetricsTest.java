@@ -0,0 +1,71 @@
+package com.eternitywall.opentimestamps.metrics;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * The registry, the timers and the JSON dump.
+ */
+public class MetricsTest {
+
+    @Test
+    public void registersOncePerName() {
+        assertSame(Metrics.counter("test.counter"), Metrics.counter("test.counter"));
+        assertSame(Metrics.gauge("test.gauge"), Metrics.gauge("test.gauge"));
+        assertSame(Metrics.timer("test.timer"), Metrics.timer("test.timer"));
+    }
+
+    @Test
+    public void countsAndResets() {
+        Counter counter = Metrics.counter("test.reset");
+        counter.inc();
+        counter.add(41);
+        assertEquals(Long.valueOf(42), Metrics.getCounters().get("test.reset"));
+
+        Metrics.gauge("test.level").set(7);
+        Metrics.timer("test.reset").record(100);
+        Metrics.reset();
+        assertEquals(0, counter.get());
+        assertEquals(0, Metrics.timer("test.reset").getCount());
+        // a gauge is a level, not a count
+        assertEquals(7, Metrics.gauge("test.level").get());
+    }
+
+    @Test
+    public void timesInMicroseconds() throws Exception {
+        Timer timer = Metrics.timer("test.sleep");
+        long start = timer.start();
+        Thread.sleep(5);
+        long us = timer.stop(start);
+        assertTrue(us >= 5000);
+        assertEquals(1, timer.getCount());
+        assertEquals("us", timer.getUnit());
+        assertTrue(timer.getPercentile(50) >= 5000);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void keepsTheKindOfAName() {
+        Metrics.register("test.histogram", new LatencyHistogram());
+        Metrics.timer("test.histogram");
+    }
+
+    @Test
+    public void dumpsJson() {
+        Metrics.counter("test.json").add(3);
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(3);
+        histogram.record(60000);
+        Metrics.register("test.\"calendar\"", histogram);
+
+        String json = Metrics.toJson(Collections.singletonMap("device", "a\\b"));
+        assertTrue(json.startsWith("{\"time\":"));
+        assertTrue(json.contains("\"info\":{\"device\":\"a\\\\b\"}"));
+        assertTrue(json.contains("\"test.json\":3"));
+        assertTrue(json.contains("\"test.\\\"calendar\\\"\":{\"unit\":\"ms\",\"count\":2,"));
+        assertTrue(json.contains("\"buckets\":[[5,1],[null,1]]"));
+        assertTrue(json.endsWith("}}"));
+    }
+}
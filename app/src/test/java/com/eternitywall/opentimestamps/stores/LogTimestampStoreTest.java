@@ -0,0 +1,91 @@
+package com.eternitywall.opentimestamps.stores;
+
+import com.eternitywall.ots.Timestamp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * The append-only log engine against the store conformance suite, and its recovery.
+ */
+public class LogTimestampStoreTest extends TimestampStoreConformance {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+
+    @Override
+    protected TimestampStore create() throws Exception {
+        file = new File(folder.getRoot(), "timestamps.log");
+        return new LogTimestampStore(file);
+    }
+
+    @Test
+    public void reopensTheLog() throws Exception {
+        Timestamp[] commitment = new Timestamp[1];
+        List<Timestamp> leaves = stamp(50, commitment);
+        store.addTimestamps(leaves);
+        store.close();
+
+        store = new LogTimestampStore(file);
+        for (Timestamp leaf : leaves) {
+            assertSameTree(leaf, store.getTimestamp(leaf.msg));
+        }
+        List<Timestamp> pendings = store.getPendingNodes();
+        assertEquals(1, pendings.size());
+        assertArrayEquals(commitment[0].msg, pendings.get(0).msg);
+    }
+
+    @Test
+    public void cutsATornRecord() throws Exception {
+        List<Timestamp> leaves = stamp(10, null);
+        store.addTimestamps(leaves);
+        long size = ((LogTimestampStore) store).getSize();
+        store.close();
+
+        // a write broken halfway
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(size);
+        raf.writeInt(32);
+        raf.writeInt(1000);
+        raf.write(new byte[40]);
+        raf.close();
+
+        store = new LogTimestampStore(file);
+        assertEquals(size, file.length());
+        for (Timestamp leaf : leaves) {
+            assertSameTree(leaf, store.getTimestamp(leaf.msg));
+        }
+        // the log goes on after the cut
+        List<Timestamp> more = stamp(10, null);
+        store.addTimestamps(more);
+        assertSameTree(more.get(9), store.getTimestamp(more.get(9).msg));
+    }
+
+    @Test
+    public void mapsAGrowingLogFewTimes() throws Exception {
+        // the merges read the nodes between the appends
+        List<Timestamp> leaves = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            leaves.addAll(stamp(500, null));
+            store.addTimestamps(leaves.subList(leaves.size() - 500, leaves.size()));
+        }
+        long size = ((LogTimestampStore) store).getSize();
+        assertTrue(size > 1024 * 1024);
+        // the map doubles at least every time, from 1 MB
+        int maxMaps = 64 - Long.numberOfLeadingZeros(size / (1024 * 1024)) + 1;
+        assertTrue(((LogTimestampStore) store).getCountMaps() <= maxMaps);
+        for (int i = 0; i < leaves.size(); i += 997) {
+            assertSameTree(leaves.get(i), store.getTimestamp(leaves.get(i).msg));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package com.eternitywall.opentimestamps.stores;
+
+/**
+ * The in-memory engine against the store conformance suite.
+ */
+public class MemoryTimestampStoreTest extends TimestampStoreConformance {
+
+    @Override
+    protected TimestampStore create() {
+        return new MemoryTimestampStore();
+    }
+}
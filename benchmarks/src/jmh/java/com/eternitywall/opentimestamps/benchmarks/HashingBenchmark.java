@@ -0,0 +1,55 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import com.eternitywall.opentimestamps.IOUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Random;
+
+/**
+ * SHA256 of a file as the hashing engine reads it, by file size.
+ * The file is in the page cache after the warmup, this is the cpu and copy cost.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class HashingBenchmark {
+
+    @Param({ "4096", "1048576", "16777216" })
+    public int size;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("hashing", ".bin");
+        byte[] buffer = new byte[64 * 1024];
+        new Random(42).nextBytes(buffer);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int written = 0; written < size; written += buffer.length) {
+                out.write(buffer, 0, Math.min(buffer.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public byte[] readFileSHA256() throws Exception {
+        return IOUtil.readFileSHA256(file);
+    }
+}
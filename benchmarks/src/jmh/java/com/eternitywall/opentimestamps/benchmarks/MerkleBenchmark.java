@@ -0,0 +1,41 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * The merkle tree of a stamping round, by count of leaves.
+ * makeMerkleTree adds the ops to the leaves, so every invocation gets fresh leaves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class MerkleBenchmark {
+
+    @Param({ "16", "1024", "16384" })
+    public int countLeaves;
+
+    private final Proofs proofs = new Proofs(42);
+    private List<DetachedTimestampFile> files;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        files = proofs.files(countLeaves);
+    }
+
+    @Benchmark
+    public Timestamp makeMerkleTree() {
+        return OpenTimestamps.makeMerkleTree(files);
+    }
+}
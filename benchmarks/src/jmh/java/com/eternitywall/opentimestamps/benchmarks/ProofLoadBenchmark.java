@@ -0,0 +1,242 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Loading proofs from a large store with the query shapes of TimestampDBHelper: one query per
+ * node, as getTimestamp did, against one IN (...) query per level, as getTimestamps does.
+ * The store is a desktop SQLite through JDBC with the timestamps table of the app, the blob of
+ * a node is reduced to the msgs of its children: this is the cost of the queries, not of the
+ * ots parsing, and not of the Android cursors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class ProofLoadBenchmark {
+
+    // 200 rounds of 1000 leaves, each round a merkle tree and a tip pending on 3 calendars
+    private static final int ROUNDS = 200;
+    private static final int ROUND_LEAVES = 1000;
+    private static final int CALENDARS = 3;
+    private static final int CALENDAR_PATH = 8;
+    private static final int MAX_BATCH = 500;
+    private static final int MSG = 32;
+
+    // Leaves loaded together: a single proof, or a whole round as the export loads it
+    @Param({ "1", "1000" })
+    public int leaves;
+
+    private File file;
+    private Connection connection;
+    private final List<byte[]> roundLeaves = new ArrayList<>();
+    private final Random random = new Random(42);
+
+    static class Node {
+        final byte[] msg;
+        final List<Node> children = new ArrayList<>();
+
+        Node(byte[] msg) {
+            this.msg = msg;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        file = File.createTempFile("timestamps", ".db");
+        connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE timestamps ( msg BLOB PRIMARY KEY NOT NULL, serialize BLOB )");
+        statement.close();
+
+        connection.setAutoCommit(false);
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO timestamps (msg, serialize) VALUES (?, ?)");
+        for (int round = 0; round < ROUNDS; round++) {
+            List<byte[]> level = new ArrayList<>();
+            for (int i = 0; i < ROUND_LEAVES; i++) {
+                level.add(msg());
+            }
+            if (round == ROUNDS / 2) {
+                roundLeaves.addAll(level);
+            }
+            // a leaf goes to its concat with the sibling, then to the sha256 of it
+            while (level.size() > 1) {
+                List<byte[]> next = new ArrayList<>();
+                for (int i = 0; i < level.size(); i += 2) {
+                    byte[] parent = msg();
+                    for (int j = i; j < Math.min(i + 2, level.size()); j++) {
+                        byte[] concat = msg();
+                        insert(insert, level.get(j), concat);
+                        insert(insert, concat, parent);
+                    }
+                    next.add(parent);
+                }
+                level = next;
+            }
+            byte[] tip = level.get(0);
+            byte[][] branches = new byte[CALENDARS][];
+            for (int c = 0; c < CALENDARS; c++) {
+                branches[c] = msg();
+                byte[] node = branches[c];
+                for (int k = 1; k < CALENDAR_PATH; k++) {
+                    byte[] child = msg();
+                    insert(insert, node, child);
+                    node = child;
+                }
+                insert(insert, node);
+            }
+            insert(insert, tip, branches);
+        }
+        insert.executeBatch();
+        connection.commit();
+        insert.close();
+        connection.setAutoCommit(true);
+    }
+
+    private byte[] msg() {
+        byte[] msg = new byte[MSG];
+        random.nextBytes(msg);
+        return msg;
+    }
+
+    private static void insert(PreparedStatement insert, byte[] msg, byte[]... children) throws Exception {
+        byte[] serialize = new byte[children.length * MSG];
+        for (int i = 0; i < children.length; i++) {
+            System.arraycopy(children[i], 0, serialize, i * MSG, MSG);
+        }
+        insert.setBytes(1, msg);
+        insert.setBytes(2, serialize);
+        insert.addBatch();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        connection.close();
+        file.delete();
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // The nodes are keyed by hex as in TimestampDBHelper, with a table as Utils.bytesToHex
+    private static String toHex(byte[] msg) {
+        char[] chars = new char[msg.length * 2];
+        for (int i = 0; i < msg.length; i++) {
+            chars[2 * i] = HEX[(msg[i] >> 4) & 0xf];
+            chars[2 * i + 1] = HEX[msg[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static String toBlobLiteral(String hex) {
+        return "X'" + hex + "'";
+    }
+
+    private static List<byte[]> children(byte[] serialize) {
+        List<byte[]> children = new ArrayList<>();
+        for (int i = 0; i + MSG <= serialize.length; i += MSG) {
+            byte[] child = new byte[MSG];
+            System.arraycopy(serialize, i, child, 0, MSG);
+            children.add(child);
+        }
+        return children;
+    }
+
+    // One query per node, recursively: the shared nodes are loaded again for every leaf
+    private Node perNode(byte[] msg) throws Exception {
+        Node node = new Node(msg);
+        Statement statement = connection.createStatement();
+        List<byte[]> children;
+        try {
+            ResultSet rs = statement.executeQuery("SELECT rowid, msg, serialize FROM timestamps WHERE msg = " + toBlobLiteral(toHex(msg)));
+            if (!rs.next()) {
+                return node;
+            }
+            children = children(rs.getBytes(3));
+        } finally {
+            statement.close();
+        }
+        for (byte[] child : children) {
+            node.children.add(perNode(child));
+        }
+        return node;
+    }
+
+    @Benchmark
+    public int loadPerNode() throws Exception {
+        int count = 0;
+        for (int i = 0; i < leaves; i++) {
+            count += perNode(roundLeaves.get(i)).children.size();
+        }
+        return count;
+    }
+
+    // One query per level for all the leaves, the nodes shared by them are loaded once
+    @Benchmark
+    public int loadPerLevel() throws Exception {
+        Map<String, Node> nodes = new HashMap<>();
+        List<String> level = new ArrayList<>();
+        for (int i = 0; i < leaves; i++) {
+            String key = toHex(roundLeaves.get(i));
+            if (!nodes.containsKey(key)) {
+                nodes.put(key, new Node(roundLeaves.get(i)));
+                level.add(key);
+            }
+        }
+        Set<String> roots = new HashSet<>(level);
+
+        int count = 0;
+        while (!level.isEmpty()) {
+            List<String> nextLevel = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += MAX_BATCH) {
+                StringBuilder in = new StringBuilder();
+                for (String key : level.subList(i, Math.min(i + MAX_BATCH, level.size()))) {
+                    in.append(in.length() == 0 ? "" : ",").append(toBlobLiteral(key));
+                }
+                Statement statement = connection.createStatement();
+                try {
+                    ResultSet rs = statement.executeQuery("SELECT rowid, msg, serialize FROM timestamps WHERE msg IN (" + in + ")");
+                    while (rs.next()) {
+                        String key = toHex(rs.getBytes(2));
+                        Node node = nodes.get(key);
+                        for (byte[] msg : children(rs.getBytes(3))) {
+                            String childKey = toHex(msg);
+                            Node child = nodes.get(childKey);
+                            if (child == null) {
+                                child = new Node(msg);
+                                nodes.put(childKey, child);
+                                nextLevel.add(childKey);
+                            }
+                            node.children.add(child);
+                        }
+                        if (roots.contains(key)) {
+                            count += node.children.size();
+                        }
+                    }
+                } finally {
+                    statement.close();
+                }
+            }
+            level = nextLevel;
+        }
+        return count;
+    }
+}
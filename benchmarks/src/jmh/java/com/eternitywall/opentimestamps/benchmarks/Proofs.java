@@ -0,0 +1,73 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import com.eternitywall.ots.DetachedTimestampFile;
+import com.eternitywall.ots.OpenTimestamps;
+import com.eternitywall.ots.Timestamp;
+import com.eternitywall.ots.attestation.BitcoinBlockHeaderAttestation;
+import com.eternitywall.ots.attestation.PendingAttestation;
+import com.eternitywall.ots.op.OpAppend;
+import com.eternitywall.ots.op.OpPrepend;
+import com.eternitywall.ots.op.OpSHA256;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic proofs shaped like the ones of the app, from a seeded random.
+ */
+final class Proofs {
+
+    private static final byte[] CALENDAR = "https://alice.btc.calendar.opentimestamps.org".getBytes();
+
+    private final Random random;
+
+    Proofs(long seed) {
+        random = new Random(seed);
+    }
+
+    byte[] digest() {
+        byte[] digest = new byte[32];
+        random.nextBytes(digest);
+        return digest;
+    }
+
+    List<DetachedTimestampFile> files(int countLeaves) {
+        List<DetachedTimestampFile> files = new ArrayList<>(countLeaves);
+        for (int i = 0; i < countLeaves; i++) {
+            files.add(new DetachedTimestampFile(new OpSHA256(), new Timestamp(digest())));
+        }
+        return files;
+    }
+
+    // Leaves stamped in a round, the nonced tip pending on a calendar
+    List<Timestamp> stamp(int countLeaves) {
+        List<DetachedTimestampFile> files = files(countLeaves);
+        Timestamp tip = OpenTimestamps.makeMerkleTree(files);
+        Timestamp pending = tip.add(new OpAppend(digest())).add(new OpSHA256());
+        pending.attestations.add(new PendingAttestation(CALENDAR));
+        List<Timestamp> leaves = new ArrayList<>(countLeaves);
+        for (DetachedTimestampFile file : files) {
+            leaves.add(file.getTimestamp());
+        }
+        return leaves;
+    }
+
+    // A single proof path of depth merkle steps to a pending and a bitcoin attestation
+    Timestamp path(int depth) {
+        Timestamp root = new Timestamp(digest());
+        Timestamp node = root;
+        for (int i = 0; i < depth; i++) {
+            if (random.nextBoolean()) {
+                node = node.add(new OpAppend(digest()));
+            } else {
+                node = node.add(new OpPrepend(digest()));
+            }
+            node = node.add(new OpSHA256());
+        }
+        node.attestations.add(new PendingAttestation(CALENDAR));
+        Timestamp block = node.add(new OpAppend(digest())).add(new OpSHA256());
+        block.attestations.add(new BitcoinBlockHeaderAttestation(500000));
+        return root;
+    }
+}
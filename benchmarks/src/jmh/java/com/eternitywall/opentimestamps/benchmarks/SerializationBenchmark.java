@@ -0,0 +1,45 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import com.eternitywall.opentimestamps.models.SerializedTimestamp;
+import com.eternitywall.ots.Timestamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * A whole proof through SerializedTimestamp, by depth of the merkle path.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+public class SerializationBenchmark {
+
+    @Param({ "4", "16", "64" })
+    public int depth;
+
+    private Timestamp timestamp;
+    private SerializedTimestamp serialized;
+
+    @Setup
+    public void setUp() {
+        timestamp = new Proofs(42).path(depth);
+        serialized = new SerializedTimestamp();
+        serialized.serialize(timestamp);
+    }
+
+    @Benchmark
+    public byte[] serialize() {
+        SerializedTimestamp serializedTimestamp = new SerializedTimestamp();
+        serializedTimestamp.serialize(timestamp);
+        return serializedTimestamp.serialized;
+    }
+
+    @Benchmark
+    public Timestamp deserialize() {
+        return serialized.deserialize();
+    }
+}
@@ -0,0 +1,123 @@
+package com.eternitywall.opentimestamps.benchmarks;
+
+import com.eternitywall.opentimestamps.stores.LogTimestampStore;
+import com.eternitywall.opentimestamps.stores.MemoryTimestampStore;
+import com.eternitywall.opentimestamps.stores.TimestampStore;
+import com.eternitywall.ots.Timestamp;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The timestamp store on the engines that run on the JVM, the SQLite engine needs a device.
+ * A round of stamped leaves is merged into an empty store, and single proofs are loaded
+ * from a store holding many rounds.
+ */
+@BenchmarkMode(Mode.AverageTime)
+public class StoreBenchmark {
+
+    private static final int COUNT_ROUNDS = 16;
+
+    static TimestampStore create(String engine, File file) throws IOException {
+        if ("log".equals(engine)) {
+            return new LogTimestampStore(file);
+        }
+        return new MemoryTimestampStore();
+    }
+
+    @State(Scope.Thread)
+    public static class Merge {
+        @Param({ "memory", "log" })
+        public String engine;
+
+        @Param({ "16", "1024" })
+        public int countLeaves;
+
+        private final Proofs proofs = new Proofs(42);
+        private File file;
+        TimestampStore store;
+        List<Timestamp> leaves;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws IOException {
+            file = File.createTempFile("store", ".log");
+            store = create(engine, file);
+            leaves = proofs.stamp(countLeaves);
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() {
+            store.close();
+            file.delete();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Load {
+        @Param({ "memory", "log" })
+        public String engine;
+
+        @Param({ "16", "1024" })
+        public int countLeaves;
+
+        private File file;
+        TimestampStore store;
+        final List<byte[]> msgs = new ArrayList<>();
+        int next = 0;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = File.createTempFile("store", ".log");
+            store = create(engine, file);
+            Proofs proofs = new Proofs(42);
+            for (int i = 0; i < COUNT_ROUNDS; i++) {
+                List<Timestamp> leaves = proofs.stamp(countLeaves);
+                store.addTimestamps(leaves);
+                for (Timestamp leaf : leaves) {
+                    msgs.add(leaf.msg);
+                }
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            store.close();
+            file.delete();
+        }
+
+        byte[] nextMsg() {
+            next = (next + 7919) % msgs.size();
+            return msgs.get(next);
+        }
+    }
+
+    @Benchmark
+    public TimestampStore addTimestamps(Merge state) {
+        state.store.addTimestamps(state.leaves);
+        return state.store;
+    }
+
+    @Benchmark
+    public Timestamp getTimestamp(Load state) {
+        return state.store.getTimestamp(state.nextMsg());
+    }
+
+    // The proofs of a whole round, as the export and the verification of a folder load them
+    @Benchmark
+    public Object getTimestamps(Load state) {
+        List<byte[]> msgs = state.msgs.subList(0, state.countLeaves);
+        return state.store.getTimestamps(msgs);
+    }
+}